@@ -26,6 +26,8 @@ public class Launcher {
     public static final int port = 9999;
 
     public static final long DEFALUT_MEM = (1<<20)*64;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 60; // 默认检查点间隔，秒
+    public static final long DEFAULT_VACUUM_INTERVAL = 30; // 默认回收间隔，秒
     public static final long KB = 1 << 10;
 	public static final long MB = 1 << 20;
 	public static final long GB = 1 << 30;
@@ -35,11 +37,15 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("checkpoint", true, "-checkpoint 60 (seconds)");
+        options.addOption("locktimeout", true, "-locktimeout 50 (seconds, 0 to wait forever)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")),
+                    parseCheckpointInterval(cmd.getOptionValue("checkpoint")),
+                    parseLockTimeout(cmd.getOptionValue("locktimeout")));
             return;
         }
         if(cmd.hasOption("create")) {
@@ -59,18 +65,62 @@ public class Launcher {
         DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
+        dm.close(); // 关闭时 XID 文件落盘，需在 tm 关闭之前
         tm.close();
-        dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, long checkpointInterval, long lockTimeoutMillis) {
         TransactionManager tm = TransactionManager.open(path);
         DataManager dm = DataManager.open(path, mem, tm);
-        VersionManager vm = new VersionManagerImpl(tm, dm);
+        dm.startCheckpoint(checkpointInterval);
+        VersionManager vm = new VersionManagerImpl(tm, dm, lockTimeoutMillis);
         TableManager tbm = TableManager.open(path, vm, dm);
+        tbm.startVacuum(DEFAULT_VACUUM_INTERVAL);
+        // 退出时打印页面缓存的命中情况，用于调整 -mem
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Page cache: " + dm.getPageCacheStats());
+            System.out.println("Vacuum: " + tbm.getVacuumStats());
+            System.out.println("Lock waits: " + tbm.getLockStats());
+        }));
         new Server(port, tbm).start();
     }
 
+    private static long parseCheckpointInterval(String intervalStr) {
+        if(intervalStr == null || "".equals(intervalStr)) {
+            return DEFAULT_CHECKPOINT_INTERVAL;
+        }
+        long interval = 0;
+        try {
+            interval = Long.parseLong(intervalStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidCheckpointIntervalException);
+        }
+        if(interval <= 0) {
+            Panic.panic(Error.InvalidCheckpointIntervalException);
+        }
+        return interval;
+    }
+
+    /**
+     * 解析锁等待的上限
+     * @return 毫秒，0 表示一直等待
+     */
+    private static long parseLockTimeout(String timeoutStr) {
+        if(timeoutStr == null || "".equals(timeoutStr)) {
+            return VersionManagerImpl.DEFAULT_LOCK_WAIT_TIMEOUT;
+        }
+        long seconds = 0;
+        try {
+            seconds = Long.parseLong(timeoutStr);
+        } catch (NumberFormatException e) {
+            Panic.panic(Error.InvalidLockTimeoutException);
+        }
+        if(seconds < 0) {
+            Panic.panic(Error.InvalidLockTimeoutException);
+        }
+        return seconds * 1000;
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
@@ -0,0 +1,61 @@
+package com.rt.rtdb.backend.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 缓存的命中、未命中、驱逐、预读计数
+ * 预读加载的资源同时计入未命中
+ * @author RT666
+ */
+public class CacheStats {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder prefetches = new LongAdder();
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    void eviction() {
+        evictions.increment();
+    }
+
+    void prefetch() {
+        prefetches.increment();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public long prefetches() {
+        return prefetches.sum();
+    }
+
+    /**
+     * 命中率，没有访问时返回 0
+     */
+    public double hitRatio() {
+        long h = hits(), m = misses();
+        return h + m == 0 ? 0 : (double) h / (h + m);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, evictions=%d, prefetches=%d, hitRatio=%.4f",
+                hits(), misses(), evictions(), prefetches(), hitRatio());
+    }
+}
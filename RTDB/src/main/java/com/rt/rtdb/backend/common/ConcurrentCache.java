@@ -0,0 +1,298 @@
+package com.rt.rtdb.backend.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import com.rt.rtdb.common.Error;
+
+/**
+ * ConcurrentCache 与 AbstractCache 提供相同的引用计数缓存语义，可作为子类的直接替换
+ *
+ * 区别在于：
+ * 1) 查找走 ConcurrentHashMap，命中时只对该元素的引用计数做一次 CAS，不再经过全局锁；
+ * 2) 同一个 key 的并发加载共享一个 CompletableFuture，等待者挂起在 future 上，而不是 sleep 轮询；
+ * 3) 驱逐在该 key 所在的哈希桶内完成，与同一个 key 的重新获取互斥，
+ *    保证写回(releaseForCache)先于下一次从数据源读取。
+ *
+ * 传入 TwoQueuePolicy 时，引用计数为 0 的元素继续留在缓存中，缓存满时由策略挑选未被引用的元素驱逐；
+ * 否则与 AbstractCache 一致，引用计数归零即驱逐，缓存满时抛出 CacheFullException。
+ * @author RT666
+ */
+public abstract class ConcurrentCache<T> {
+
+    /**
+     * 缓存中的一个元素
+     * refs > 0 表示被引用，0 表示未被引用，-1 表示正在被驱逐
+     */
+    static class CacheEntry<T> {
+        final long key;
+        final CompletableFuture<T> future = new CompletableFuture<>(); // 正在加载或已加载的资源
+        final AtomicInteger refs = new AtomicInteger(1);               // 元素的引用个数
+        volatile boolean referenced;                                   // 最近是否被访问过，供驱逐策略使用
+        boolean hot;                                                   // 是否位于策略的常驻队列，由策略的锁保护
+
+        CacheEntry(long key) {
+            this.key = key;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, CacheEntry<T>> cache; // 实际缓存的数据
+    private final int maxResource;                              // 缓存的最大缓存资源数
+    private final AtomicInteger count = new AtomicInteger(0);   // 缓存中元素的个数
+    private final TwoQueuePolicy policy;                        // 驱逐策略，为 null 时引用归零即驱逐
+    private final CacheStats stats = new CacheStats();          // 命中、未命中、驱逐计数
+
+    public ConcurrentCache(int maxResource) {
+        this(maxResource, null);
+    }
+
+    public ConcurrentCache(int maxResource, TwoQueuePolicy policy) {
+        this.maxResource = maxResource;
+        this.policy = policy;
+        this.cache = new ConcurrentHashMap<>();
+    }
+
+    protected T get(long key) throws Exception {
+        // 快速路径：资源在缓存中且未处于驱逐过程，直接增加引用计数
+        CacheEntry<T> entry = cache.get(key);
+        if(entry != null && tryRetain(entry)) {
+            entry.referenced = true;
+            stats.hit();
+            return await(entry);
+        }
+
+        // 慢速路径：在哈希桶锁内决定是复用已有元素还是由当前线程加载
+        boolean[] created = new boolean[1];
+        entry = cache.compute(key, (k, old) -> {
+            if(old != null) {
+                // 桶锁内不会看到正在驱逐的元素，引用计数一定不小于 0
+                old.refs.incrementAndGet();
+                return old;
+            }
+            created[0] = true;
+            return new CacheEntry<>(k);
+        });
+        if(!created[0]) {
+            entry.referenced = true;
+            stats.hit();
+            return await(entry);
+        }
+
+        stats.miss();
+        if(count.incrementAndGet() > maxResource && maxResource > 0 && !evictOne()) {
+            // 没有可以驱逐的元素，放弃本次加载
+            discard(entry);
+            entry.future.completeExceptionally(Error.CacheFullException);
+            throw Error.CacheFullException;
+        }
+        if(policy != null) {
+            policy.admit(entry);
+        }
+        return load(key, entry);
+    }
+
+    /**
+     * 由获得加载权的线程从数据源获取资源，并唤醒等待在该 key 上的其他线程
+     */
+    private T load(long key, CacheEntry<T> entry) throws Exception {
+        T obj;
+        try {
+            obj = getForCache(key);
+        } catch(Exception e) {
+            discard(entry);
+            entry.future.completeExceptionally(e);
+            throw e;
+        }
+        entry.future.complete(obj);
+        return obj;
+    }
+
+    /**
+     * 移除一个加载失败的元素
+     */
+    private void discard(CacheEntry<T> entry) {
+        if(cache.remove(entry.key, entry)) {
+            count.decrementAndGet();
+        }
+    }
+
+    /**
+     * 引用计数不小于 0 时才允许无锁地增加引用
+     */
+    private boolean tryRetain(CacheEntry<T> entry) {
+        while(true) {
+            int refs = entry.refs.get();
+            if(refs < 0) {
+                return false;
+            }
+            if(entry.refs.compareAndSet(refs, refs + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 等待资源加载完成，加载失败时抛出与加载线程相同的异常对象
+     */
+    private T await(CacheEntry<T> entry) throws Exception {
+        try {
+            return entry.future.get();
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 强行释放一个缓存
+     */
+    protected void release(long key) {
+        CacheEntry<T> entry = cache.get(key);
+        if(entry == null) {
+            return;
+        }
+        if(entry.refs.decrementAndGet() > 0 || policy != null) {
+            // 有驱逐策略时，未被引用的元素继续留在缓存中
+            return;
+        }
+        // 引用计数降为 0，在哈希桶锁内确认没有被重新引用后写回并移除
+        remove(entry);
+    }
+
+    /**
+     * 在哈希桶锁内驱逐一个未被引用的元素
+     * @return 是否成功驱逐
+     */
+    private boolean remove(CacheEntry<T> entry) {
+        boolean[] removed = new boolean[1];
+        cache.computeIfPresent(entry.key, (k, cur) -> {
+            if(cur != entry || !cur.future.isDone() || !cur.refs.compareAndSet(0, -1)) {
+                return cur;
+            }
+            releaseForCache(cur.future.join());
+            count.decrementAndGet();
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    /**
+     * 缓存已满时，按驱逐策略挑选一个未被引用的元素驱逐
+     * 失败时不回退计数，由调用方 discard 新元素时统一减去
+     * @return 是否腾出了空间
+     */
+    @SuppressWarnings("unchecked")
+    private boolean evictOne() {
+        if(policy == null) {
+            return false;
+        }
+        while(true) {
+            CacheEntry<T> victim = (CacheEntry<T>) policy.victim(this::isResident);
+            if(victim == null) {
+                return false;
+            }
+            if(remove(victim)) {
+                policy.evicted(victim);
+                stats.eviction();
+                return true;
+            }
+            // 挑选之后又被引用，放回策略中继续参与调度
+            if(isResident(victim)) {
+                policy.reinsert(victim);
+            }
+        }
+    }
+
+    private boolean isResident(CacheEntry<?> entry) {
+        return cache.get(entry.key) == entry;
+    }
+
+    /**
+     * 获取缓存中所有已加载且满足条件的资源的 key，不增加引用
+     */
+    protected List<Long> cachedKeys(Predicate<T> filter) {
+        List<Long> keys = new ArrayList<>();
+        for(CacheEntry<T> entry : cache.values()) {
+            if(entry.future.isDone() && !entry.future.isCompletedExceptionally()
+                    && filter.test(entry.future.join())) {
+                keys.add(entry.key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 资源已在缓存中时增加引用并返回，否则返回 null，不会触发加载
+     * 调用方用完后需要 release
+     */
+    protected T getIfCached(long key) {
+        CacheEntry<T> entry = cache.get(key);
+        if(entry == null || !entry.future.isDone() || entry.future.isCompletedExceptionally()) {
+            return null;
+        }
+        if(!tryRetain(entry)) {
+            // 正在被驱逐，进入哈希桶锁等待写回完成后再返回
+            cache.computeIfPresent(key, (k, cur) -> cur);
+            return null;
+        }
+        return entry.future.join();
+    }
+
+    /**
+     * 资源不在缓存中时加载进缓存，不保留引用，用于预读
+     * 需要传入驱逐策略，否则引用归零后资源立即被驱逐
+     * @return 是否加载了资源
+     */
+    protected boolean preload(long key) throws Exception {
+        if(cache.containsKey(key)) {
+            return false;
+        }
+        get(key);
+        release(key);
+        stats.prefetch();
+        return true;
+    }
+
+    /**
+     * 获取缓存的命中、未命中、驱逐计数
+     */
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * 安全关闭缓存，写回所有资源
+     */
+    protected void close() {
+        for(Map.Entry<Long, CacheEntry<T>> e : cache.entrySet()) {
+            CacheEntry<T> entry = e.getValue();
+            if(entry.future.isDone() && !entry.future.isCompletedExceptionally()) {
+                releaseForCache(entry.future.join());
+            }
+            cache.remove(e.getKey(), entry);
+        }
+        count.set(0);
+        if(policy != null) {
+            policy.clear();
+        }
+    }
+
+    /**
+     * 当资源不在缓存时的获取行为
+     */
+    protected abstract T getForCache(long key) throws Exception;
+    /**
+     * 当资源被驱逐时的写回行为
+     */
+    protected abstract void releaseForCache(T obj);
+}
@@ -0,0 +1,141 @@
+package com.rt.rtdb.backend.common;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * 2Q 驱逐策略，常驻队列用 CLOCK 近似 LRU
+ *
+ * A1in：只被访问过一次的元素，先进先出，顺序扫描的页面从这里直接被淘汰，不会冲掉热点页面
+ * A1out：最近从 A1in 淘汰的 key(只记 key，不占缓存)，再次缺页时直接进入 Am
+ * Am：热点元素，命中时只设置 referenced 位(无锁)，淘汰时按时钟指针给第二次机会
+ *
+ * 被引用(refs > 0)的元素永远不会被选为牺牲者
+ * @author RT666
+ */
+public class TwoQueuePolicy {
+
+    private final int kin;                                                  // A1in 的目标长度
+    private final int kout;                                                 // A1out 的最大长度
+    private final ArrayDeque<ConcurrentCache.CacheEntry<?>> a1in = new ArrayDeque<>();
+    private final ArrayDeque<ConcurrentCache.CacheEntry<?>> am = new ArrayDeque<>();
+    private final LinkedHashSet<Long> a1out = new LinkedHashSet<>();
+    private final Lock lock = new ReentrantLock();
+
+    public TwoQueuePolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+    }
+
+    /**
+     * 新加载的元素进入策略
+     */
+    void admit(ConcurrentCache.CacheEntry<?> entry) {
+        lock.lock();
+        try {
+            if(a1out.remove(entry.key)) {
+                // 近期被淘汰过又被访问，视为热点
+                entry.hot = true;
+                am.addLast(entry);
+            } else {
+                entry.hot = false;
+                a1in.addLast(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 挑选一个牺牲者并将其移出队列，没有可驱逐的元素时返回 null
+     * @param resident 判断元素是否仍在缓存中，已不在缓存中的元素直接丢弃
+     */
+    ConcurrentCache.CacheEntry<?> victim(Predicate<ConcurrentCache.CacheEntry<?>> resident) {
+        lock.lock();
+        try {
+            // A1in 中的每个元素最多检查一次，Am 中的元素最多检查两次(第一次清除 referenced 位)
+            int budget = a1in.size() + 2 * am.size();
+            while(budget -- > 0) {
+                boolean fromIn = a1in.size() > kin || am.isEmpty();
+                ArrayDeque<ConcurrentCache.CacheEntry<?>> queue = fromIn ? a1in : am;
+                ConcurrentCache.CacheEntry<?> e = queue.pollFirst();
+                if(e == null) {
+                    queue = fromIn ? am : a1in;
+                    e = queue.pollFirst();
+                    if(e == null) {
+                        return null;
+                    }
+                }
+                if(!resident.test(e)) {
+                    continue;
+                }
+                if(e.refs.get() != 0) {
+                    // 被引用的元素不能驱逐，放回队尾
+                    queue.addLast(e);
+                    continue;
+                }
+                if(e.hot && e.referenced) {
+                    // 时钟指针经过，给第二次机会
+                    e.referenced = false;
+                    queue.addLast(e);
+                    continue;
+                }
+                return e;
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 牺牲者已被驱逐，从 A1in 淘汰的 key 记入 A1out
+     */
+    void evicted(ConcurrentCache.CacheEntry<?> entry) {
+        if(entry.hot) {
+            return;
+        }
+        lock.lock();
+        try {
+            a1out.add(entry.key);
+            if(a1out.size() > kout) {
+                Iterator<Long> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 牺牲者在驱逐前被重新引用，放回原队列
+     */
+    void reinsert(ConcurrentCache.CacheEntry<?> entry) {
+        lock.lock();
+        try {
+            if(entry.hot) {
+                am.addLast(entry);
+            } else {
+                a1in.addLast(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            a1in.clear();
+            am.clear();
+            a1out.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.rt.rtdb.backend.dm;
 
+import com.rt.rtdb.backend.common.CacheStats;
 import com.rt.rtdb.backend.dm.dataItem.DataItem;
 import com.rt.rtdb.backend.dm.logger.Logger;
 import com.rt.rtdb.backend.dm.page.PageOne;
@@ -13,7 +14,14 @@ import com.rt.rtdb.backend.tm.TransactionManager;
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    void free(long uid); // 释放不再被引用的数据项，空间和 uid 可被之后的插入复用
+    void logCommit(long xid); // 写入提交日志，返回时事务的提交已经持久
+    void logAbort(long xid); // 写入回滚日志
     void close();
+    CacheStats getPageCacheStats(); // 页面缓存的命中、未命中、驱逐计数
+    void checkpoint(); // 写回所有脏页并记录检查点，恢复时从检查点开始重放日志
+    void startCheckpoint(long intervalSeconds); // 启动后台刷盘和定期检查点
+    void prefetch(long uid); // 在后台把 uid 所在的页面读入页面缓存
 
     /**
      * 创建DataManager实例
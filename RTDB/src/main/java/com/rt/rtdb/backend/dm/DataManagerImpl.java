@@ -1,6 +1,7 @@
 package com.rt.rtdb.backend.dm;
 
-import com.rt.rtdb.backend.common.AbstractCache;
+import com.rt.rtdb.backend.common.CacheStats;
+import com.rt.rtdb.backend.common.ConcurrentCache;
 import com.rt.rtdb.backend.dm.dataItem.DataItem;
 import com.rt.rtdb.backend.dm.dataItem.DataItemImpl;
 import com.rt.rtdb.backend.dm.logger.Logger;
@@ -11,14 +12,28 @@ import com.rt.rtdb.backend.dm.pageCache.PageCache;
 import com.rt.rtdb.backend.dm.pageIndex.PageIndex;
 import com.rt.rtdb.backend.dm.pageIndex.PageInfo;
 import com.rt.rtdb.backend.tm.TransactionManager;
+import com.rt.rtdb.backend.tm.TransactionManagerImpl;
 import com.rt.rtdb.backend.utils.Panic;
 import com.rt.rtdb.backend.utils.Types;
 import com.rt.rtdb.common.Error;
 
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * @author RT666
  */
-public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
+public class DataManagerImpl extends ConcurrentCache<DataItem> implements DataManager {
 
     TransactionManager tm;
     PageCache pc;
@@ -26,12 +41,28 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     PageIndex pIndex;
     Page pageOne;
 
+    private static final long PAGE_FLUSH_INTERVAL = 1000; // 后台刷盘间隔，毫秒
+
+    // 事务写下第一条日志之前的日志末尾位置，检查点据此决定恢复时从哪里开始读取
+    private Map<Long, Long> firstLsn;
+    // 每个页面上被缓存的数据项的槽号，数据项直接引用页面数据，整理页面时不能移动它们
+    private Map<Integer, Set<Integer>> pageViews;
+    private Lock checkpointLock;
+    // 先写日志再修改页面的操作（插入、释放）持有读锁，检查点取恢复起点时持有写锁：
+    // 起点之前的日志对应的修改都已在页面中，随后的写回会把它们落盘
+    private ReadWriteLock applyLock;
+    private ScheduledExecutorService checkpointer; // 定期检查点线程
+
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.pageViews = new ConcurrentHashMap<>();
+        this.checkpointLock = new ReentrantLock();
+        this.applyLock = new ReentrantReadWriteLock();
     }
 
     /**
@@ -67,55 +98,168 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         }
 
         // 尝试获取可用页
-        PageInfo pi = null;
         for (int i = 0; i < 5; i++) {
-            pi = pIndex.select(raw.length); // 选择满足空间大小要求的页面
-            if (pi != null) {
-                break;
-            } else {
+            PageInfo pi = pIndex.select(raw.length); // 选择满足空间大小要求的页面
+            if (pi == null) {
                 int newPgno = pc.newPage(PageX.initRaw()); // 创建一个新页面
                 pIndex.add(newPgno, PageX.MAX_FREE_SPACE); // 将新页面添加到页面索引中
+                continue;
+            }
+            long uid = insertInto(pi.pgno, xid, raw);
+            if (uid != 0) {
+                return uid; // 返回插入数据项的唯一标识符
             }
         }
-        if (pi == null) {
-            throw Error.DatabaseBusyException; // 如果无法获取满足条件的页面，则抛出数据库繁忙异常
-        }
+        throw Error.DatabaseBusyException; // 如果无法获取满足条件的页面，则抛出数据库繁忙异常
+    }
 
-        Page pg = null;
-        int freeSpace = 0;
+    /**
+     * 在从页面索引中取出的页面上插入数据项，页面不在索引中时插入由当前线程独占
+     * 绕开正在使用的数据项整理后连续空闲区仍不足时放弃，返回 0
+     */
+    private long insertInto(int pgno, long xid, byte[] raw) throws Exception {
+        Page pg = pc.getPage(pgno); // 获取选定页面
+        int freeSpace = -1;
         try {
-            pg = pc.getPage(pi.pgno); // 获取选定页面
-            //先做日志
-            byte[] log = Recover.insertLog(xid, pg, raw); // 生成插入操作的日志记录
-            logger.log(log); // 记录日志
-            //再执行插入
-            short offset = PageX.insert(pg, raw); // 在页面中插入数据项
+            short position;
+            pg.lock(); // 整理页面与 getForCache 解析数据项互斥
+            try {
+                if (!PageX.fits(pg, raw.length)) {
+                    // 回收已释放的数据项占用的空间，正在使用的数据项保持原位
+                    PageX.compact(pg, pageViews.getOrDefault(pgno, Collections.emptySet()));
+                }
+                if (!PageX.fits(pg, raw.length)) {
+                    freeSpace = PageX.getContiguousFreeSpace(pg); // 整理后仍放不下时按连续空闲区放回索引
+                    return 0;
+                }
+                position = PageX.getInsertPosition(pg);
+            } finally {
+                pg.unlock();
+            }
+            // 写日志之前开始修改：并发的修改可能在插入生效前把 PageLSN 推过本条日志，
+            // 此时写出的页面不含插入，恢复时却会因 PageLSN 跳过它；插入生效之前后台刷盘不能拷贝页面
+            pg.startUpdate();
+            pg.setDirty(true);
+            applyLock.readLock().lock();
+            try {
+                //先做日志
+                byte[] log = Recover.insertLog(xid, pgno, position, raw); // 生成插入操作的日志记录
+                trackFirstLsn(xid);
+                long lsn = logger.log(log); // 记录日志
+                //再执行插入
+                pg.lock();
+                try {
+                    PageX.insert(pg, raw, position); // 在页面中插入数据项
+                    PageX.setPageLsn(pg, lsn);
+                } finally {
+                    pg.unlock();
+                }
+            } finally {
+                applyLock.readLock().unlock();
+                pg.endUpdate();
+            }
+            return Types.addressToUid(pgno, position);
+        } finally {
+            // 将取出的pg重新插入pIndex，与 free 更新空闲空间互斥
+            pg.lock();
+            try {
+                if (freeSpace < 0) {
+                    freeSpace = PageX.getFreeSpace(pg);
+                }
+                pIndex.add(pgno, freeSpace);
+            } finally {
+                pg.unlock();
+            }
             pg.release(); // 释放页面资源
-            return Types.addressToUid(pi.pgno, offset); // 返回插入数据项的唯一标识符
+        }
+    }
 
-        } finally {
-            // 将取出的pg重新插入pIndex
-            if (pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg)); // 如果页面存在，则将其添加回页面索引并更新空闲空间大小
-            } else {
-                pIndex.add(pi.pgno, freeSpace); // 如果页面不存在，则将空闲空间大小添加回页面索引
+    /**
+     * 释放数据项，它占用的空间和 uid 可被之后插入的数据项复用
+     * 调用方需保证之后不会再通过 uid 访问该数据项；旧格式的页面不回收空间
+     *
+     * @param uid 唯一标识符
+     */
+    @Override
+    public void free(long uid) {
+        int pgno = (int) (uid >>> 32);
+        short position = (short) (uid & ((1L << 16) - 1));
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        pg.startUpdate(); // 与 insertInto 相同，释放生效之前页面不能被写出
+        pg.setDirty(true);
+        applyLock.readLock().lock();
+        try {
+            // 释放不属于任何事务，恢复时总是重做
+            long lsn = logger.log(Recover.freeLog(uid));
+            pg.lock();
+            try {
+                PageX.free(pg, position);
+                PageX.setPageLsn(pg, lsn);
+                pIndex.update(pgno, PageX.getFreeSpace(pg));
+            } finally {
+                pg.unlock();
             }
+        } finally {
+            applyLock.readLock().unlock();
+            pg.endUpdate();
+            pg.release();
         }
     }
 
+    /**
+     * 写入提交日志，与事务的数据日志一起组提交落盘
+     * 提交日志也计入事务的第一条日志位置：检查点确认事务已结束、XID 文件已落盘之前不会删除它
+     */
+    @Override
+    public void logCommit(long xid) {
+        trackFirstLsn(xid);
+        logger.log(Recover.commitLog(xid));
+    }
+
+    /**
+     * 写入回滚日志
+     */
+    @Override
+    public void logAbort(long xid) {
+        trackFirstLsn(xid);
+        logger.log(Recover.abortLog(xid));
+    }
+
     /**
      * 关闭数据管理器
      */
     @Override
     public void close() {
+        if (checkpointer != null) {
+            checkpointer.shutdown(); // 停止定期检查点
+            try {
+                checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
         super.close(); // 关闭基类的资源
         logger.close(); // 关闭日志记录器
+        tm.force(); // 正常关闭后不再恢复，事务状态必须先落盘
 
         PageOne.setVcClose(pageOne); // 设置页面One为关闭状态
         pageOne.release(); // 释放页面One的资源
         pc.close(); // 关闭页面缓存
     }
 
+    /**
+     * 获取页面缓存的命中、未命中、驱逐计数
+     */
+    @Override
+    public CacheStats getPageCacheStats() {
+        return pc.getStats();
+    }
+
     /**
      * 记录数据项的操作到事务日志
      *
@@ -124,7 +268,85 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di); // 生成更新操作的日志记录
-        logger.log(log); // 记录日志
+        trackFirstLsn(xid);
+        long lsn = logger.log(log); // 记录日志
+        PageX.setPageLsn(di.page(), lsn);
+    }
+
+    /**
+     * 在事务写第一条日志之前记录当前日志末尾，该事务的所有日志都不早于这个位置
+     */
+    private void trackFirstLsn(long xid) {
+        if (xid != TransactionManagerImpl.SUPER_XID && !firstLsn.containsKey(xid)) {
+            firstLsn.putIfAbsent(xid, logger.size());
+        }
+    }
+
+    /**
+     * 做一次检查点
+     * 1. 等待已写日志、尚未修改页面的插入和释放完成（其中 SUPER_XID 的不在 firstLsn 中），
+     *    记录当前日志末尾，以及仍活跃事务中最早的日志位置，取较小者作为恢复起点。
+     *    更新日志在修改页面之后才写，日志写完之前页面处于修改中，写回会等待它完成
+     * 2. 写回所有脏页并 force，XID 文件也 force，此后起点之前的已结束事务的修改和状态都已落盘
+     * 3. 写入检查点日志，并在第一页中记录其位置
+     * 4. 删除恢复起点之前的旧日志段
+     */
+    @Override
+    public void checkpoint() {
+        checkpointLock.lock();
+        try {
+            long replayStart;
+            int pageNumber;
+            applyLock.writeLock().lock();
+            try {
+                replayStart = logger.size();
+                pageNumber = pc.getPageNumber();
+            } finally {
+                applyLock.writeLock().unlock();
+            }
+            Iterator<Map.Entry<Long, Long>> it = firstLsn.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, Long> e = it.next();
+                if (!tm.isActive(e.getKey())) {
+                    // 已结束的事务不再需要撤销
+                    it.remove();
+                } else {
+                    replayStart = Math.min(replayStart, e.getValue());
+                }
+            }
+            pc.flushDirtyPages(); // 批量写回脏页
+            tm.force(); // 起点之前结束的事务的提交、回滚日志将被删除，状态先落盘
+            long position = logger.log(Recover.checkpointLog(replayStart, pageNumber));
+            PageOne.setCheckpoint(pageOne, position);
+            pc.flushPage(pageOne); // 第一页落盘后检查点才生效
+            logger.purge(replayStart); // 检查点生效后，起点之前的日志不再需要
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * 启动后台刷盘和定期检查点
+     * @param intervalSeconds 检查点间隔，秒
+     */
+    @Override
+    public void startCheckpoint(long intervalSeconds) {
+        pc.startFlusher(PAGE_FLUSH_INTERVAL);
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 在后台把 uid 所在的页面读入页面缓存，供即将访问该数据项的顺序扫描使用
+     */
+    @Override
+    public void prefetch(long uid) {
+        int pgno = (int) (uid >>> 32); // 高32位为页面号
+        pc.prefetch(pgno, 1);
     }
 
     /**
@@ -145,11 +367,17 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short) (uid & ((1L << 16) - 1)); // 获取偏移量,保留uid的低16位作为偏移量
+        short position = (short) (uid & ((1L << 16) - 1)); // 获取位置,保留uid的低16位作为页内位置
         uid >>>= 32;//将高32位移出，得到低32位作为页面号
         int pgno = (int) (uid & ((1L << 32) - 1)); // 获取页面号
         Page pg = pc.getPage(pgno); // 获取页面
-        return DataItem.parseDataItem(pg, offset, this); // 解析数据项
+        pg.lock(); // 解析期间页面不能被整理
+        try {
+            pageViews.computeIfAbsent(pgno, k -> ConcurrentHashMap.newKeySet()).add(position & 0xffff);
+            return DataItem.parseDataItem(pg, position, this); // 解析数据项
+        } finally {
+            pg.unlock();
+        }
     }
 
 
@@ -160,7 +388,17 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     protected void releaseForCache(DataItem di) {
-        di.page().release(); // 释放数据项所在的页面
+        Page pg = di.page();
+        pg.lock();
+        try {
+            Set<Integer> slots = pageViews.get(pg.getPageNumber());
+            if (slots != null) {
+                slots.remove((int) (di.getUid() & 0xffff));
+            }
+        } finally {
+            pg.unlock();
+        }
+        pg.release(); // 释放数据项所在的页面
     }
 
 
@@ -3,18 +3,26 @@ package com.rt.rtdb.backend.dm;
 import com.google.common.primitives.Bytes;
 import com.rt.rtdb.backend.common.SubArray;
 import com.rt.rtdb.backend.dm.dataItem.DataItem;
+import com.rt.rtdb.backend.dm.logger.LogRecord;
 import com.rt.rtdb.backend.dm.logger.Logger;
 import com.rt.rtdb.backend.dm.page.Page;
+import com.rt.rtdb.backend.dm.page.PageOne;
 import com.rt.rtdb.backend.dm.page.PageX;
 import com.rt.rtdb.backend.dm.pageCache.PageCache;
 import com.rt.rtdb.backend.tm.TransactionManager;
+import com.rt.rtdb.backend.tm.TransactionManagerImpl;
 import com.rt.rtdb.backend.utils.Panic;
 import com.rt.rtdb.backend.utils.Parser;
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 /**
  * 恢复日志
+ *
+ * 事务的提交和回滚记录在日志中，XID 文件只在检查点和关闭时落盘，
+ * 恢复时先根据提交、回滚日志重建事务状态，再按状态决定重做还是撤销
  * @author ryh
  * @version 1.0
  * @since 1.0
@@ -24,44 +32,90 @@ public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_FREE = 3;
+    private static final byte LOG_TYPE_COMMIT = 4;
+    private static final byte LOG_TYPE_ABORT = 5;
+
+    // 第一条日志的 LSN，与旧格式中第一条日志在文件中的位置相同
+    private static final long LOG_START = 4;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
+    // position 为数据项在页面中的位置，旧格式页面为偏移量，槽页为槽号
     static class InsertLogInfo {
+        long lsn;
         long xid;
         int pgno;
-        short offset;
+        short position;
         byte[] raw;
     }
 
     static class UpdateLogInfo {
+        long lsn;
         long xid;
         int pgno;
-        short offset;
+        short position;
         byte[] oldRaw;
         byte[] newRaw;
     }
 
+    static class FreeLogInfo {
+        long lsn;
+        int pgno;
+        short position;
+    }
+
+    static class CheckpointLogInfo {
+        long replayStart;
+        int pageNumber;
+    }
+
+    /**
+     * 按 CPU 核数并行恢复
+     */
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+        recover(tm, lg, pc, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 恢复数据库
+     * @param parallelism 并行重放的线程数，不大于 1 时顺序扫描三遍日志
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, int parallelism) {
         System.out.println("恢复中...");
-        // 将日志指针倒回到起始位置
-        lg.rewind();
-        int maxPgno = 0;
-        while(true) {
-            // 逐条读取日志
-            byte[] log = lg.next();
-            if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                // 解析插入日志
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                // 解析更新日志
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
+        // 从最近一次检查点记录的位置开始重放，没有检查点时从第一个仍然存在的日志段开始
+        CheckpointLogInfo ci = readCheckpoint(lg, pc);
+        long start = ci == null ? LOG_START : ci.replayStart;
+        System.out.println("从日志位置 " + start + " 开始恢复");
+        // 检查点时已经落盘的页面不能被截断
+        int maxPgno = ci == null ? 0 : ci.pageNumber;
+        if(parallelism > 1) {
+            parallelRecover(tm, lg, pc, start, maxPgno, parallelism);
+        } else {
+            sequentialRecover(tm, lg, pc, start, maxPgno);
+        }
+        tm.force(); // 重建的和撤销后中止的事务状态落盘
+        System.out.println("恢复完成");
+    }
+
+    /**
+     * 顺序恢复：扫描日志求最大页号并重建事务状态，再分别扫描一遍做重做和撤销
+     */
+    private static void sequentialRecover(TransactionManager tm, Logger lg, PageCache pc, long start, int maxPgno) {
+        long t0 = System.nanoTime();
+        // 从重放起点开始映射遍历日志
+        Iterator<LogRecord> it = lg.scan(start);
+        while (it.hasNext()) {
+            LogRecord log = it.next();
+            if(isCheckpointLog(log)) continue;
+            if(isOutcomeLog(log)) {
+                applyOutcomeLog(tm, log);
+                continue;
             }
+            // 只读取页号，不拷贝日志数据
+            int pgno = pgnoOf(log);
             if(pgno > maxPgno) {
                 maxPgno = pgno;
             }
@@ -71,41 +125,139 @@ public class Recover {
         }
         // 截断页缓存
         pc.truncateByBgno(maxPgno);
-        System.out.println("截断至 " + maxPgno + " 页");
+        System.out.println("截断至 " + maxPgno + " 页，耗时 " + elapsedMillis(t0) + " ms");
         // 重做事务
-        redoTransactions(tm, lg, pc);
-        System.out.println("重做事务完成");
+        t0 = System.nanoTime();
+        redoTransactions(tm, lg, pc, start);
+        System.out.println("重做事务完成，耗时 " + elapsedMillis(t0) + " ms");
         // 撤销事务
-        undoTransactions(tm, lg, pc);
-        System.out.println("撤销事务完成");
+        t0 = System.nanoTime();
+        undoTransactions(tm, lg, pc, start);
+        System.out.println("撤销事务完成，耗时 " + elapsedMillis(t0) + " ms");
+    }
 
-        System.out.println("恢复完成");
+    /**
+     * 并行恢复：只扫描一遍日志，按页号把日志分桶，再在 fork-join 池中按页并行重放
+     *
+     * 每条日志只修改一个页面，不同页面的重放互不影响，
+     * 同一页面的日志由一个任务按日志顺序重做、按日志逆序撤销，
+     * 逆序撤销同一页面上所有活跃事务的日志，与逐个事务逆序撤销的结果相同
+     */
+    private static void parallelRecover(TransactionManager tm, Logger lg, PageCache pc, long start, int maxPgno, int parallelism) {
+        long t0 = System.nanoTime();
+        Map<Integer, List<LogRecord>> pageLogs = new HashMap<>();
+        // 从重放起点开始映射遍历日志
+        Iterator<LogRecord> it = lg.scan(start);
+        while (it.hasNext()) {
+            LogRecord log = it.next();
+            if(isCheckpointLog(log)) continue;
+            if(isOutcomeLog(log)) {
+                applyOutcomeLog(tm, log);
+                continue;
+            }
+            // 只读取页号，桶中保存的是映射中的切片
+            int pgno = pgnoOf(log);
+            if(pgno > maxPgno) {
+                maxPgno = pgno;
+            }
+            pageLogs.computeIfAbsent(pgno, k -> new ArrayList<>()).add(log);
+        }
+        // 提交、回滚日志可能在事务的数据日志之后，读完所有日志后才能按事务状态分桶
+        Map<Integer, List<LogRecord>> redoLogs = new HashMap<>();
+        Map<Integer, List<LogRecord>> undoLogs = new HashMap<>();
+        Map<Long, Boolean> active = new HashMap<>(); // 每个事务只查询一次状态
+        for(Entry<Integer, List<LogRecord>> e : pageLogs.entrySet()) {
+            for(LogRecord log : e.getValue()) {
+                Map<Integer, List<LogRecord>> logs = active.computeIfAbsent(xidOf(log), tm::isActive) ? undoLogs : redoLogs;
+                logs.computeIfAbsent(e.getKey(), k -> new ArrayList<>()).add(log);
+            }
+        }
+        if(maxPgno == 0) {
+            maxPgno = 1;
+        }
+        System.out.println("读取日志完成，需重做 " + redoLogs.size() + " 页、撤销 " + undoLogs.size() + " 页，耗时 " + elapsedMillis(t0) + " ms");
+
+        t0 = System.nanoTime();
+        pc.truncateByBgno(maxPgno);
+        System.out.println("截断至 " + maxPgno + " 页，耗时 " + elapsedMillis(t0) + " ms");
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            t0 = System.nanoTime();
+            replayPages(pool, pc, redoLogs, REDO);
+            System.out.println("重做事务完成，耗时 " + elapsedMillis(t0) + " ms");
+
+            t0 = System.nanoTime();
+            replayPages(pool, pc, undoLogs, UNDO);
+            for(Entry<Long, Boolean> e : active.entrySet()) {
+                if(e.getValue()) {
+                    // 中止事务
+                    tm.abort(e.getKey());
+                }
+            }
+            System.out.println("撤销事务完成，耗时 " + elapsedMillis(t0) + " ms");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 每个页面一个任务，页面只获取一次，重做时按日志顺序，撤销时按日志逆序，等待所有页面完成
+     */
+    private static void replayPages(ForkJoinPool pool, PageCache pc, Map<Integer, List<LogRecord>> pageLogs, int flag) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(pageLogs.size());
+        for(Entry<Integer, List<LogRecord>> e : pageLogs.entrySet()) {
+            int pgno = e.getKey();
+            List<LogRecord> logs = e.getValue();
+            tasks.add(pool.submit(() -> {
+                Page pg = null;
+                try {
+                    pg = pc.getPage(pgno);
+                } catch (Exception ex) {
+                    Panic.panic(ex);
+                }
+                try {
+                    for(int i = 0; i < logs.size(); i ++) {
+                        LogRecord log = logs.get(flag == REDO ? i : logs.size() - 1 - i);
+                        if(isInsertLog(log)) {
+                            applyInsertLog(pg, parseInsertLog(log), flag);
+                        } else if(isFreeLog(log)) {
+                            applyFreeLog(pg, parseFreeLog(log));
+                        } else {
+                            applyUpdateLog(pg, parseUpdateLog(log), flag);
+                        }
+                    }
+                } finally {
+                    pg.release();
+                }
+            }));
+        }
+        for(ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
     }
 
     // 重做事务的方法
-    private static void redoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
-        // 将日志指针倒回到起始位置
-        lg.rewind();
-        while (true) {
-            // 逐条读取日志
-            byte[] log = lg.next();
-            if (log == null) break;
+    private static void redoTransactions(TransactionManager tm, Logger lg, PageCache pc, long start) {
+        // 从重放起点开始映射遍历日志
+        Iterator<LogRecord> it = lg.scan(start);
+        while (it.hasNext()) {
+            LogRecord log = it.next();
+            if (isCheckpointLog(log) || isOutcomeLog(log)) continue;
+            if (tm.isActive(xidOf(log))) continue;
             if (isInsertLog(log)) {
-                // 解析插入日志
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (!tm.isActive(xid)) {
-                    // 如果事务不处于活动状态，则执行重做插入日志操作
-                    doInsertLog(pc, log, REDO);
-                }
+                // 如果事务不处于活动状态，则执行重做插入日志操作
+                doInsertLog(pc, log, REDO);
+            } else if (isFreeLog(log)) {
+                // 释放日志不属于任何事务，总是重做
+                doFreeLog(pc, log);
             } else {
-                // 解析更新日志
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if (!tm.isActive(xid)) {
-                    // 如果事务不处于活动状态，则执行重做更新日志操作
-                    doUpdateLog(pc, log, REDO);
-                }
+                // 如果事务不处于活动状态，则执行重做更新日志操作
+                doUpdateLog(pc, log, REDO);
             }
         }
     }
@@ -115,47 +267,32 @@ public class Recover {
      * @param tm 事务管理器
      * @param lg 日志记录器
      * @param pc 页面缓存对象
+     * @param start 重放起点
      */
-    private static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
+    private static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc, long start) {
         // 创建日志缓存，用于按事务 ID 存储相关日志
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        // 将日志记录器回溯到起始位置
-        lg.rewind();
-        // 循环读取日志
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) break;
-            if (isInsertLog(log)) {
-                // 如果是插入日志
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if (tm.isActive(xid)) {
-                    // 如果事务是活动状态，则将日志添加到对应事务的日志列表中
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            } else {
-                // 如果是更新日志
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if (tm.isActive(xid)) {
-                    // 如果事务是活动状态，则将日志添加到对应事务的日志列表中
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+        Map<Long, List<LogRecord>> logCache = new HashMap<>();
+        // 从重放起点开始映射遍历日志
+        Iterator<LogRecord> it = lg.scan(start);
+        while (it.hasNext()) {
+            LogRecord log = it.next();
+            if (isCheckpointLog(log) || isOutcomeLog(log)) continue;
+            long xid = xidOf(log);
+            if (tm.isActive(xid)) {
+                // 如果事务是活动状态，则将日志添加到对应事务的日志列表中
+                if (!logCache.containsKey(xid)) {
+                    logCache.put(xid, new ArrayList<>());
                 }
+                logCache.get(xid).add(log);
             }
         }
 
         // 对所有活动事务的日志进行倒序撤销操作
-        for (Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
+        for (Entry<Long, List<LogRecord>> entry : logCache.entrySet()) {
             //获取日志列表
-            List<byte[]> logs = entry.getValue();
+            List<LogRecord> logs = entry.getValue();
             for (int i = logs.size() - 1; i >= 0; i--) {
-                byte[] log = logs.get(i);
+                LogRecord log = logs.get(i);
                 if (isInsertLog(log)) {
                     // 如果是插入日志，则执行插入日志的撤销操作
                     doInsertLog(pc, log, UNDO);
@@ -172,12 +309,114 @@ public class Recover {
 
     /**
      * 判断日志是否为插入日志
-     * @param log 日志字节数组
+     * @param log 日志数据
      * @return 如果是插入日志返回true，否则返回false
      */
-    private static boolean isInsertLog(byte[] log) {
+    private static boolean isInsertLog(LogRecord log) {
         // 判断日志类型是否为插入日志
-        return log[0] == LOG_TYPE_INSERT;
+        return log.get(OF_TYPE) == LOG_TYPE_INSERT;
+    }
+
+    /**
+     * 判断日志是否为释放日志
+     */
+    private static boolean isFreeLog(LogRecord log) {
+        return log.get(OF_TYPE) == LOG_TYPE_FREE;
+    }
+
+    /**
+     * 判断日志是否为检查点日志
+     */
+    private static boolean isCheckpointLog(LogRecord log) {
+        return log.get(OF_TYPE) == LOG_TYPE_CHECKPOINT;
+    }
+
+    /**
+     * 判断日志是否为提交或回滚日志
+     */
+    private static boolean isOutcomeLog(LogRecord log) {
+        byte type = log.get(OF_TYPE);
+        return type == LOG_TYPE_COMMIT || type == LOG_TYPE_ABORT;
+    }
+
+    /**
+     * 插入、更新、释放、提交和回滚日志的事务 ID，直接从映射中读取
+     */
+    private static long xidOf(LogRecord log) {
+        return log.getLong(OF_XID);
+    }
+
+    /**
+     * 插入、更新和释放日志修改的页号，直接从映射中读取
+     */
+    private static int pgnoOf(LogRecord log) {
+        if(isInsertLog(log)) {
+            return log.getInt(OF_INSERT_PGNO);
+        }
+        if(isFreeLog(log)) {
+            return (int)(log.getLong(OF_FREE_UID) >>> 32);
+        }
+        return (int)(log.getLong(OF_UPDATE_UID) >>> 32);
+    }
+
+    /**
+     * 槽页记录了最后应用的日志，重做时跳过已经反映在页面中的日志
+     * 旧格式的页面 PageLSN 为 0，日志总是被重做
+     */
+    private static boolean alreadyApplied(Page pg, long lsn) {
+        return lsn <= PageX.getPageLsn(pg);
+    }
+
+    // [LogType] [ReplayStart] [PageNumber]
+    // ReplayStart 为恢复时开始重放的位置：检查点之前的修改都已落盘，
+    // 但检查点时仍活跃的事务可能在更早的位置写过日志，撤销时需要从那里开始读取
+    private static final int OF_CKPT_START = 1;
+    private static final int OF_CKPT_PAGES = OF_CKPT_START+8;
+    private static final int LEN_CKPT = OF_CKPT_PAGES+4;
+
+    /**
+     * 生成检查点日志
+     * @param replayStart 恢复时开始重放的位置
+     * @param pageNumber 检查点时数据库文件的页数
+     * @return 检查点日志
+     */
+    public static byte[] checkpointLog(long replayStart, int pageNumber) {
+        byte[] logType = {LOG_TYPE_CHECKPOINT};
+        return Bytes.concat(logType, Parser.long2Byte(replayStart), Parser.int2Byte(pageNumber));
+    }
+
+    /**
+     * 读取第一页中记录的最近一次检查点日志
+     * @return 检查点信息，没有有效的检查点时返回 null
+     */
+    private static CheckpointLogInfo readCheckpoint(Logger lg, PageCache pc) {
+        Page pageOne = null;
+        try {
+            pageOne = pc.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        long position;
+        try {
+            position = PageOne.getCheckpoint(pageOne);
+        } finally {
+            pageOne.release();
+        }
+        if(position < LOG_START) {
+            return null;
+        }
+        Iterator<LogRecord> it = lg.scan(position);
+        if(!it.hasNext()) {
+            return null;
+        }
+        LogRecord log = it.next();
+        if(log.lsn != position || log.length() != LEN_CKPT || !isCheckpointLog(log)) {
+            return null;
+        }
+        CheckpointLogInfo ci = new CheckpointLogInfo();
+        ci.replayStart = log.getLong(OF_CKPT_START);
+        ci.pageNumber = log.getInt(OF_CKPT_PAGES);
+        return ci;
     }
 
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
@@ -201,20 +440,21 @@ public class Recover {
      * @param log 日志数据
      * @return 更新日志信息对象
      */
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
+    private static UpdateLogInfo parseUpdateLog(LogRecord log) {
         UpdateLogInfo li = new UpdateLogInfo(); // 创建更新日志信息对象
+        li.lsn = log.lsn;
         // 解析 xid 字段
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
+        li.xid = log.getLong(OF_XID);
         // 解析 uid 字段
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1)); // 计算 offset 值
-        uid >>>= 16; // 将 uid 右移 16 位
+        long uid = log.getLong(OF_UPDATE_UID);
+        li.position = (short)(uid & ((1L << 16) - 1)); // 计算 position 值
+        uid >>>= 32; // 将 uid 右移 32 位
         li.pgno = (int)(uid & ((1L << 32) - 1)); // 计算 pgno 值
-        int length = (log.length - OF_UPDATE_RAW) / 2; // 计算原始数据长度
+        int length = (log.length() - OF_UPDATE_RAW) / 2; // 计算原始数据长度
         // 提取旧的原始数据
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW + length);
+        li.oldRaw = log.copyOfRange(OF_UPDATE_RAW, OF_UPDATE_RAW + length);
         // 提取新的原始数据
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
+        li.newRaw = log.copyOfRange(OF_UPDATE_RAW + length, OF_UPDATE_RAW + length * 2);
         return li; // 返回更新日志信息对象
     }
 
@@ -225,85 +465,86 @@ public class Recover {
      * @param log 日志数据
      * @param flag 操作标志，REDO 表示重做操作，UNDO 表示撤销操作
      */
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if (flag == REDO) {
-            // 重做操作，解析更新日志的相关信息
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
-        } else {
-            // 撤销操作，解析更新日志的相关信息
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
-        }
-
+    private static void doUpdateLog(PageCache pc, LogRecord log, int flag) {
+        // 解析更新日志的相关信息
+        UpdateLogInfo xi = parseUpdateLog(log);
         Page pg = null;
         try {
-            pg = pc.getPage(pgno);
+            pg = pc.getPage(xi.pgno);
         } catch (Exception e) {
             Panic.panic(e);
         }
 
         try {
-            // 调用 PageX 类的 recoverUpdate() 方法执行更新操作
-            PageX.recoverUpdate(pg, raw, offset);
+            applyUpdateLog(pg, xi, flag);
         } finally {
             pg.release();
         }
     }
 
+    /**
+     * 在已获取的页面上执行更新日志的操作（重做或撤销）
+     */
+    private static void applyUpdateLog(Page pg, UpdateLogInfo xi, int flag) {
+        if(flag == REDO) {
+            if(alreadyApplied(pg, xi.lsn)) return;
+            // 重做操作写入新数据
+            PageX.recoverUpdate(pg, xi.newRaw, xi.position);
+            PageX.setPageLsn(pg, xi.lsn);
+        } else {
+            // 撤销操作写回旧数据
+            PageX.recoverUpdate(pg, xi.oldRaw, xi.position);
+        }
+    }
+
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Position] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID+8;
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
-    private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
+    private static final int OF_INSERT_POSITION = OF_INSERT_PGNO+4;
+    private static final int OF_INSERT_RAW = OF_INSERT_POSITION+2;
 
     /**
      * 插入日志
      * @param xid 事务ID
-     * @param pg 页面对象
+     * @param pgno 页面号
+     * @param position 插入位置，由 PageX.getInsertPosition 得到
      * @param raw 原始数据
      * @return 插入的日志数据
      */
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+    public static byte[] insertLog(long xid, int pgno, short position, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT}; // 日志类型为插入
         byte[] xidRaw = Parser.long2Byte(xid); // 将事务ID转换为字节数组
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber()); // 将页面号转换为字节数组
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg)); // 将页面中的FSO（Free Space Offset）转换为字节数组
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw); // 拼接日志数据并返回
+        byte[] pgnoRaw = Parser.int2Byte(pgno); // 将页面号转换为字节数组
+        byte[] positionRaw = Parser.short2Byte(position); // 将插入位置转换为字节数组
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, positionRaw, raw); // 拼接日志数据并返回
     }
 
     /**
      * 解析插入日志
-     * @param log 日志字节数组
+     * @param log 日志数据
      * @return 解析后的插入日志信息
      */
-    private static InsertLogInfo parseInsertLog(byte[] log) {
+    private static InsertLogInfo parseInsertLog(LogRecord log) {
         InsertLogInfo li = new InsertLogInfo();
+        li.lsn = log.lsn;
         // 解析事务 ID
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
+        li.xid = log.getLong(OF_XID);
         // 解析页号
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        // 解析偏移量
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.pgno = log.getInt(OF_INSERT_PGNO);
+        // 解析插入位置
+        li.position = log.getShort(OF_INSERT_POSITION);
         // 解析原始数据
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        li.raw = log.copyOfRange(OF_INSERT_RAW, log.length());
         return li;
     }
 
     /**
      * 执行插入日志操作
      * @param pc 页面缓存对象
-     * @param log 日志字节数组
+     * @param log 日志数据
      * @param flag 操作标志，指示是重做操作还是撤销操作
      */
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
+    private static void doInsertLog(PageCache pc, LogRecord log, int flag) {
         InsertLogInfo li = parseInsertLog(log);
         Page pg = null;
         try {
@@ -314,16 +555,109 @@ public class Recover {
             Panic.panic(e);
         }
         try {
-            if(flag == UNDO) {
-                // 如果是撤销操作，则将数据项标记为无效
-                DataItem.setDataItemRawInvalid(li.raw);
-            }
-            // 执行页面的插入恢复操作
-            PageX.recoverInsert(pg, li.raw, li.offset);
+            applyInsertLog(pg, li, flag);
         } finally {
             // 释放页面资源
             pg.release();
         }
     }
 
+    /**
+     * 在已获取的页面上执行插入日志的操作（重做或撤销）
+     */
+    private static void applyInsertLog(Page pg, InsertLogInfo li, int flag) {
+        if(flag == UNDO) {
+            // 如果是撤销操作，则将数据项标记为无效
+            DataItem.setDataItemRawInvalid(li.raw);
+        } else if(alreadyApplied(pg, li.lsn)) {
+            return;
+        }
+        // 执行页面的插入恢复操作
+        PageX.recoverInsert(pg, li.raw, li.position);
+        if(flag == REDO) {
+            PageX.setPageLsn(pg, li.lsn);
+        }
+    }
+
+    // [LogType] [XID] [UID]
+    // 释放日志的 XID 总是超级事务，恢复时只重做
+    private static final int OF_FREE_UID = OF_XID+8;
+
+    /**
+     * 释放日志
+     * @param uid 被释放的数据项
+     * @return 释放的日志数据
+     */
+    public static byte[] freeLog(long uid) {
+        byte[] logTypeRaw = {LOG_TYPE_FREE};
+        byte[] xidRaw = Parser.long2Byte(TransactionManagerImpl.SUPER_XID);
+        return Bytes.concat(logTypeRaw, xidRaw, Parser.long2Byte(uid));
+    }
+
+    private static FreeLogInfo parseFreeLog(LogRecord log) {
+        FreeLogInfo li = new FreeLogInfo();
+        li.lsn = log.lsn;
+        long uid = log.getLong(OF_FREE_UID);
+        li.position = (short)(uid & ((1L << 16) - 1));
+        li.pgno = (int)(uid >>> 32);
+        return li;
+    }
+
+    /**
+     * 重做释放日志
+     */
+    private static void doFreeLog(PageCache pc, LogRecord log) {
+        FreeLogInfo li = parseFreeLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(li.pgno);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            applyFreeLog(pg, li);
+        } finally {
+            pg.release();
+        }
+    }
+
+    private static void applyFreeLog(Page pg, FreeLogInfo li) {
+        if(alreadyApplied(pg, li.lsn)) return;
+        PageX.recoverFree(pg, li.position);
+        PageX.setPageLsn(pg, li.lsn);
+    }
+
+    // [LogType] [XID]
+    // 返回时日志已落盘，事务即已提交或回滚，XID 文件之后才写入且不 force
+
+    /**
+     * 提交日志
+     * @param xid 提交的事务
+     */
+    public static byte[] commitLog(long xid) {
+        byte[] logTypeRaw = {LOG_TYPE_COMMIT};
+        return Bytes.concat(logTypeRaw, Parser.long2Byte(xid));
+    }
+
+    /**
+     * 回滚日志
+     * @param xid 回滚的事务
+     */
+    public static byte[] abortLog(long xid) {
+        byte[] logTypeRaw = {LOG_TYPE_ABORT};
+        return Bytes.concat(logTypeRaw, Parser.long2Byte(xid));
+    }
+
+    /**
+     * 将提交、回滚日志记录的结果补写到 XID 文件中尚未落盘的事务
+     */
+    private static void applyOutcomeLog(TransactionManager tm, LogRecord log) {
+        long xid = xidOf(log);
+        if(!tm.isActive(xid)) return;
+        if(log.get(OF_TYPE) == LOG_TYPE_COMMIT) {
+            tm.commit(xid);
+        } else {
+            tm.abort(xid);
+        }
+    }
 }
@@ -4,11 +4,14 @@ import com.google.common.primitives.Bytes;
 import com.rt.rtdb.backend.common.SubArray;
 import com.rt.rtdb.backend.dm.DataManagerImpl;
 import com.rt.rtdb.backend.dm.page.Page;
+import com.rt.rtdb.backend.dm.page.PageX;
 import com.rt.rtdb.backend.utils.Parser;
 import com.rt.rtdb.backend.utils.Types;
 import java.util.Arrays;
 
 public interface DataItem {
+    int HEADER_SIZE = DataItemImpl.OF_DATA; // 数据项头部的长度，数据之前的有效标志和长度
+
     SubArray data();
     void before();
     void unBefore();
@@ -19,6 +22,8 @@ public interface DataItem {
     void unlock();
     void rLock();
     void rUnLock();
+    long tryOptimisticRead(); // 乐观读的版本戳，正在被修改时返回0
+    boolean validate(long stamp); // 取得版本戳之后没有被修改时返回true
 
     Page page();
     long getUid();
@@ -36,19 +41,26 @@ public interface DataItem {
     }
 
     /**
-     * 从页面的offset处解析出DataItem对象
+     * 从页面的position处解析出DataItem对象
      * @param pg 页面对象
-     * @param offset 偏移量
+     * @param position 数据项在页面中的位置，旧格式页面为偏移量，槽页为槽号
      * @param dm DataManagerImpl对象
      * @return 解析出的DataItem对象
      */
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    public static DataItem parseDataItem(Page pg, short position, DataManagerImpl dm) {
+        long uid = Types.addressToUid(pg.getPageNumber(), position); // 根据页面号和位置计算数据项的唯一标识符
+        int offset = PageX.getOffset(pg, position); // 槽页中数据项的偏移可能因页内整理而改变
+        if (offset == 0) {
+            // 数据项已被释放，返回一个不在页面中的无效数据项
+            byte[] freed = new byte[DataItemImpl.OF_DATA];
+            setDataItemRawInvalid(freed);
+            return new DataItemImpl(new SubArray(freed, 0, freed.length), new byte[freed.length], pg, uid, dm);
+        }
         byte[] raw = pg.getData(); // 获取页面的原始数据字节数组
         // 从原始数据中解析出数据项的大小
         short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE,
                 offset+DataItemImpl.OF_DATA));
         short length = (short)(size + DataItemImpl.OF_DATA); // 计算数据项的总长度
-        long uid = Types.addressToUid(pg.getPageNumber(), offset); // 根据页面号和偏移量计算数据项的唯一标识符
         // 创建并返回DataItemImpl对象
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
     }
@@ -6,8 +6,7 @@ import com.rt.rtdb.backend.dm.DataManagerImpl;
 import com.rt.rtdb.backend.dm.page.Page;
 
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 
 /**
@@ -15,6 +14,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * [ValidFlag] [DataSize] [Data]
  * ValidFlag 1字节，0为合法，1为非法
  * DataSize  2字节，标识Data的长度
+ *
+ * 读写锁为 StampedLock，其状态即数据项的版本：每次加写锁都会使之前取得的乐观读版本戳失效。
+ * 读锁和写锁都不可重入
  */
 public class DataItemImpl implements DataItem {
 
@@ -24,6 +26,7 @@ public class DataItemImpl implements DataItem {
 
     private SubArray raw;
     private byte[] oldRaw;
+    private StampedLock lock;
     private Lock rLock;
     private Lock wLock;
     private DataManagerImpl dm;
@@ -36,9 +39,9 @@ public class DataItemImpl implements DataItem {
     public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw; // 当前数据项的字节数组
         this.oldRaw = oldRaw; // 旧的数据项字节数组备份
-        ReadWriteLock lock = new ReentrantReadWriteLock(); // 创建读写锁
-        rLock = lock.readLock(); // 读锁
-        wLock = lock.writeLock(); // 写锁
+        lock = new StampedLock(); // 创建读写锁
+        rLock = lock.asReadLock(); // 读锁
+        wLock = lock.asWriteLock(); // 写锁
         this.dm = dm; // DataManagerImpl对象
         this.uid = uid; // 数据项的唯一标识符
         this.pg = pg; // 页面对象
@@ -62,6 +65,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void before() {
         wLock.lock(); // 获取写锁
+        pg.startUpdate(); // 日志写入前页面不能被后台刷盘写出
         pg.setDirty(true); // 设置页面为已修改状态
         // 备份当前数据项字节数组到旧的数据项字节数组
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
@@ -71,12 +75,15 @@ public class DataItemImpl implements DataItem {
     public void unBefore() {
         // 将旧的数据项字节数组还原到当前数据项字节数组
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        pg.endUpdate(); // 结束本次修改
         wLock.unlock(); // 释放写锁
     }
 
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this); // 在事务日志中记录数据项的操作
+        pg.setDirty(true); // 日志落盘后再次标记，防止修改期间被刷盘清除
+        pg.endUpdate(); // 结束本次修改
         wLock.unlock(); // 释放写锁
     }
 
@@ -105,6 +112,16 @@ public class DataItemImpl implements DataItem {
         rLock.unlock(); // 释放读锁
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        return lock.tryOptimisticRead(); // 有写者时返回0
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return lock.validate(stamp); // 期间没有写锁被获取过
+    }
+
     @Override
     public Page page() {
         return pg; // 返回数据项所在的页面对象
@@ -0,0 +1,105 @@
+package com.rt.rtdb.backend.dm.logger;
+
+import com.rt.rtdb.backend.utils.Panic;
+import com.rt.rtdb.backend.utils.Parser;
+import com.rt.rtdb.common.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * 将旧格式的单文件日志一次性转换为日志段
+ *
+ * 旧格式为：
+ *
+ * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
+ *
+ * 每条日志为 [Size] [Checksum] [Data]，Checksum 为自定义的乘法散列
+ *
+ * 转换后每条日志的长度不变，新段的 BaseLSN 取旧文件中第一条日志的位置，
+ * 因此所有日志的 LSN 与原来在文件中的位置相同，已记录的检查点位置依然有效
+ */
+class LegacyLogConverter {
+
+    private static final int SEED = 13331;
+    private static final int LEN_XCHECKSUM = 4;
+
+    private static final int OF_SIZE = 0;
+    private static final int OF_CHECKSUM = OF_SIZE + 4;
+    private static final int OF_DATA = OF_CHECKSUM + 4;
+
+    /**
+     * 转换旧格式日志，先写临时文件，落盘后原子替换原文件
+     */
+    static void convert(File f) throws IOException {
+        File tmp = new File(f.getPath() + ".convert");
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            long size = raf.length();
+            if(size < LEN_XCHECKSUM) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            byte[] raw = new byte[LEN_XCHECKSUM];
+            raf.readFully(raw);
+            int xChecksum = Parser.parseInt(raw);
+
+            LogSegment seg = LogSegment.create(tmp, LEN_XCHECKSUM);
+            try {
+                long position = LEN_XCHECKSUM;
+                int xCheck = 0;
+                while(true) {
+                    byte[] log = next(raf, position, size);
+                    if(log == null) {
+                        break;
+                    }
+                    xCheck = calChecksum(xCheck, log);
+                    byte[] data = Arrays.copyOfRange(log, OF_DATA, log.length);
+                    seg.fc.write(ByteBuffer.wrap(LoggerImpl.wrapLog(data)), seg.fileOffset(position));
+                    position += log.length;
+                }
+                // 与旧实现一致，总校验和不匹配时认为日志文件损坏
+                if(xCheck != xChecksum) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+                seg.fc.force(false);
+            } finally {
+                seg.close();
+            }
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取旧格式中 position 处的一条日志，遇到文件末尾或损坏的尾部返回 null
+     */
+    private static byte[] next(RandomAccessFile raf, long position, long size) throws IOException {
+        if(position + OF_DATA >= size) {
+            return null;
+        }
+        raf.seek(position);
+        int len = raf.readInt();
+        if(len < 0 || position + len + OF_DATA > size) {
+            return null;
+        }
+        byte[] log = new byte[OF_DATA + len];
+        raf.seek(position);
+        raf.readFully(log);
+        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
+        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        if(checkSum1 != checkSum2) {
+            return null;
+        }
+        return log;
+    }
+
+    private static int calChecksum(int xCheck, byte[] log) {
+        for (byte b : log) {
+            xCheck = xCheck * SEED + b;
+        }
+        return xCheck;
+    }
+}
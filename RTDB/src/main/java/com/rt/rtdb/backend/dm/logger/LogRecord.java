@@ -0,0 +1,67 @@
+package com.rt.rtdb.backend.dm.logger;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 映射日志段中的一条日志数据，不拷贝
+ *
+ * buf 为整个日志段的只读映射，[start, end) 为这条日志的 Data 部分，
+ * 以下读取方法的下标都相对于 start
+ */
+public class LogRecord {
+    public final long lsn;       // 日志的 LSN
+    public final ByteBuffer buf;
+    public final int start;
+    public final int end;
+
+    LogRecord(long lsn, ByteBuffer buf, int start, int end) {
+        this.lsn = lsn;
+        this.buf = buf;
+        this.start = start;
+        this.end = end;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public byte get(int i) {
+        return buf.get(start + i);
+    }
+
+    public short getShort(int i) {
+        return buf.getShort(start + i);
+    }
+
+    public int getInt(int i) {
+        return buf.getInt(start + i);
+    }
+
+    public long getLong(int i) {
+        return buf.getLong(start + i);
+    }
+
+    /**
+     * 拷贝出 [from, to) 的数据
+     */
+    public byte[] copyOfRange(int from, int to) {
+        byte[] raw = new byte[to - from];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(start + from);
+        dup.get(raw);
+        return raw;
+    }
+
+    /**
+     * 拷贝出整条日志数据
+     */
+    public byte[] toBytes() {
+        return copyOfRange(0, length());
+    }
+
+    @Override
+    public String toString() {
+        return "LogRecord{lsn=" + lsn + ", data=" + Arrays.toString(toBytes()) + "}";
+    }
+}
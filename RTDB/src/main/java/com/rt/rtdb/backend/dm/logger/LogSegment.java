@@ -0,0 +1,155 @@
+package com.rt.rtdb.backend.dm.logger;
+
+import com.rt.rtdb.backend.utils.Parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 日志段文件
+ *
+ * [Magic] [Version] [BaseLSN] [Log1] [Log2] ... [LogN] [BadTail]
+ *
+ * Magic 4字节，Version 4字节，BaseLSN 8字节，为段内第一条日志的 LSN
+ * LSN 是日志在整个日志流中的位置，段内日志在文件中的偏移为 HEADER_SIZE + (LSN - BaseLSN)
+ *
+ * 正在写入的段为 path.log，写满后改名为 path.log.[BaseLSN] 成为只读的旧段，
+ * 相邻两段首尾相接：后一段的 BaseLSN 等于前一段的末尾
+ */
+class LogSegment {
+
+    static final int MAGIC = 0x52544C47; // "RTLG"
+    static final int VERSION = 1;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_BASE = OF_VERSION + 4;
+    static final int HEADER_SIZE = OF_BASE + 8;
+
+    final File file;
+    final long base;           // 段内第一条日志的 LSN
+    RandomAccessFile raf;
+    FileChannel fc;
+    volatile long end;         // 段内可读日志的末尾 LSN
+
+    private LogSegment(File file, long base, RandomAccessFile raf) {
+        this.file = file;
+        this.base = base;
+        this.raf = raf;
+        this.fc = raf.getChannel();
+        this.end = base;
+    }
+
+    /**
+     * 创建一个新的空日志段，写入段头并落盘
+     */
+    static LogSegment create(File f, long base) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(0);
+        LogSegment seg = new LogSegment(f, base, raf);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(base).flip();
+        seg.fc.write(header, 0);
+        seg.fc.force(false);
+        return seg;
+    }
+
+    /**
+     * 先在临时文件中创建空段，落盘后原子改名为 f，崩溃后 f 要么不存在，要么是完整的段
+     */
+    static LogSegment createAtomically(File f, long base) throws IOException {
+        File tmp = tmpFile(f);
+        create(tmp, base).close();
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return open(f);
+    }
+
+    static File tmpFile(File f) {
+        return new File(f.getPath() + ".new");
+    }
+
+    /**
+     * 打开已有的日志段，可读末尾为文件末尾，调用方负责校验尾部
+     */
+    static LogSegment open(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        byte[] header = new byte[HEADER_SIZE];
+        raf.readFully(header);
+        long base = Parser.parseLong(Arrays.copyOfRange(header, OF_BASE, HEADER_SIZE));
+        LogSegment seg = new LogSegment(f, base, raf);
+        seg.end = base + raf.length() - HEADER_SIZE;
+        return seg;
+    }
+
+    /**
+     * 判断文件是否以日志段头开始，旧格式的单文件日志以 XChecksum 开始
+     */
+    static boolean isSegment(File f) throws IOException {
+        if(f.length() < HEADER_SIZE) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            byte[] header = new byte[OF_BASE];
+            raf.readFully(header);
+            return Parser.parseInt(Arrays.copyOfRange(header, OF_MAGIC, OF_VERSION)) == MAGIC
+                    && Parser.parseInt(Arrays.copyOfRange(header, OF_VERSION, OF_BASE)) == VERSION;
+        }
+    }
+
+    /**
+     * 正在写入的段写满后改名成的文件，文件名中的 BaseLSN 补零到固定宽度以便按名字排序
+     */
+    static File sealedFile(File active, long base) {
+        return new File(active.getPath() + "." + String.format("%020d", base));
+    }
+
+    /**
+     * 列出正在写入的段旁边所有已写满的旧段
+     */
+    static List<File> listSealed(File active) {
+        List<File> files = new ArrayList<>();
+        File dir = active.getAbsoluteFile().getParentFile();
+        String prefix = active.getName() + ".";
+        File[] all = dir.listFiles();
+        if(all == null) {
+            return files;
+        }
+        for(File f : all) {
+            String name = f.getName();
+            if(name.length() == prefix.length() + 20 && name.startsWith(prefix)
+                    && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                files.add(f);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * 只读映射段内从 from 开始、长度为 length 的日志，映射中的下标 i 对应 LSN 为 from + i
+     * 映射在文件通道关闭后依然有效
+     */
+    MappedByteBuffer map(long from, int length) throws IOException {
+        return fc.map(FileChannel.MapMode.READ_ONLY, fileOffset(from), length);
+    }
+
+    /**
+     * 日志在段文件中的偏移
+     */
+    long fileOffset(long lsn) {
+        return HEADER_SIZE + (lsn - base);
+    }
+
+    void close() throws IOException {
+        fc.close();
+        raf.close();
+    }
+}
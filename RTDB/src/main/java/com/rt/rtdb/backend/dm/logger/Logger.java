@@ -2,23 +2,29 @@ package com.rt.rtdb.backend.dm.logger;
 
 import com.rt.rtdb.common.Error;
 import com.rt.rtdb.backend.utils.Panic;
-import com.rt.rtdb.backend.utils.Parser;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 public interface Logger {
-    void log(byte[] data);  // 记录日志
+    long log(byte[] data);  // 记录日志，返回该条日志的 LSN
+
+    long size();  // 日志末尾的位置，下一条日志将写在这里
 
     void truncate(long x) throws Exception;  // 截断日志
 
     byte[] next();  // 获取下一个日志
 
-    void rewind();  // 回到日志的起始位置
+    void rewind();  // 回到第一个仍然存在的日志段的起始位置
+
+    void seek(long position);  // 将读取位置移动到指定日志处
+
+    Iterator<LogRecord> scan(long position);  // 从指定日志处开始，映射日志段逐条遍历，不拷贝日志数据
+
+    void purge(long lsn);  // 删除 lsn 之前不再需要的日志段
 
     void close();  // 关闭日志
 
@@ -43,53 +49,65 @@ public interface Logger {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));  // 创建一个包含初始值的ByteBuffer
+        LogSegment seg = null;
         try {
-            fc.position(0);
-            fc.write(buf);  // 将初始值写入文件
-            fc.force(false);  // 强制将数据刷入磁盘
+            seg = LogSegment.create(f, LoggerImpl.FIRST_LSN);  // 写入段头
         } catch (IOException e) {
             Panic.panic(e);
         }
 
-        return new LoggerImpl(raf, fc, 0);  // 返回LoggerImpl实例
+        return new LoggerImpl(seg);  // 返回LoggerImpl实例
     }
 
     /**
      * 打开现有的日志文件并返回Logger实例
+     * 旧格式的单文件日志会先被转换为日志段
+     * 切换段时若在创建新段前崩溃，path.log 不存在，此时接着最后一个旧段创建新段
      *
      * @param path 日志文件路径
      * @return Logger实例
      */
     public static Logger open(String path) {
         File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        if (!f.exists()) {  // 如果文件不存在，则抛出异常
+        List<File> sealedFiles = LogSegment.listSealed(f);
+        if (!f.exists() && sealedFiles.isEmpty()) {  // 如果文件不存在，则抛出异常
             Panic.panic(Error.FileNotExistsException);
         }
-        if (!f.canRead() || !f.canWrite()) {  // 如果文件不可读或不可写，则抛出异常
+        if (f.exists() && (!f.canRead() || !f.canWrite())) {  // 如果文件不可读或不可写，则抛出异常
             Panic.panic(Error.FileCannotRWException);
         }
+        LogSegment.tmpFile(f).delete();  // 切换段时未完成的临时文件
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
+        List<LogSegment> sealed = new ArrayList<>();
+        LogSegment seg = null;
         try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
+            sealedFiles.sort(null);
+            long end = -1;
+            for (File sf : sealedFiles) {
+                LogSegment s = LogSegment.open(sf);
+                if (end >= 0 && s.base != end) {  // 旧段必须首尾相接
+                    Panic.panic(Error.BadLogFileException);
+                }
+                end = s.end;
+                sealed.add(s);
+            }
+            if (!f.exists()) {
+                seg = LogSegment.createAtomically(f, end);
+            } else {
+                if (!LogSegment.isSegment(f)) {
+                    LegacyLogConverter.convert(f);  // 一次性转换旧格式日志
+                }
+                seg = LogSegment.open(f);
+                if (end >= 0 && seg.base != end) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+            }
+        } catch (IOException e) {
             Panic.panic(e);
         }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc);  // 创建LoggerImpl实例
-        lg.init();  // 初始化LoggerImpl
+        LoggerImpl lg = new LoggerImpl(sealed, seg);  // 创建LoggerImpl实例
+        lg.checkAndRemoveTail();  // 只检查正在写入的段的尾部
 
         return lg;  // 返回LoggerImpl实例
     }
@@ -1,27 +1,32 @@
 package com.rt.rtdb.backend.dm.logger;
 
+import com.google.common.hash.Hashing;
 import com.google.common.primitives.Bytes;
 import com.rt.rtdb.backend.utils.Panic;
 import com.rt.rtdb.backend.utils.Parser;
-import com.rt.rtdb.common.Error;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
- * 日志文件读写
+ * 日志读写
  *
- * 日志文件标准格式为：
- *
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- *
- * XChecksum 为后续所有日志计算的Checksum，int类型
+ * 日志由若干日志段组成，格式见 LogSegment，正在写入的段为 path.log
+ * 正在写入的段超过 segmentSize 后切换到新段，检查点之后不再需要的旧段被删除
  *
  * 每条正确日志的格式为：
  *
@@ -29,86 +34,77 @@ import java.util.concurrent.locks.ReentrantLock;
  *
  * Size 4字节int 标识Data长度
  *
- * Checksum 4字节int
+ * Checksum 4字节int，为 Size 和 Data 的 CRC32C
+ *
+ * 每条日志自带校验，没有需要回写的全局文件头，追加日志是纯顺序写；
+ * 启动时只需扫描正在写入的段，截掉损坏的尾部
+ *
+ * 写日志采用组提交：并发的调用者把日志追加到共享的待写队列，
+ * 其中一个线程成为 leader，用一次聚集写把整批日志写入文件，并只 force 一次，
+ * 其余线程等待，直到自己日志所在的位置已经落盘
  */
 public class LoggerImpl implements Logger {
 
-    private static final int SEED = 13331;
-
     private static final int OF_SIZE = 0;
     private static final int OF_CHECKSUM = OF_SIZE + 4;
     private static final int OF_DATA = OF_CHECKSUM + 4;
 
     public static final String LOG_SUFFIX = ".log";
 
-    private RandomAccessFile file; // 日志文件
-    private FileChannel fc; // 文件通道
+    // 第一条日志的 LSN，与旧格式中第一条日志在文件中的位置相同
+    static final long FIRST_LSN = 4;
+
+    // 日志段的默认大小，段写满后切换到新段
+    static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+
+    // 映射读取时每次映射的最大长度，较大的段（如转换来的旧日志）分多次映射
+    private static final int MAP_WINDOW = 64 << 20;
+
+    private TreeMap<Long, LogSegment> segments; // 所有日志段，按 BaseLSN 排序
+    private LogSegment active; // 正在写入的段
     private Lock lock; // 文件锁
+    private Condition flushed; // 一批日志落盘后唤醒等待者
 
     private long position; // 当前日志指针的位置
-    private long fileSize; // 初始化时记录，log操作不更新
-    private int xChecksum; // 所有日志计算的校验和
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
-        lock = new ReentrantLock();
-    }
+    private List<byte[]> pending; // 等待写入的日志
+    private long tail; // 最后一条日志(包含尚未落盘的)的末尾位置
+    private long durable; // 已经落盘的日志的末尾位置
+    private boolean flushing; // 是否有 leader 正在写盘
+    private long segmentSize; // 段写满的阈值
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        lock = new ReentrantLock();
+    LoggerImpl(LogSegment active) {
+        this(new ArrayList<>(), active);
     }
 
-    void init() {
-        // 获取日志文件的大小并检查是否小于4字节
-        long size = 0;
-        try {
-            size = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        if(size < 4) {
-            Panic.panic(Error.BadLogFileException);
-        }
-
-        // 读取XChecksum
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
+    /**
+     * @param sealed 已写满的旧段，必须与正在写入的段首尾相接
+     * @param active 正在写入的段
+     */
+    LoggerImpl(List<LogSegment> sealed, LogSegment active) {
+        this.segments = new TreeMap<>();
+        for (LogSegment seg : sealed) {
+            this.segments.put(seg.base, seg);
         }
-        //array()获取 ByteBuffer 对象所包含的字节数据的底层字节数组
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
-
-        // 检查并移除bad tail
-        checkAndRemoveTail();
+        this.segments.put(active.base, active);
+        this.active = active;
+        lock = new ReentrantLock();
+        flushed = lock.newCondition();
+        pending = new ArrayList<>();
+        this.tail = this.durable = active.end;
+        this.segmentSize = DEFAULT_SEGMENT_SIZE;
+        rewind();
     }
 
-    // 检查并移除bad tail
-    private void checkAndRemoveTail() {
-        // 将文件通道的位置重置为起始位置
-        rewind();
+    // 测试中用较小的段来触发切换
+    void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
 
-        int xCheck = 0;
-        while (true) {
-            // 获取下一个日志条目
-            byte[] log = internNext();
-            if (log == null) {
-                break;
-            }
-            // 计算校验和
-            xCheck = calChecksum(xCheck, log);
-        }
-        // 检查校验和是否匹配
-        if (xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+    // 检查并移除正在写入的段的 bad tail，已写满的段在切换前已经落盘，无需检查
+    void checkAndRemoveTail() {
+        position = active.base;
+        while (internNext() != null) {
         }
         try {
             // 截断文件，移除损坏的尾部数据
@@ -116,75 +112,158 @@ public class LoggerImpl implements Logger {
         } catch (Exception e) {
             Panic.panic(e);
         }
-        try {
-            // 设置文件指针位置为截断后的位置
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        active.end = position;
+        // 后续日志从截断位置开始追加
+        tail = durable = position;
         // 将文件通道的位置重置为起始位置
         rewind();
     }
 
     /**
-     * 计算校验和
+     * 计算一条日志的校验和
      *
-     * @param xCheck 初始校验和值
-     * @param log 日志数据
-     * @return 数据的校验和
+     * @param data 日志数据
+     * @return Size 和 Data 的 CRC32C
      */
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
-        }
-        return xCheck;
+    static int calChecksum(byte[] data, int start, int end) {
+        return Hashing.crc32c().newHasher()
+                .putInt(end - start)
+                .putBytes(data, start, end - start)
+                .hash().asInt();
     }
 
     /**
-     * 记录日志
+     * 记录日志，返回时日志已经落盘
      * @param data
+     * @return 该条日志的 LSN
      */
     @Override
-    public void log(byte[] data) {
+    public long log(byte[] data) {
         // 封装日志数据
         byte[] log = wrapLog(data);
-        // 将字节数组包装成 ByteBuffer
-        ByteBuffer buf = ByteBuffer.wrap(log);
-        // 获取文件通道的锁
         lock.lock();
         try {
-            // 将文件指针设置到文件末尾
-            fc.position(fc.size());
-            // 将数据写入文件通道
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            // 追加到待写队列，位置按入队顺序确定
+            long lsn = tail;
+            tail += log.length;
+            long end = tail;
+            pending.add(log);
+
+            while (durable < end) {
+                if (flushing) {
+                    // 已有 leader 在写盘，等待它完成后再检查
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+                // 成为 leader，取走目前积攒的整批日志
+                flushing = true;
+                List<byte[]> batch = pending;
+                pending = new ArrayList<>();
+                long start = durable;
+                long batchEnd = tail;
+                lock.unlock();
+                try {
+                    writeBatch(start, batch);
+                } finally {
+                    lock.lock();
+                }
+                durable = batchEnd;
+                active.end = batchEnd;
+                if (active.end - active.base >= segmentSize) {
+                    // 整批日志已经落盘，之后的日志从新段开始写
+                    rotate();
+                }
+                flushing = false;
+                flushed.signalAll();
+            }
+            return lsn;
         } finally {
-            // 释放文件通道的锁
             lock.unlock();
         }
-        // 更新校验和
-        updateXChecksum(log);
     }
 
+    /**
+     * 用一次聚集写把一批日志顺序写入正在写入的段，只 force 一次
+     * 同一时间只有一个 leader 调用
+     */
+    private void writeBatch(long start, List<byte[]> batch) {
+        ByteBuffer[] bufs = new ByteBuffer[batch.size()];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = ByteBuffer.wrap(batch.get(i));
+        }
+        try {
+            active.fc.position(active.fileOffset(start));
+            while (bufs[bufs.length - 1].hasRemaining()) {
+                active.fc.write(bufs);
+            }
+            // 强制将整批数据刷新到磁盘
+            active.fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 把写满的段改名为旧段，并在 path.log 处创建以当前末尾为 BaseLSN 的新段
+     * 持有锁、且没有其他 leader 在写盘时调用
+     */
+    private void rotate() {
+        File activeFile = active.file;
+        File sealedFile = LogSegment.sealedFile(activeFile, active.base);
+        try {
+            active.close();
+            Files.move(activeFile.toPath(), sealedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            LogSegment sealed = LogSegment.open(sealedFile);
+            segments.put(sealed.base, sealed);
+
+            active = LogSegment.createAtomically(activeFile, durable);
+            segments.put(active.base, active);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
 
     /**
-     * 更新总的校验和
+     * 删除末尾不晚于 lsn 的旧段，这些日志对应的页面都已经落盘，恢复时不再需要
+     * 正在写入的段不会被删除
      *
-     * @param log 新写入的日志数据
+     * @param lsn 恢复时开始重放的位置
      */
-    private void updateXChecksum(byte[] log) {
-        // 计算新的校验和
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    @Override
+    public void purge(long lsn) {
+        lock.lock();
         try {
-            // 将文件指针设置到文件开头
-            fc.position(0);
-            // 将新的校验和写入文件
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            // 强制将数据刷新到磁盘
-            fc.force(false);
+            while (segments.size() > 1) {
+                LogSegment seg = segments.firstEntry().getValue();
+                if (seg == active || seg.end > lsn) {
+                    break;
+                }
+                segments.remove(seg.base);
+                seg.close();
+                if (!seg.file.delete()) {
+                    Panic.panic(new IOException("Cannot delete log segment " + seg.file));
+                }
+            }
+            if (position < segments.firstKey()) {
+                position = segments.firstKey();
+            }
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 日志末尾的位置，包含尚未落盘的日志
+     */
+    @Override
+    public long size() {
+        lock.lock();
+        try {
+            return tail;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -194,23 +273,23 @@ public class LoggerImpl implements Logger {
      * @param data 日志数据
      * @return 封装后的日志
      */
-    private byte[] wrapLog(byte[] data) {
+    static byte[] wrapLog(byte[] data) {
         // 计算校验和
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
+        byte[] checksum = Parser.int2Byte(calChecksum(data, 0, data.length));
         // 获取数据的长度
         byte[] size = Parser.int2Byte(data.length);
         // 将长度、校验和和数据连接起来组成新的字节数组
         return Bytes.concat(size, checksum, data);
     }
 
-    // 截断文件
+    // 截断正在写入的段
     @Override
     public void truncate(long x) throws Exception {
         // 获取文件通道的锁
         lock.lock();
         try {
             // 调用文件通道的截断方法
-            fc.truncate(x);
+            active.fc.truncate(active.fileOffset(x));
         } finally {
             // 释放文件通道的锁
             lock.unlock();
@@ -221,42 +300,51 @@ public class LoggerImpl implements Logger {
     /**
      * 读取并解析下一条日志
      *
-     * @return 解析成功的日志数据，如果解析失败或达到文件末尾返回null
+     * @return 解析成功的日志数据，如果解析失败或达到日志末尾返回null
      */
     private byte[] internNext() {
-        // 检查是否超过文件大小
-        if (position + OF_DATA >= fileSize) {
+        Map.Entry<Long, LogSegment> e = segments.floorEntry(position);
+        if (e == null) {
             return null;
         }
+        LogSegment seg = e.getValue();
+        if (position + OF_DATA > seg.end) {
+            // 当前段已读完，转到下一个段
+            Map.Entry<Long, LogSegment> next = segments.higherEntry(seg.base);
+            if (next == null) {
+                return null;
+            }
+            seg = next.getValue();
+            position = seg.base;
+            if (position + OF_DATA > seg.end) {
+                return null;
+            }
+        }
         ByteBuffer tmp = ByteBuffer.allocate(4);
         try {
-            // 设置文件通道的位置为当前位置
-            fc.position(position);
-            // 读取4个字节到tmp缓冲区
-            fc.read(tmp);
-        } catch(IOException e) {
-            Panic.panic(e);
+            // 从当前位置读取4个字节到tmp缓冲区
+            seg.fc.read(tmp, seg.fileOffset(position));
+        } catch(IOException ex) {
+            Panic.panic(ex);
         }
         // 解析tmp缓冲区中的字节数组为整数值，获取大小
         int size = Parser.parseInt(tmp.array());
-        // 检查是否超过文件大小
-        if (position + size + OF_DATA > fileSize) {
+        // 检查是否超过段末尾
+        if (size < 0 || position + size + OF_DATA > seg.end) {
             return null;
         }
         // 分配一个大小为 OF_DATA + size 的ByteBuffer缓冲区
         ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
         try {
-            // 设置文件通道的位置为当前位置
-            fc.position(position);
-            // 读取数据到buf缓冲区
-            fc.read(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+            // 从当前位置读取数据到buf缓冲区
+            seg.fc.read(buf, seg.fileOffset(position));
+        } catch(IOException ex) {
+            Panic.panic(ex);
         }
         // 获取buf缓冲区的字节数组
         byte[] log = buf.array();
         // 计算数据部分的校验和
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
+        int checkSum1 = calChecksum(log, OF_DATA, log.length);
         // 解析校验和字段的字节数组为整数值
         int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
         // 检查校验和是否匹配
@@ -287,23 +375,148 @@ public class LoggerImpl implements Logger {
     }
 
     /**
-     * 倒回文件指针
+     * 从 position 开始遍历日志，返回的记录直接引用日志段的只读映射
+     * 遇到第一条损坏或不完整的日志时结束，与 next() 相同
+     */
+    @Override
+    public Iterator<LogRecord> scan(long position) {
+        return new MappedLogIterator(position);
+    }
+
+    /**
+     * 包含 lsn 的日志段，lsn 落在已删除的段中时返回第一个段
+     */
+    private LogSegment segmentAt(long lsn) {
+        lock.lock();
+        try {
+            Map.Entry<Long, LogSegment> e = segments.floorEntry(lsn);
+            return e == null ? segments.firstEntry().getValue() : e.getValue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 映射日志段并逐条解析日志，每次只映射段内的一个窗口
+     * 切换段或重新映射时按位置查找当前的段对象，段切换后旧对象的通道会被关闭
+     */
+    private class MappedLogIterator implements Iterator<LogRecord> {
+        private LogSegment seg;
+        private ByteBuffer map; // 当前窗口的映射
+        private long mapBase;   // 映射中下标 0 对应的 LSN
+        private long position;  // 下一条日志的 LSN
+        private LogRecord next;
+        private boolean done;
+
+        MappedLogIterator(long position) {
+            this.seg = segmentAt(position);
+            this.position = Math.max(position, seg.base);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                next = advance();
+                done = next == null;
+            }
+            return next != null;
+        }
+
+        @Override
+        public LogRecord next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            LogRecord rec = next;
+            next = null;
+            return rec;
+        }
+
+        private LogRecord advance() {
+            if (position + OF_DATA > seg.end) {
+                // 当前段已读完，转到下一个段
+                LogSegment nextSeg = segmentAt(seg.end);
+                if (nextSeg.base != seg.end || nextSeg.base == seg.base) {
+                    return null;
+                }
+                seg = nextSeg;
+                map = null;
+                position = seg.base;
+                if (position + OF_DATA > seg.end) {
+                    return null;
+                }
+            }
+            ensureMapped(OF_DATA);
+            int idx = (int) (position - mapBase);
+            int size = map.getInt(idx + OF_SIZE);
+            // 检查是否超过段末尾
+            if (size < 0 || position + OF_DATA + size > seg.end) {
+                return null;
+            }
+            ensureMapped(OF_DATA + size);
+            idx = (int) (position - mapBase);
+            ByteBuffer data = map.duplicate();
+            data.limit(idx + OF_DATA + size).position(idx + OF_DATA);
+            int checksum = Hashing.crc32c().newHasher().putInt(size).putBytes(data).hash().asInt();
+            if (checksum != map.getInt(idx + OF_CHECKSUM)) {
+                return null;
+            }
+            LogRecord rec = new LogRecord(position, map, idx + OF_DATA, idx + OF_DATA + size);
+            position += OF_DATA + size;
+            return rec;
+        }
+
+        // 保证 [position, position + length) 在当前映射窗口内
+        private void ensureMapped(int length) {
+            if (map != null && position >= mapBase && position + length <= mapBase + map.limit()) {
+                return;
+            }
+            seg = segmentAt(position);
+            int windowLen = (int) Math.min(seg.end - position, Math.max(MAP_WINDOW, length));
+            try {
+                map = seg.map(position, windowLen);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            mapBase = position;
+        }
+    }
+
+    /**
+     * 倒回到第一个仍然存在的日志段的开头
      */
     @Override
     public void rewind() {
-        // 将位置设置为 4
-        position = 4;
+        lock.lock();
+        try {
+            position = segments.firstKey();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 将读取位置移动到指定日志处，用于从检查点开始恢复
+     * 落在已删除的段中的位置从第一个仍然存在的段开始读
+     */
+    @Override
+    public void seek(long position) {
+        lock.lock();
+        try {
+            this.position = Math.max(position, segments.firstKey());
+        } finally {
+            lock.unlock();
+        }
     }
 
 
     @Override
-    // 关闭文件和文件通道
+    // 关闭所有日志段
     public void close() {
         try {
-            // 关闭文件通道
-            fc.close();
-            // 关闭文件
-            file.close();
+            for (LogSegment seg : segments.values()) {
+                seg.close();
+            }
         } catch (IOException e) {
             // 发生异常时调用 Panic.panic() 方法进行处理
             Panic.panic(e);
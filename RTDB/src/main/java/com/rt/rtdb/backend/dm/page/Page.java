@@ -21,5 +21,11 @@ public interface Page {
 
     // 获取页面的数据
     byte[] getData();
+
+    // 开始一次尚未写日志的修改，后台刷盘不会写出处于修改中的页面
+    void startUpdate();
+
+    // 修改的日志已经落盘，结束本次修改
+    void endUpdate();
 }
 
@@ -3,16 +3,21 @@ package com.rt.rtdb.backend.dm.page;
 
 import com.rt.rtdb.backend.dm.pageCache.PageCache;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class PageImpl implements Page {
     private int pageNumber;      // 页面编号
     private byte[] data;         // 页面数据
-    private boolean dirty;       // 页面是否被修改标记
+    private volatile boolean dirty; // 页面是否被修改标记，后台刷盘线程也会读写
     private Lock lock;           // 页面锁，用于并发控制
     private PageCache pc;        // 页面缓存对象
 
+    private final AtomicInteger updating = new AtomicInteger(0); // 正在进行、日志尚未落盘的修改个数
+    private final AtomicLong updateSeq = new AtomicLong(0);      // 开始过的修改次数，用于检测拷贝期间是否有新修改
+
     public PageImpl(int pageNumber, byte[] data, PageCache pc) {
         this.pageNumber = pageNumber;
         this.data = data;
@@ -48,4 +53,33 @@ public class PageImpl implements Page {
         return data;
     }
 
+    public void startUpdate() {
+        updateSeq.incrementAndGet();
+        updating.incrementAndGet();
+    }
+
+    public void endUpdate() {
+        updating.decrementAndGet();
+    }
+
+    /**
+     * 为后台刷盘拷贝一份页面数据，并清除脏标记
+     * 页面上有日志尚未落盘的修改时返回 null，保证先写日志再写数据页
+     */
+    public byte[] snapshot() {
+        long seq = updateSeq.get();
+        if(updating.get() > 0) {
+            return null;
+        }
+        // 先清除脏标记再拷贝，拷贝之后的修改会重新设置脏标记
+        dirty = false;
+        byte[] copy = data.clone();
+        if(updating.get() > 0 || updateSeq.get() != seq) {
+            // 拷贝期间开始了新的修改，放弃这次拷贝
+            dirty = true;
+            return null;
+        }
+        return copy;
+    }
+
 }
@@ -1,6 +1,7 @@
 package com.rt.rtdb.backend.dm.page;
 
 import com.rt.rtdb.backend.dm.pageCache.PageCache;
+import com.rt.rtdb.backend.utils.Parser;
 import com.rt.rtdb.backend.utils.RandomUtil;
 
 import java.util.Arrays;
@@ -10,10 +11,13 @@ import java.util.Arrays;
  * ValidCheck
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭
+ * Checkpoint
+ * 116~123字节处记录最近一次检查点日志的位置，0表示没有检查点
  */
 public class PageOne {
     private static final int OF_VC = 100;  // 上一次数据库正常关闭标记的起始位置
     private static final int LEN_VC = 8;   // 上一次数据库正常关闭标记的长度
+    private static final int OF_CKPT = OF_VC + 2 * LEN_VC;  // 最近一次检查点日志位置的起始位置
 
     public static byte[] InitRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
@@ -49,4 +53,13 @@ public class PageOne {
         return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC+LEN_VC),
                 Arrays.copyOfRange(raw, OF_VC+LEN_VC, OF_VC+2*LEN_VC));
     }
+
+    public static void setCheckpoint(Page pg, long position) {
+        System.arraycopy(Parser.long2Byte(position), 0, pg.getData(), OF_CKPT, 8);  // 记录检查点日志位置
+        pg.setDirty(true);  // 设置页面为脏页
+    }
+
+    public static long getCheckpoint(Page pg) {
+        return Parser.parseLong(Arrays.copyOfRange(pg.getData(), OF_CKPT, OF_CKPT + 8));  // 读取检查点日志位置
+    }
 }
@@ -1,96 +1,430 @@
 package com.rt.rtdb.backend.dm.page;
 
 import com.rt.rtdb.backend.dm.pageCache.PageCache;
+import com.rt.rtdb.backend.utils.Panic;
 import com.rt.rtdb.backend.utils.Parser;
+import com.rt.rtdb.common.Error;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 /**
- * PageX管理普通页
- * 普通页结构
+ * PageX管理普通页，普通页有两种格式，由第一个字节区分
+ *
+ * 旧格式（追加写）
  * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * FreeSpaceOffset: 2字节 空闲位置开始偏移，不超过 PAGE_SIZE，因此第一个字节不大于 0x20
+ * 数据项的位置(position)为它在页内的偏移，删除的数据项占用的空间不会回收
+ *
+ * 槽页格式
+ * [Version] [PageLSN] [SlotCount] [FreeEnd] [Garbage] [Slot]...[Slot] [空闲区] [Data]
+ * Version:   1字节 固定为 VERSION_SLOTTED
+ * PageLSN:   8字节 最后一条已应用到本页的日志的 LSN，恢复时跳过不大于它的日志
+ * SlotCount: 2字节 槽目录中槽的个数
+ * FreeEnd:   2字节 数据区的起始偏移，数据项从页尾向前分配
+ * Garbage:   2字节 已释放的数据项占用、尚未整理的字节数
+ * Slot:      4字节 [Offset][Length]，Offset 为 0 表示空闲槽，可被下一次插入复用
+ * 数据项的位置(position)为它的槽号，页内整理移动数据项时槽号不变，uid 因此保持有效
+ *
+ * 旧格式的页面继续按旧方式读写，新建的页面都使用槽页格式
  */
 public class PageX {
 
+    // 旧格式
     private static final short OF_FREE = 0;  // 空闲位置开始偏移的起始位置
     private static final short OF_DATA = 2;  // 数据起始位置
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;  // 最大空闲空间大小
+
+    // 槽页格式
+    public static final byte VERSION_SLOTTED = (byte) 0x81;
+    private static final int OF_VERSION = 0;
+    private static final int OF_LSN = OF_VERSION + 1;
+    private static final int OF_SLOT_COUNT = OF_LSN + 8;
+    private static final int OF_FREE_END = OF_SLOT_COUNT + 2;
+    private static final int OF_GARBAGE = OF_FREE_END + 2;
+    private static final int OF_SLOTS = OF_GARBAGE + 2;
+    private static final int SLOT_SIZE = 4;
+
+    private static final byte INVALID = 1; // 与 DataItem 的无效标志相同
+
+    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_SLOTS - SLOT_SIZE;  // 最大空闲空间大小
 
     /**
-     * 初始化一个原始的页面
+     * 初始化一个原始的槽页
      * @return 初始化后的页面
      */
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);  // 初始化页面并设置空闲位置开始偏移
+        raw[OF_VERSION] = VERSION_SLOTTED;
+        setShort(raw, OF_FREE_END, PageCache.PAGE_SIZE);  // 数据区为空
         return raw;
     }
 
+    /**
+     * 初始化一个旧格式的页面，仅用于兼容性测试
+     */
+    static byte[] initLegacyRaw() {
+        byte[] raw = new byte[PageCache.PAGE_SIZE];
+        setFSO(raw, OF_DATA);
+        return raw;
+    }
+
+    /**
+     * 页面是否为槽页格式
+     */
+    public static boolean isSlotted(Page pg) {
+        return isSlotted(pg.getData());
+    }
+
+    private static boolean isSlotted(byte[] raw) {
+        return raw[OF_VERSION] == VERSION_SLOTTED;
+    }
+
     private static void setFSO(byte[] raw, short ofData) {
         System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);  // 设置空闲位置开始偏移
     }
 
+    private static short getFSO(byte[] raw) {
+        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));  // 解析空闲位置开始偏移
+    }
+
+    /**
+     * 下一次插入的位置：旧格式为空闲位置开始偏移，槽页为第一个空闲槽，没有空闲槽时为新槽
+     * 插入日志记录这个位置，调用方在得到位置后、插入前需独占页面的插入
+     */
+    public static short getInsertPosition(Page pg) {
+        byte[] raw = pg.getData();
+        if(!isSlotted(raw)) {
+            return getFSO(raw);
+        }
+        int count = slotCount(raw);
+        for(int i = 0; i < count; i ++) {
+            if(slotOffset(raw, i) == 0) {
+                return (short) i;
+            }
+        }
+        return (short) count;
+    }
+
+    /**
+     * 不整理页面时能否在连续的空闲区插入 length 字节的数据
+     */
+    public static boolean fits(Page pg, int length) {
+        return getContiguousFreeSpace(pg) >= length;
+    }
+
     /**
-     * 获取页面的空闲位置开始偏移
+     * 页面的空闲空间大小，槽页包括整理后可回收的空间
      * @param pg 页面对象
-     * @return 空闲位置开始偏移
+     * @return 空闲空间大小
      */
-    public static short getFSO(Page pg) {
-        return getFSO(pg.getData());  // 获取页面的空闲位置开始偏移
+    public static int getFreeSpace(Page pg) {
+        byte[] raw = pg.getData();
+        if(!isSlotted(raw)) {
+            return PageCache.PAGE_SIZE - (int)getFSO(raw);  // 计算页面的空闲空间大小
+        }
+        return Math.max(0, contiguous(raw, getInsertPosition(pg)) + slotGarbage(raw));
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));  // 解析空闲位置开始偏移
+    /**
+     * 不整理页面时可用的连续空闲空间大小
+     */
+    public static int getContiguousFreeSpace(Page pg) {
+        byte[] raw = pg.getData();
+        if(!isSlotted(raw)) {
+            return getFreeSpace(pg);
+        }
+        return Math.max(0, contiguous(raw, getInsertPosition(pg)));
     }
 
     /**
-     * 将原始数据插入页面，并返回插入位置
+     * 在 position 处插入数据，position 必须是之前 getInsertPosition 返回的位置
+     * 槽页的连续空闲区不足时需先调用 compact
      * @param pg 页面对象
      * @param raw 原始数据
+     * @param position 插入位置
      * @return 插入位置
      */
-    public static short insert(Page pg, byte[] raw) {
-        pg.setDirty(true);  // 设置页面为脏页
-        short offset = getFSO(pg.getData());  // 获取空闲位置开始偏移
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);  // 将数据插入页面
-        setFSO(pg.getData(), (short)(offset + raw.length));  // 更新空闲位置开始偏移
-        return offset;  // 返回插入位置
+    public static short insert(Page pg, byte[] raw, short position) {
+        byte[] data = pg.getData();
+        pg.startUpdate();  // 修改槽目录期间后台刷盘不能拷贝页面
+        try {
+            if(!isSlotted(data)) {
+                System.arraycopy(raw, 0, data, position, raw.length);  // 将数据插入页面
+                setFSO(data, (short)(position + raw.length));  // 更新空闲位置开始偏移
+            } else {
+                if(contiguous(data, position) < raw.length) {
+                    Panic.panic(Error.DataTooLargeException);
+                }
+                place(data, position, raw);
+            }
+            pg.setDirty(true);  // 修改完成后设置为脏页，避免后台刷盘清除标记后漏写
+        } finally {
+            pg.endUpdate();
+        }
+        return position;  // 返回插入位置
+    }
+
+    /**
+     * 数据项在页内的偏移，槽页中空闲槽返回 0
+     */
+    public static int getOffset(Page pg, short position) {
+        byte[] raw = pg.getData();
+        if(!isSlotted(raw)) {
+            return position;
+        }
+        if(position >= slotCount(raw)) {
+            return 0;
+        }
+        return slotOffset(raw, position);
+    }
+
+    /**
+     * 释放槽页中的一个数据项，它占用的空间在下次整理时回收，槽可被之后的插入复用
+     * 旧格式的页面不回收空间，只把数据项标记为无效
+     */
+    public static void free(Page pg, short position) {
+        pg.startUpdate();
+        try {
+            recoverFree(pg, position);
+        } finally {
+            pg.endUpdate();
+        }
     }
 
     /**
-     * 获取页面的空闲空间大小
+     * 整理槽页：把存活的数据项移动到页尾连续存放，回收已释放的空间
+     * 槽号不变，但数据项的偏移改变；pinned 中的槽有 DataItem 直接引用页面数据，保持原位，
+     * 其他数据项绕开它们存放
      * @param pg 页面对象
-     * @return 空闲空间大小
+     * @param pinned 不能移动的槽
      */
-    public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());  // 计算页面的空闲空间大小
+    public static void compact(Page pg, Set<Integer> pinned) {
+        byte[] raw = pg.getData();
+        if(!isSlotted(raw) || slotGarbage(raw) == 0) {
+            return;
+        }
+        pg.startUpdate();
+        try {
+            compact(raw, pinned);
+            pg.setDirty(true);
+        } finally {
+            pg.endUpdate();
+        }
     }
 
     /**
-     * 将原始数据插入页面的指定位置，并将页面的偏移设置为较大的偏移
+     * 槽页的 PageLSN，旧格式的页面没有 LSN，返回 0
+     */
+    public static long getPageLsn(Page pg) {
+        byte[] raw = pg.getData();
+        if(!isSlotted(raw)) {
+            return 0;
+        }
+        return Parser.parseLong(Arrays.copyOfRange(raw, OF_LSN, OF_LSN + 8));
+    }
+
+    /**
+     * 修改的日志写入后推进 PageLSN，只增不减
+     */
+    public static void setPageLsn(Page pg, long lsn) {
+        byte[] raw = pg.getData();
+        if(!isSlotted(raw)) {
+            return;
+        }
+        pg.lock();
+        try {
+            if(lsn > getPageLsn(pg)) {
+                System.arraycopy(Parser.long2Byte(lsn), 0, raw, OF_LSN, 8);
+            }
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    /**
+     * 恢复时将数据放入 position 处
+     * 旧格式写入该偏移，并将页面的偏移设置为较大的偏移；
+     * 槽页把数据放入该槽，槽中已有长度不同的数据时先释放
      * @param pg 页面对象
      * @param raw 原始数据
-     * @param offset 插入位置
+     * @param position 插入位置
      */
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
-        pg.setDirty(true);  // 设置页面为脏页
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);  // 将数据插入页面
+    public static void recoverInsert(Page pg, byte[] raw, short position) {
+        byte[] data = pg.getData();
+        if(isSlotted(data)) {
+            place(data, position, raw);
+            pg.setDirty(true);
+            return;
+        }
+        System.arraycopy(raw, 0, data, position, raw.length);  // 将数据插入页面
 
-        short rawFSO = getFSO(pg.getData());  // 获取空闲位置开始偏移
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));  // 更新空闲位置开始偏移
+        short rawFSO = getFSO(data);  // 获取空闲位置开始偏移
+        if(rawFSO < position + raw.length) {
+            setFSO(data, (short)(position+raw.length));  // 更新空闲位置开始偏移
         }
+        pg.setDirty(true);  // 设置页面为脏页
     }
 
     /**
-     * 将原始数据插入页面的指定位置，不更新偏移
+     * 恢复时将数据覆盖写入 position 处，不更新偏移
+     * 槽页中该槽为空闲槽或长度不同时（撤销时插入尚未落盘）按插入处理
      * @param pg 页面对象
      * @param raw 原始数据
-     * @param offset 插入位置
+     * @param position 插入位置
      */
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    public static void recoverUpdate(Page pg, byte[] raw, short position) {
+        byte[] data = pg.getData();
+        if(isSlotted(data)) {
+            place(data, position, raw);
+        } else {
+            System.arraycopy(raw, 0, data, position, raw.length);  // 将数据插入页面
+        }
         pg.setDirty(true);  // 设置页面为脏页
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);  // 将数据插入页面
+    }
+
+    /**
+     * 恢复时释放 position 处的数据项
+     */
+    public static void recoverFree(Page pg, short position) {
+        byte[] data = pg.getData();
+        if(isSlotted(data)) {
+            releaseSlot(data, position);
+        } else {
+            data[position] = INVALID; // 数据项的第一个字节为有效标志
+        }
+        pg.setDirty(true);
+    }
+
+    /**
+     * 把数据放入槽中：长度相同时原地覆盖，否则释放旧数据后从空闲区分配，空闲区不足时整理页面
+     */
+    private static void place(byte[] raw, int slot, byte[] item) {
+        int count = slotCount(raw);
+        if(slot < count && slotOffset(raw, slot) != 0) {
+            if(slotLength(raw, slot) == item.length) {
+                System.arraycopy(item, 0, raw, slotOffset(raw, slot), item.length);
+                return;
+            }
+            releaseSlot(raw, slot);
+        }
+        if(contiguous(raw, slot) < item.length) {
+            compact(raw, Collections.emptySet());
+            if(contiguous(raw, slot) < item.length) {
+                Panic.panic(Error.DataTooLargeException);
+            }
+        }
+        if(slot >= count) {
+            // 新增的槽之前若有空位，置为空闲槽
+            for(int i = count; i < slot; i ++) {
+                setSlot(raw, i, 0, 0);
+            }
+            setShort(raw, OF_SLOT_COUNT, slot + 1);
+        }
+        int offset = freeEnd(raw) - item.length;
+        System.arraycopy(item, 0, raw, offset, item.length);
+        setShort(raw, OF_FREE_END, offset);
+        setSlot(raw, slot, offset, item.length);
+    }
+
+    private static void releaseSlot(byte[] raw, int slot) {
+        if(slot >= slotCount(raw) || slotOffset(raw, slot) == 0) {
+            return;
+        }
+        setShort(raw, OF_GARBAGE, slotGarbage(raw) + slotLength(raw, slot));
+        setSlot(raw, slot, 0, 0);
+    }
+
+    private static void compact(byte[] raw, Set<Integer> pinned) {
+        int count = slotCount(raw);
+        // 不能移动的数据项按偏移从大到小排列，其余数据项从页尾向前依次放入它们之间的空隙
+        List<int[]> fixed = new ArrayList<>();
+        int live = 0;
+        for(int i = 0; i < count; i ++) {
+            int offset = slotOffset(raw, i);
+            if(offset == 0) continue;
+            live += slotLength(raw, i);
+            if(pinned.contains(i)) {
+                fixed.add(new int[]{offset, slotLength(raw, i)});
+            }
+        }
+        fixed.sort((a, b) -> b[0] - a[0]);
+
+        int[] offsets = new int[count];
+        int end = PageCache.PAGE_SIZE;
+        int next = 0; // 下一个可能挡住 end 的固定数据项
+        for(int i = 0; i < count; i ++) {
+            int offset = slotOffset(raw, i);
+            if(offset == 0 || pinned.contains(i)) continue;
+            int length = slotLength(raw, i);
+            while(next < fixed.size() && end - length < fixed.get(next)[0] + fixed.get(next)[1]) {
+                // 与固定数据项重叠，跳到它的前面
+                end = Math.min(end, fixed.get(next)[0]);
+                next ++;
+            }
+            end -= length;
+            offsets[i] = end;
+        }
+        for(int[] f : fixed) {
+            end = Math.min(end, f[0]);
+        }
+        if(end < OF_SLOTS + count * SLOT_SIZE) {
+            return; // 绕开固定数据项后放不下，保持原样
+        }
+
+        byte[] tmp = raw.clone();
+        for(int i = 0; i < count; i ++) {
+            if(offsets[i] == 0) continue;
+            int length = slotLength(tmp, i);
+            System.arraycopy(tmp, slotOffset(tmp, i), raw, offsets[i], length);
+            setSlot(raw, i, offsets[i], length);
+        }
+        setShort(raw, OF_FREE_END, end);
+        setShort(raw, OF_GARBAGE, PageCache.PAGE_SIZE - end - live); // 固定数据项之间剩余的空隙
+    }
+
+    /**
+     * 向 slot 插入时连续空闲区的可用大小，需要新增槽时扣除新增的槽目录
+     */
+    private static int contiguous(byte[] raw, int slot) {
+        int slots = Math.max(slotCount(raw), slot + 1);
+        return freeEnd(raw) - OF_SLOTS - slots * SLOT_SIZE;
+    }
+
+    private static int slotCount(byte[] raw) {
+        return getShort(raw, OF_SLOT_COUNT);
+    }
+
+    private static int freeEnd(byte[] raw) {
+        return getShort(raw, OF_FREE_END);
+    }
+
+    private static int slotGarbage(byte[] raw) {
+        return getShort(raw, OF_GARBAGE);
+    }
+
+    private static int slotOffset(byte[] raw, int slot) {
+        return getShort(raw, OF_SLOTS + slot * SLOT_SIZE);
+    }
+
+    private static int slotLength(byte[] raw, int slot) {
+        return getShort(raw, OF_SLOTS + slot * SLOT_SIZE + 2);
+    }
+
+    private static void setSlot(byte[] raw, int slot, int offset, int length) {
+        setShort(raw, OF_SLOTS + slot * SLOT_SIZE, offset);
+        setShort(raw, OF_SLOTS + slot * SLOT_SIZE + 2, length);
+    }
+
+    // 页内的偏移和长度都不超过 PAGE_SIZE，按无符号 short 读写
+    private static int getShort(byte[] raw, int offset) {
+        return ((raw[offset] & 0xff) << 8) | (raw[offset + 1] & 0xff);
+    }
+
+    private static void setShort(byte[] raw, int offset, int value) {
+        raw[offset] = (byte) (value >>> 8);
+        raw[offset + 1] = (byte) value;
     }
 }
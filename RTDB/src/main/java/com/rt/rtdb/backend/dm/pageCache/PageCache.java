@@ -1,5 +1,6 @@
 package com.rt.rtdb.backend.dm.pageCache;
 
+import com.rt.rtdb.backend.common.CacheStats;
 import com.rt.rtdb.backend.dm.page.Page;
 import com.rt.rtdb.backend.utils.Panic;
 import com.rt.rtdb.common.Error;
@@ -61,6 +62,31 @@ public interface PageCache {
      */
     void flushPage(Page pg);
 
+    /**
+     * 批量写回所有脏页并只 force 一次，检查点调用
+     */
+    void flushDirtyPages();
+
+    /**
+     * 启动后台刷盘线程
+     * @param intervalMillis 刷盘间隔，毫秒
+     */
+    void startFlusher(long intervalMillis);
+
+    /**
+     * 在后台把 [fromPgno, fromPgno + count) 中不在缓存里的页面读入缓存，立即返回
+     * 超出文件末尾的页面被忽略，预读任务过多时新的请求被丢弃
+     * @param fromPgno 起始页号
+     * @param count 页数
+     */
+    void prefetch(int fromPgno, int count);
+
+    /**
+     * 获取页面缓存的命中、未命中、驱逐计数
+     * @return 缓存统计
+     */
+    CacheStats getStats();
+
     /**
      * 创建一个新的PageCacheImpl对象
      * @param path 文件路径
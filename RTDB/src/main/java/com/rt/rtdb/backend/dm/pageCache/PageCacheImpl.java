@@ -1,6 +1,7 @@
 package com.rt.rtdb.backend.dm.pageCache;
 
-import com.rt.rtdb.backend.common.AbstractCache;
+import com.rt.rtdb.backend.common.ConcurrentCache;
+import com.rt.rtdb.backend.common.TwoQueuePolicy;
 import com.rt.rtdb.backend.dm.page.Page;
 import com.rt.rtdb.backend.dm.page.PageImpl;
 import com.rt.rtdb.backend.utils.Panic;
@@ -10,6 +11,14 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -17,19 +26,41 @@ import java.util.concurrent.locks.ReentrantLock;
 /**
  * @author RT666
  */
-public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
+public class PageCacheImpl extends ConcurrentCache<Page> implements PageCache {
 
     private static final int MEM_MIN_LIM = 10; // 内存最小限制
     public static final String DB_SUFFIX = ".db"; // 数据库文件后缀
 
+    private static final int PREFETCH_THREADS = 2; // 预读线程数
+    private static final int PREFETCH_QUEUE = 64; // 排队的预读任务上限，超出时丢弃
+    private static final int SEQ_THRESHOLD = 3; // 连续访问多少个相邻页面后认为是顺序访问
+    private static final int READ_AHEAD = 32; // 顺序访问时每次预读的页数
+
     private RandomAccessFile file; // 随机访问文件,该类的实例支持对随机访问文件的读写
     private FileChannel fc; // 文件通道
     private Lock fileLock; // 文件锁
 
     private AtomicInteger pageNumbers; // 页面编号计数器
+    private Lock flushLock; // 保证同一时间只有一个刷盘批次
+    private ScheduledExecutorService flusher; // 后台刷盘线程
+    private PageFramePool frames; // 页面帧池，驱逐的页面的帧由新读入的页面复用
+
+    private ThreadPoolExecutor prefetcher; // 后台预读线程
+    private AtomicInteger creatingPages; // 已分配页号但尚未写入文件的新页面个数
+    private AtomicInteger lastPgno; // 最近一次访问的页号
+    private AtomicInteger seqRun; // 当前连续访问的相邻页面个数
+    private AtomicInteger readAheadTo; // 已经发起预读的最大页号
 
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+        this(file, fileChannel, maxResource, maxResource);
+    }
+
+    /**
+     * @param frameCapacity 页面帧池预先分配的帧数，0 表示不复用帧
+     */
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, int frameCapacity) {
+        // 未被引用的页面继续留在缓存中，缓存满时按 2Q 策略驱逐
+        super(maxResource, new TwoQueuePolicy(maxResource));
         //maxResource 缓存的最大缓存资源数
         if (maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException); // 内存太小异常
@@ -44,6 +75,36 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         this.fc = fileChannel;
         this.fileLock = new ReentrantLock(); // 创建文件锁
         this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE); // 计算页面编号,PAGE_SIZE为8192
+        this.flushLock = new ReentrantLock();
+        this.frames = new PageFramePool(frameCapacity);
+        this.creatingPages = new AtomicInteger(0);
+        this.lastPgno = new AtomicInteger(0);
+        this.seqRun = new AtomicInteger(0);
+        this.readAheadTo = new AtomicInteger(0);
+        this.prefetcher = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 10, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(PREFETCH_QUEUE), r -> {
+                    Thread t = new Thread(r, "page-prefetcher");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+        this.prefetcher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 启动后台刷盘线程，定期批量写回脏页，跳过日志尚未落盘的页面
+     * @param intervalMillis 刷盘间隔，毫秒
+     */
+    @Override
+    public void startFlusher(long intervalMillis) {
+        if (flusher != null) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "page-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(() -> flushDirtyPages(false), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -53,10 +114,15 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public int newPage(byte[] initData) {
-        int pgno = pageNumbers.incrementAndGet(); // incrementAndGet() 对整数进行自增操作
-        Page pg = new PageImpl(pgno, initData, null); // 创建新页面对象
-        flush(pg); // 将页面刷新到数据库文件
-        return pgno;
+        creatingPages.incrementAndGet(); // 写入文件之前不允许预读，避免把空页读进缓存
+        try {
+            int pgno = pageNumbers.incrementAndGet(); // incrementAndGet() 对整数进行自增操作
+            // 新页面不需要立即 force，崩溃后由日志恢复，检查点时统一落盘
+            write(pgno, initData);
+            return pgno;
+        } finally {
+            creatingPages.decrementAndGet();
+        }
     }
 
     /**
@@ -67,11 +133,64 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public Page getPage(int pgno) throws Exception {
+        readAhead(pgno);
         return get((long) pgno); // 从缓存中获取页面
     }
 
+    /**
+     * 检测顺序访问：连续访问相邻页面达到阈值后，预读后面 READ_AHEAD 页，
+     * 访问到已预读区间的后半段时再预读下一段，使读盘与处理重叠
+     */
+    private void readAhead(int pgno) {
+        int last = lastPgno.getAndSet(pgno);
+        if (pgno != last + 1) {
+            if (pgno != last) {
+                seqRun.set(1); // 从当前页面重新开始计数
+            }
+            return;
+        }
+        if (seqRun.incrementAndGet() < SEQ_THRESHOLD) {
+            return;
+        }
+        int to = readAheadTo.get();
+        if (to >= pgno + READ_AHEAD / 2 && to <= pgno + READ_AHEAD) {
+            // 前面的预读还没有用到一半
+            return;
+        }
+        int newTo = pgno + READ_AHEAD;
+        if (readAheadTo.compareAndSet(to, newTo)) {
+            // 已预读区间与当前位置相接时只预读后面的部分，否则(新的一次扫描)从当前位置开始
+            int from = to > pgno && to < newTo ? to + 1 : pgno + 1;
+            prefetch(from, newTo - from + 1);
+        }
+    }
+
+    @Override
+    public void prefetch(int fromPgno, int count) {
+        if (count <= 0 || fromPgno > pageNumbers.get()) {
+            return;
+        }
+        prefetcher.execute(() -> {
+            // 先读页数再确认没有正在创建的页面：不超过该页数的页面都已经写入文件
+            int maxPgno = pageNumbers.get();
+            if (creatingPages.get() != 0) {
+                return;
+            }
+            int end = Math.min(fromPgno + count - 1, maxPgno);
+            for (int pgno = Math.max(fromPgno, 1); pgno <= end; pgno++) {
+                try {
+                    preload(pgno);
+                } catch (Exception e) {
+                    // 缓存已满且没有可驱逐的页面，放弃剩余的预读
+                    return;
+                }
+            }
+        });
+    }
+
     /**
      * 根据页号从数据库文件中读取页数据，并包裹成Page
+     * 数据直接读入从帧池取出的帧，按位置读取不改变通道位置，不需要文件锁
      * @param key 页号
      * @return 页面对象
      * @throws Exception 如果获取页面出错
@@ -81,17 +200,20 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         int pgno = (int) key;
         long offset = PageCacheImpl.pageOffset(pgno); // 计算页的偏移量
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE); // 分配PAGE_SIZE大小的缓冲区
-        fileLock.lock(); // 获取文件锁
+        byte[] frame = frames.acquire();
+        ByteBuffer buf = ByteBuffer.wrap(frame);
         try {
-            fc.position(offset); // 设置通道位置
-            fc.read(buf); // 从通道读取数据到缓冲区
+            while (buf.hasRemaining()) {
+                if (fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
         } catch (IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock(); // 释放文件锁
         }
-        return new PageImpl(pgno, buf.array(), this); // 创建包含读取数据的页面对象
+        // 复用的帧中残留上一个页面的数据，文件末尾之后的部分补零
+        Arrays.fill(frame, buf.position(), PAGE_SIZE, (byte) 0);
+        return new PageImpl(pgno, frame, this); // 创建包含读取数据的页面对象
     }
 
     /**
@@ -100,10 +222,18 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     protected void releaseForCache(Page pg) {
-        if (pg.isDirty()) {// 如果页面被修改过，则将其刷新到数据库文件
-            flush(pg);// 将修改过的页面刷新到数据库文件，将最新的数据持久化到磁盘
+        if (pg.isDirty()) {// 如果页面被修改过，则将其写回数据库文件
             pg.setDirty(false); // 将页面标记为未修改状态，以便在需要时可以避免重复的写入操作
+            write(pg.getPageNumber(), pg.getData());// 驱逐的页面没有被引用，不会有并发修改；是否落盘由检查点决定
         }
+        frames.recycle(pg.getData()); // 页面已没有引用，帧交给下一个读入的页面
+    }
+
+    /**
+     * 帧池分配过的帧个数
+     */
+    long allocatedFrames() {
+        return frames.allocated();
     }
 
     /**
@@ -121,24 +251,71 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public void flushPage(Page pg) {
-        flush(pg); // 刷新页面到数据库文件
+        write(pg.getPageNumber(), pg.getData()); // 写入页面
+        force(); // 强制刷盘
     }
 
     /**
-     * 用于实际执行将页面刷新到数据库文件的操作
-     * @param pg 要刷新的页面
+     * 批量写回所有脏页，按页号排序后写入，整批只 force 一次
+     * @param wait 为 true 时等待正在修改的页面结束修改，保证调用前的脏页全部落盘(用于检查点)；
+     *             为 false 时直接跳过这些页面(用于后台刷盘)
+     */
+    private void flushDirtyPages(boolean wait) {
+        flushLock.lock();
+        try {
+            List<Long> dirty = cachedKeys(Page::isDirty);
+            if(dirty.isEmpty()) {
+                return;
+            }
+            dirty.sort(Comparator.naturalOrder());
+            for(long pgno : dirty) {
+                // 写回期间引用该页，避免被驱逐后又从磁盘读到旧数据
+                Page pg = getIfCached(pgno);
+                if(pg == null) {
+                    continue;
+                }
+                try {
+                    byte[] data = ((PageImpl) pg).snapshot();
+                    while(data == null && wait && pg.isDirty()) {
+                        // 页面正在修改，日志尚未落盘，稍后重试
+                        Thread.yield();
+                        data = ((PageImpl) pg).snapshot();
+                    }
+                    if(data != null) {
+                        write(pg.getPageNumber(), data);
+                    }
+                } finally {
+                    release(pg);
+                }
+            }
+            force();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * 写回所有脏页并落盘，检查点调用
      */
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber(); // 获取页面编号
+    @Override
+    public void flushDirtyPages() {
+        flushDirtyPages(true);
+    }
+
+    /**
+     * 将页面数据写入数据库文件，不强制刷盘
+     * @param pgno 页号
+     * @param data 页面数据
+     */
+    private void write(int pgno, byte[] data) {
         long offset = pageOffset(pgno); // 计算页的偏移量
 
         fileLock.lock(); // 获取文件锁
         try {
             //ByteBuffer.wrap(byte[] array) 接受一个字节数组 array 作为参数，并返回一个新的 ByteBuffer 对象，该对象将给定的字节数组包装到缓冲区中
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
+            ByteBuffer buf = ByteBuffer.wrap(data);
             fc.position(offset); // 设置通道位置
             fc.write(buf); // 将缓冲区数据写入通道
-            fc.force(false); // 强制将数据刷新到磁盘，但不刷新元数据,如文件的最后修改时间
         } catch (IOException e) {
             Panic.panic(e);
         } finally {
@@ -146,6 +323,20 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
     }
 
+    /**
+     * 强制将已写入的数据刷新到磁盘，但不刷新元数据,如文件的最后修改时间
+     */
+    private void force() {
+        fileLock.lock();
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            fileLock.unlock();
+        }
+    }
+
     /**
      * 根据最大页号进行数据库文件的截断
      * @param maxPgno 最大页号
@@ -154,10 +345,13 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     public void truncateByBgno(int maxPgno) {
         //页面编号是从 1 开始的，所以要考虑下一个页面的编号
         long size = pageOffset(maxPgno + 1); // 计算截断后的文件大小
+        fileLock.lock();
         try {
             file.setLength(size); // 设置文件长度
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.unlock();
         }
         pageNumbers.set(maxPgno); // 设置页面编号计数器的值
     }
@@ -167,7 +361,24 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public void close() {
-        super.close();
+        // 停止预读，丢弃排队的任务；不中断正在读盘的线程，中断会关闭共享的文件通道
+        prefetcher.getQueue().clear();
+        prefetcher.shutdown();
+        try {
+            prefetcher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        if (flusher != null) {
+            flusher.shutdown(); // 停止后台刷盘
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+        super.close(); // 写回所有脏页
+        force();
         try {
             fc.close(); // 关闭文件通道
             file.close(); // 关闭文件
@@ -192,7 +403,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     private static long pageOffset(int pgno) {
         //pgno - 1 表示给定页面编号 pgno 的前一个页面编号。因为页面编号是从 1 开始的，所以要考虑前一个页面的编号
-        return (pgno - 1) * PAGE_SIZE; // 计算页的偏移量
+        return (long) (pgno - 1) * PAGE_SIZE; // 计算页的偏移量
     }
 
 }
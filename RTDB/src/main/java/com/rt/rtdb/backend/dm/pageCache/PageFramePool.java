@@ -0,0 +1,60 @@
+package com.rt.rtdb.backend.dm.pageCache;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 页面帧池
+ *
+ * 每个页面帧是一个 PAGE_SIZE 大小的 byte[]，启动时一次性分配 capacity 个。
+ * 页面被驱逐写回后，它的帧回到池中，由下一个读入的页面复用，
+ * 稳定运行时读入页面不再分配新数组，帧一直存活在老年代，不会产生需要回收的垃圾。
+ *
+ * 缓存短暂超出上限导致池为空时临时分配新帧，回收时池已满的帧交给 GC。
+ * capacity 为 0 时不做复用，每次读入都分配新数组。
+ */
+class PageFramePool {
+
+    private final ArrayBlockingQueue<byte[]> free; // 空闲的帧，capacity 为 0 时为 null
+    private final AtomicLong allocated = new AtomicLong(0); // 分配过的帧个数
+
+    PageFramePool(int capacity) {
+        if(capacity <= 0) {
+            this.free = null;
+            return;
+        }
+        this.free = new ArrayBlockingQueue<>(capacity);
+        for(int i = 0; i < capacity; i ++) {
+            free.offer(new byte[PageCache.PAGE_SIZE]);
+        }
+        allocated.set(capacity);
+    }
+
+    /**
+     * 取出一个帧，帧中可能残留上一个页面的数据，由调用方覆盖
+     */
+    byte[] acquire() {
+        byte[] frame = free == null ? null : free.poll();
+        if(frame == null) {
+            allocated.incrementAndGet();
+            frame = new byte[PageCache.PAGE_SIZE];
+        }
+        return frame;
+    }
+
+    /**
+     * 归还一个不再被任何页面使用的帧
+     */
+    void recycle(byte[] frame) {
+        if(free != null) {
+            free.offer(frame);
+        }
+    }
+
+    /**
+     * 分配过的帧个数，稳定运行时不再增长
+     */
+    long allocated() {
+        return allocated.get();
+    }
+}
@@ -3,7 +3,9 @@ package com.rt.rtdb.backend.dm.pageIndex;
 import com.rt.rtdb.backend.dm.pageCache.PageCache;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -15,6 +17,8 @@ public class PageIndex {
     private Lock lock;
     // 用于存储每个区间的页面信息列表的数组
     private List<PageInfo>[] lists;
+    // 当前在索引中的页面，被 select 取出、正在插入的页面不在其中
+    private Map<Integer, PageInfo> pages;
 
     @SuppressWarnings("unchecked")
     public PageIndex() {
@@ -23,6 +27,7 @@ public class PageIndex {
         for (int i = 0; i < INTERVALS_NO + 1; i++) {
             lists[i] = new ArrayList<>();
         }
+        pages = new HashMap<>();
     }
 
     /**
@@ -34,7 +39,9 @@ public class PageIndex {
         lock.lock(); // 获取锁，保证线程安全
         try {
             int number = freeSpace / THRESHOLD; // 计算页面所属的区间
-            lists[number].add(new PageInfo(pgno, freeSpace)); // 将页面信息添加到对应的区间列表中
+            PageInfo pi = new PageInfo(pgno, freeSpace);
+            lists[number].add(pi); // 将页面信息添加到对应的区间列表中
+            pages.put(pgno, pi);
         } finally {
             lock.unlock(); // 释放锁
         }
@@ -57,11 +64,35 @@ public class PageIndex {
                     number++;
                     continue;
                 }
-                return lists[number].remove(0); // 返回该区间的第一个页面信息，并从列表中移除
+                PageInfo pi = lists[number].remove(0); // 返回该区间的第一个页面信息，并从列表中移除
+                pages.remove(pi.pgno, pi);
+                return pi;
             }
             return null; // 所有区间都为空，返回null
         } finally {
             lock.unlock(); // 释放锁
         }
     }
+
+    /**
+     * 页面释放了数据项后更新它的可用空间
+     * 页面正被 select 取出时不做处理，插入结束后会按最新的可用空间重新加入
+     * @param pgno 页面编号
+     * @param freeSpace 页面可用空间大小
+     */
+    public void update(int pgno, int freeSpace) {
+        lock.lock();
+        try {
+            PageInfo pi = pages.get(pgno);
+            if (pi == null) {
+                return;
+            }
+            lists[pi.freeSpace / THRESHOLD].remove(pi);
+            PageInfo updated = new PageInfo(pgno, freeSpace);
+            lists[freeSpace / THRESHOLD].add(updated);
+            pages.put(pgno, updated);
+        } finally {
+            lock.unlock();
+        }
+    }
 }
@@ -6,8 +6,9 @@ import com.rt.rtdb.backend.dm.dataItem.DataItem;
 import com.rt.rtdb.backend.tm.TransactionManagerImpl;
 import com.rt.rtdb.backend.utils.Parser;
 import com.rt.rtdb.backend.im.Node.InsertAndSplitRes;
-import com.rt.rtdb.backend.im.Node.LeafSearchRangeRes;
+import com.rt.rtdb.backend.im.Node.LeafDeleteRes;
 import com.rt.rtdb.backend.im.Node.SearchNextRes;
+import com.rt.rtdb.common.Error;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -17,25 +18,58 @@ import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * B +树实现聚簇索引
+ *
+ * 并发控制采用 B-link 树的方式：每个节点都有指向右兄弟的链接，分裂时先把右半部分移入新节点并链接，
+ * 再向父节点插入新节点。下降不对内部节点加锁，只做乐观读；在节点中找不到 key 的范围时沿兄弟链接向右，
+ * 因此不会因为并发分裂而走错。修改只对当前节点加写锁，不同时持有多个节点的锁
+ *
+ * 扇出即节点最多容纳的键数，在创建索引时选定：扇出越大树越矮，点查读的节点越少，
+ * 但每个节点占的空间和节点内移动的数据越多。PAGE_FANOUT 使一个节点恰好占满一个页面
+ *
+ * 删除后叶子节点的键数少于扇出的四分之一时，与同一父节点下相邻的节点合并，父节点因此过空时继续向上合并；
+ * compact 自底向上把相邻的稀疏节点合并到接近 BulkLoader 的填充率。合并总是把右边的节点并入左边的节点，
+ * 右边的节点保持原样并标记为已合并，之前拿到它的读者仍能读完，之后由调用方在这些读者结束后释放（见 drainRetired）。
+ * 在两个仍在树中的节点之间移动部分项会使读完一个节点的读者在另一个节点中重复看到或漏掉这些项，因此不做重新分配。
+ * 树的高度不因删除而降低
  * @author ryh
  * @version 1.0
  * @since 1.0
  * @create 2023/7/30 10:59
  **/
 public class BPlusTree {
+    public static final int DEFAULT_FANOUT = Node.DEFAULT_BALANCE_NUMBER * 2; // 默认的扇出
+    public static final int MIN_FANOUT = Node.MIN_BALANCE_NUMBER * 2; // 最小的扇出
+    public static final int PAGE_FANOUT = Node.PAGE_BALANCE_NUMBER * 2; // 一个节点占一个页面时的扇出，也是最大的扇出
+
     DataManager dm; // 数据管理器对象
     long bootUid; // 根节点的UID
     DataItem bootDataItem; // 根节点的数据项
-    Lock bootLock; // 根节点的锁对象
+    Lock bootLock; // 更新根节点UID时加锁
+    volatile long rootUid; // 根节点的UID，与 bootDataItem 中的一致
+    int balance; // 平衡数，为扇出的一半
+    Lock structureLock; // 合并节点时加锁，同一时刻只有一个线程合并，合并时依次持有父节点、左右两个子节点的锁
+    List<Long> retired; // 已合并、等待释放的节点，受 structureLock 保护
 
     /**
-     * 创建一个B+树
+     * 以默认的扇出创建一个B+树
      * @param dm 数据管理器对象
      * @return 根节点的UID
      * @throws Exception 异常
      */
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw(); // 创建一个新的空根节点的原始数据数组
+        return create(dm, DEFAULT_FANOUT);
+    }
+
+    /**
+     * 创建一个B+树
+     * @param dm 数据管理器对象
+     * @param fanout 扇出，节点最多容纳的键数
+     * @return 根节点的UID
+     * @throws Exception 扇出不合法时抛出 InvalidFanoutException
+     */
+    public static long create(DataManager dm, int fanout) throws Exception {
+        checkFanout(fanout);
+        byte[] rawRoot = Node.newNilRootRaw(fanout / 2); // 创建一个新的空根节点的原始数据数组
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot); // 插入根节点的原始数据数组，并返回UID
         return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid)); // 将根节点的UID插入到数据管理器中，并返回UID
     }
@@ -55,80 +89,101 @@ public class BPlusTree {
         t.dm = dm; // 设置数据管理器
         t.bootDataItem = bootDataItem; // 设置启动数据项
         t.bootLock = new ReentrantLock(); // 创建启动锁
+        t.structureLock = new ReentrantLock();
+        t.retired = new ArrayList<>();
+        SubArray sa = bootDataItem.data();
+        t.rootUid = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8)); // 读出根节点的UID
+        Node root = Node.loadNode(t, t.rootUid);
+        t.balance = root.balance; // 同一棵树的节点大小相同，由根节点得到平衡数
+        root.release();
         return t; // 返回加载的B+树
     }
 
+    /**
+     * 检查扇出是否合法：为偶数，且在 MIN_FANOUT 与 PAGE_FANOUT 之间
+     * @param fanout 扇出
+     * @throws Exception 不合法时抛出 InvalidFanoutException
+     */
+    public static void checkFanout(int fanout) throws Exception {
+        if(fanout % 2 != 0 || fanout < MIN_FANOUT || fanout > PAGE_FANOUT) {
+            throw Error.InvalidFanoutException;
+        }
+    }
+
+    /**
+     * 获取扇出
+     * @return 节点最多容纳的键数
+     */
+    public int getFanout() {
+        return balance * 2;
+    }
+
     /**
      * 获取根节点的UID
      * @return 根节点的UID
      */
     private long getRootUid() {
-        bootLock.lock(); // 获取根节点的锁
-        try {
-            SubArray sa = bootDataItem.data(); // 获取根节点的数据数组
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8)); // 将根节点的UID从数据数组中解析并返回
-        } finally {
-            bootLock.unlock(); // 释放根节点的锁
-        }
+        return rootUid; // 只在 bootLock 下更新，读取不加锁
     }
 
     /**
-     * 更新根节点的UID
-     * @param left 左子节点的UID
-     * @param right 右子节点的UID
-     * @param rightKey 右子节点的键值
+     * 原来的根节点分裂后，以它和分裂出的节点为子节点创建新的根
+     * @param oldRoot 分裂的节点，即下降时的根节点
+     * @param right 分裂出的右节点的UID
+     * @param rightKey 右节点的键值
+     * @return 创建了新的根返回true；oldRoot 已不是根时返回false，此时已有其他线程为它创建了父节点
      * @throws Exception 异常
      */
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    private boolean growRoot(long oldRoot, long right, long rightKey) throws Exception {
         bootLock.lock(); // 获取根节点的锁
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey); // 创建一个新的根节点的原始数据数组
+            if(rootUid != oldRoot) {
+                return false;
+            }
+            byte[] rootRaw = Node.newRootRaw(oldRoot, right, rightKey, balance); // 创建一个新的根节点的原始数据数组
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw); // 插入新的根节点的原始数据数组，并返回UID
             bootDataItem.before(); // 在更新根节点之前，标记根节点的数据项为脏数据
             SubArray diRaw = bootDataItem.data(); // 获取根节点的数据数组
             System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8); // 将新的根节点的UID转换为字节数组，并复制到根节点的数据数组中
             bootDataItem.after(TransactionManagerImpl.SUPER_XID); // 在更新根节点之后，标记根节点的数据项为干净数据
+            rootUid = newRootUid;
+            return true;
         } finally {
             bootLock.unlock(); // 释放根节点的锁
         }
     }
 
     /**
-     * 在B+树中搜索叶子节点
-     * @param nodeUid 节点的UID
+     * 从根节点下降到key所在的叶子节点
+     * 内部节点用乐观读，不加锁；下降期间节点被分裂时，key 可能已移到右边的兄弟节点，沿兄弟链接向右即可找到
      * @param key 键值
+     * @param path 不为null时，依次记录每一层实际经过的节点，最后一个为叶子节点
      * @return 叶子节点的UID
      * @throws Exception 异常
      */
-    private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid); // 加载节点
-        boolean isLeaf = node.isLeaf(); // 判断节点是否为叶子节点
-        node.release(); // 释放节点
-
-        if(isLeaf) {
-            return nodeUid; // 如果是叶子节点，则返回节点的UID
-        } else {
-            long next = searchNext(nodeUid, key); // 否则，搜索下一个节点
-            return searchLeaf(next, key); // 递归搜索下一个节点
-        }
-    }
-
-    /**
-     * 在B+树中搜索下一个节点
-     * @param nodeUid 节点的UID
-     * @param key 键值
-     * @return 下一个节点的UID
-     * @throws Exception 异常
-     */
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchLeaf(long key, List<Long> path) throws Exception {
+        long nodeUid = getRootUid();
         while(true) {
             Node node = Node.loadNode(this, nodeUid); // 加载节点
-            SearchNextRes res = node.searchNext(key); // 搜索下一个节点
-            node.release(); // 释放节点
-            if(res.uid != 0) {
-                return res.uid; // 如果找到下一个节点，则返回其UID
+            try {
+                if(node.isLeaf()) {
+                    if(path != null) {
+                        path.add(nodeUid);
+                    }
+                    return nodeUid; // 如果是叶子节点，则返回节点的UID
+                }
+                SearchNextRes res = node.searchNext(key); // 搜索下一个节点
+                if(res.uid != 0) {
+                    if(path != null) {
+                        path.add(nodeUid);
+                    }
+                    nodeUid = res.uid; // 下降到子节点
+                } else {
+                    nodeUid = res.siblingUid; // key 不在本节点的范围内，向右移动
+                }
+            } finally {
+                node.release(); // 释放节点
             }
-            nodeUid = res.siblingUid; // 否则，继续搜索下一个节点
         }
     }
 
@@ -150,36 +205,60 @@ public class BPlusTree {
      * @throws Exception 异常
      */
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = getRootUid(); // 获取根节点的UID
-        long leafUid = searchLeaf(rootUid, leftKey); // 在B+树中搜索左边界键值所在的叶子节点
+        RangeCursor cursor = cursor(leftKey, rightKey);
         List<Long> uids = new ArrayList<>();
-        while(true) {
-            Node leaf = Node.loadNode(this, leafUid); // 加载叶子节点
-            // 在叶子节点中搜索指定键值范围内的数据项
-            LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release(); // 释放叶子节点
-            uids.addAll(res.uids); // 将搜索到的数据项的UID添加到列表中
-            if(res.siblingUid == 0) {
-                break; // 如果没有下一个叶子节点，则跳出循环
-            } else {
-                leafUid = res.siblingUid; // 否则，继续搜索下一个叶子节点
-            }
+        while(cursor.hasNext()) {
+            uids.add(cursor.next()); // 将搜索到的数据项的UID添加到列表中
         }
         return uids; // 返回包含指定键值范围内的数据项的UID列表
     }
 
+    /**
+     * 打开范围扫描游标，逐个叶子地取出匹配的UID，不需要一次装入整个范围
+     * @param leftKey 左边界键值
+     * @param rightKey 右边界键值
+     * @return 定位到左边界键值所在叶子的游标
+     * @throws Exception 异常
+     */
+    public RangeCursor cursor(long leftKey, long rightKey) throws Exception {
+        return new RangeCursor(this, leftKey, rightKey, searchLeaf(leftKey, null));
+    }
+
     /**
      * 在B+树中插入数据项
+     * 乐观下降并记录经过的节点，只对叶子节点加写锁；叶子分裂时才对上一层的节点加写锁插入新的子节点，
+     * 同一时刻只持有一个节点的写锁。下降时的根节点分裂时，如果期间其他线程已为它创建了父节点，
+     * 则重新下降找到该父节点插入
      * @param key 键值
      * @param uid 数据项的UID
      * @throws Exception 异常
      */
     public void insert(long key, long uid) throws Exception {
-        long rootUid = getRootUid(); // 获取根节点的UID
-        InsertRes res = insert(rootUid, uid, key); // 在B+树中插入数据项
-        assert res != null;
-        if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey); // 如果有新的根节点，则更新根节点的UID
+        List<Long> path = new ArrayList<>();
+        searchLeaf(key, path);
+        long son = uid, sonKey = key;
+        for(int i = path.size() - 1; i >= 0; i --) {
+            InsertRes res = insertAndSplit(path.get(i), son, sonKey); // 插入本层的节点，必要时向右移动
+            if(res.retired) {
+                // 节点已被合并：重新下降，从新路径中同一层的位置重试；树的高度不会降低，该层一定存在
+                int level = path.size() - 1 - i;
+                path.clear();
+                searchLeaf(sonKey, path);
+                i = path.size() - level;
+                continue;
+            }
+            if(res.newNode == 0) {
+                return;
+            }
+            son = res.newNode;
+            sonKey = res.newKey;
+            if(i == 0 && !growRoot(path.get(0), son, sonKey)) {
+                // 根已变化：重新下降，从新路径中与分裂节点同层的位置继续向上插入
+                int level = path.size() - 1; // 分裂的节点所在的层，叶子为第0层
+                path.clear();
+                searchLeaf(sonKey, path);
+                i = path.size() - 1 - level;
+            }
         }
     }
 
@@ -188,34 +267,7 @@ public class BPlusTree {
      */
     class InsertRes {
         long newNode, newKey;
-    }
-
-    /**
-     * 在B+树中插入数据项
-     * @param nodeUid 节点的UID
-     * @param uid 数据项的UID
-     * @param key 键值
-     * @return 插入结果
-     * @throws Exception 异常
-     */
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid); // 加载节点
-        boolean isLeaf = node.isLeaf(); // 判断节点是否为叶子节点
-        node.release(); // 释放节点
-
-        InsertRes res = null;
-        if(isLeaf) {
-            res = insertAndSplit(nodeUid, uid, key); // 如果是叶子节点，则插入数据项并进行分裂
-        } else {
-            long next = searchNext(nodeUid, key); // 否则，搜索下一个节点
-            InsertRes ir = insert(next, uid, key); // 在下一个节点中插入数据项
-            if(ir.newNode != 0) {
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey); // 如果有新的节点产生，则插入数据项并进行分裂
-            } else {
-                res = new InsertRes();
-            }
-        }
-        return res; // 返回插入结果
+        boolean retired; // 要插入的节点已被合并
     }
 
     /**
@@ -231,6 +283,11 @@ public class BPlusTree {
             Node node = Node.loadNode(this, nodeUid); // 加载节点
             InsertAndSplitRes iasr = node.insertAndSplit(uid, key); // 插入数据项并进行分裂
             node.release(); // 释放节点
+            if(iasr.retired) {
+                InsertRes res = new InsertRes();
+                res.retired = true;
+                return res;
+            }
             if(iasr.siblingUid != 0) {
                 nodeUid = iasr.siblingUid; // 如果有兄弟节点，则继续插入并分裂
             } else {
@@ -242,6 +299,228 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * 从B+树中删除键为key、指向uid的索引项，删除后叶子节点过空时与相邻的节点合并
+     * @param key 键值
+     * @param uid 数据项的UID
+     * @return 是否找到并删除了索引项
+     * @throws Exception 异常
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        List<Long> path = new ArrayList<>();
+        long leafUid = searchLeaf(key, path); // 搜索键值所在的叶子节点
+        while(leafUid != 0) {
+            Node leaf = Node.loadNode(this, leafUid); // 加载叶子节点
+            LeafDeleteRes res = leaf.leafDelete(key, uid); // 在叶子节点中删除索引项
+            leaf.release(); // 释放叶子节点
+            if(res.retired) {
+                path.clear();
+                leafUid = searchLeaf(key, path); // 叶子已被合并，重新下降
+                continue;
+            }
+            if(res.deleted) {
+                if(res.noKeys < balance / 2) {
+                    mergeUp(path, leafUid);
+                }
+                return true;
+            }
+            leafUid = res.siblingUid; // 继续在兄弟节点中查找
+        }
+        return false;
+    }
+
+    /**
+     * 节点过空后沿下降的路径向上合并：与父节点中相邻的节点合并，父节点因此过空时继续合并父节点。
+     * 节点不在路径中记录的父节点里时（父节点已分裂，或删除发生在右边的兄弟节点中）不合并，留给 compact
+     * @param path 下降时经过的节点，最后一个为叶子节点
+     * @param nodeUid 过空的叶子节点
+     * @throws Exception 异常
+     */
+    private void mergeUp(List<Long> path, long nodeUid) throws Exception {
+        structureLock.lock();
+        try {
+            for(int i = path.size() - 2; i >= 0; i --) {
+                MergeRes res = mergeSons(path.get(i), nodeUid, balance * 2 - 1, true);
+                if(!res.merged || res.parentKeys >= balance / 2) {
+                    return;
+                }
+                nodeUid = path.get(i);
+            }
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    /**
+     * 合并结果类
+     */
+    class MergeRes {
+        boolean merged; // 是否合并了
+        int parentKeys; // 父节点剩余的子节点数
+        long nextSon; // 没有合并时，父节点中 sonUid 右边的子节点，没有时为0
+    }
+
+    /**
+     * 在父节点中把 sonUid 右边相邻的子节点并入 sonUid，调用方持有 structureLock
+     *
+     * 依次锁住父节点、左右两个子节点后修改，并按同样的顺序写日志：只记录了父节点时，右边的节点只是暂时不在父节点中，
+     * 与分裂后尚未插入父节点的状态相同，沿兄弟链接仍可达；之后任何时刻崩溃，树都是合法的 B-link 树
+     * @param parentUid 父节点的UID
+     * @param sonUid 子节点的UID
+     * @param limit 合并后最多的键数
+     * @param withLeft sonUid 是最后一个子节点时，是否改为把它并入左边相邻的子节点
+     * @return 合并结果
+     * @throws Exception 异常
+     */
+    private MergeRes mergeSons(long parentUid, long sonUid, int limit, boolean withLeft) throws Exception {
+        MergeRes res = new MergeRes();
+        Node parent = Node.loadNode(this, parentUid);
+        Node left = null, right = null;
+        boolean merged = false;
+        parent.dataItem.before();
+        try {
+            int noKeys = Node.getRawNoKeys(parent.raw);
+            res.parentKeys = noKeys;
+            int kth = Node.getRawIfRetired(parent.raw) ? -1 : parent.sonIndex(sonUid);
+            if(kth < 0) {
+                return res;
+            }
+            if(kth + 1 == noKeys) {
+                if(!withLeft || kth == 0) {
+                    return res;
+                }
+                kth --;
+            }
+            long leftUid = Node.getRawKthSon(parent.raw, kth), rightUid = Node.getRawKthSon(parent.raw, kth + 1);
+            res.nextSon = rightUid;
+            left = Node.loadNode(this, leftUid);
+            right = Node.loadNode(this, rightUid);
+            left.dataItem.before();
+            right.dataItem.before();
+            if(!left.canAbsorb(right, limit)) {
+                right.dataItem.unBefore();
+                left.dataItem.unBefore();
+                return res;
+            }
+            parent.removeSon(kth);
+            left.absorb(right);
+            right.retire();
+            parent.dataItem.after(TransactionManagerImpl.SUPER_XID);
+            left.dataItem.after(TransactionManagerImpl.SUPER_XID);
+            right.dataItem.after(TransactionManagerImpl.SUPER_XID);
+            merged = true;
+            retired.add(rightUid);
+            res.merged = true;
+            res.parentKeys = noKeys - 1;
+            res.nextSon = leftUid; // 合并后的节点可能还能继续合并
+            return res;
+        } finally {
+            if(!merged) {
+                parent.dataItem.unBefore();
+            }
+            if(left != null) {
+                left.release();
+            }
+            if(right != null) {
+                right.release();
+            }
+            parent.release();
+        }
+    }
+
+    /**
+     * 在线整理索引：自底向上逐层遍历，把同一父节点下相邻的、合起来不超过 BulkLoader 填充率的节点合并。
+     * 每次合并只锁一个父节点和它的两个子节点，期间的插入、删除和查找照常进行
+     * @return 合并掉的节点数
+     * @throws Exception 异常
+     */
+    public int compact() throws Exception {
+        int limit = Math.max(2, Math.min(getFanout() - 1, (int) (getFanout() * BulkLoader.DEFAULT_FILL_FACTOR)));
+        structureLock.lock();
+        try {
+            // 合并掉的总是右边的节点，每层最左边的节点不变；从根向下记录各内部层最左边的节点
+            List<Long> levels = new ArrayList<>();
+            long nodeUid = getRootUid();
+            while(true) {
+                Node node = Node.loadNode(this, nodeUid);
+                Node.NodeInfo info = node.info();
+                node.release();
+                if(info.isLeaf) {
+                    break;
+                }
+                levels.add(nodeUid);
+                nodeUid = info.firstSon;
+            }
+            int merged = 0;
+            for(int i = levels.size() - 1; i >= 0; i --) {
+                for(long parentUid = levels.get(i); parentUid != 0; ) {
+                    Node parent = Node.loadNode(this, parentUid);
+                    Node.NodeInfo info = parent.info();
+                    parent.release();
+                    for(long son = info.firstSon; son != 0; ) {
+                        MergeRes res = mergeSons(parentUid, son, limit, false);
+                        if(res.merged) {
+                            merged ++;
+                        } else {
+                            son = res.nextSon;
+                        }
+                    }
+                    parentUid = info.siblingUid;
+                }
+            }
+            return merged;
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    /**
+     * 取出已合并、不再在树中的节点。之前开始的读取仍可能访问它们，
+     * 调用方应在这些读取都结束后用 DataManager.free 释放
+     * @return 节点的UID
+     */
+    public List<Long> drainRetired() {
+        structureLock.lock();
+        try {
+            List<Long> res = retired;
+            retired = new ArrayList<>();
+            return res;
+        } finally {
+            structureLock.unlock();
+        }
+    }
+
+    /**
+     * 统计树的高度和各层的填充率
+     * 从根节点开始，每层沿兄弟链表遍历所有节点，再下降到该层第一个节点的第一个子节点。
+     * 遍历期间不阻塞修改，并发插入时得到的是近似值
+     * @return 统计结果
+     * @throws Exception 异常
+     */
+    public TreeStats stats() throws Exception {
+        TreeStats stats = new TreeStats(getFanout());
+        long levelUid = getRootUid();
+        while(levelUid != 0) {
+            long nodes = 0, keys = 0, firstSon = 0;
+            boolean leaf = false;
+            for(long nodeUid = levelUid; nodeUid != 0; ) {
+                Node node = Node.loadNode(this, nodeUid);
+                Node.NodeInfo info = node.info();
+                node.release();
+                if(nodes == 0) {
+                    leaf = info.isLeaf;
+                    firstSon = info.firstSon;
+                }
+                nodes ++;
+                keys += info.noKeys;
+                nodeUid = info.siblingUid;
+            }
+            stats.addLevel(nodes, keys);
+            levelUid = leaf ? 0 : firstSon;
+        }
+        return stats;
+    }
+
     /**
      * 关闭B+树
      */
@@ -0,0 +1,349 @@
+package com.rt.rtdb.backend.im;
+
+import com.rt.rtdb.backend.common.SubArray;
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.tm.TransactionManagerImpl;
+import com.rt.rtdb.backend.utils.Parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * 自底向上批量构建 B+树，用于在已有数据上建索引
+ *
+ * 1. add 收集 (key, uid)，内存中的缓冲区满时排序后写入临时文件作为一个有序段
+ * 2. build 归并所有有序段，按键降序依次产生索引项，从最右边的叶子开始向左逐个写出节点：
+ *    写一个节点时它右边的兄弟已经写出，兄弟链接一次写好，每个节点只写一次，不需要分裂
+ * 3. 每个节点装入 fillFactor * 扇出 个键，各节点的键数至多相差 1；
+ *    下一层对上一层的节点重复同样的过程，直到只剩一个节点作为根
+ *
+ * 内部节点的键与分裂产生的一致：第 i 个键为第 i+1 个子节点的第一个键，每层最右边的为 Long.MAX_VALUE
+ */
+public class BulkLoader {
+
+    public static final int DEFAULT_RUN_SIZE = 1 << 20; // 每个有序段的索引项数，约 16MB
+    public static final double DEFAULT_FILL_FACTOR = 0.9; // 留出少量空间，之后的插入不会立即导致分裂
+
+    private final DataManager dm;
+    private final int balance;
+    private final int runSize;
+    private final int perNode; // 每个节点装入的键数上限
+
+    private long[] keys, uids; // 当前有序段的缓冲区
+    private int size;
+    private long count; // 收集的索引项总数
+    private final List<File> runs = new ArrayList<>();
+
+    public BulkLoader(DataManager dm, int fanout) throws Exception {
+        this(dm, fanout, DEFAULT_RUN_SIZE, DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * @param dm 数据管理器
+     * @param fanout 扇出
+     * @param runSize 内存中最多缓存的索引项数，超过时写入临时文件
+     * @param fillFactor 节点的填充率，节点最多装入 扇出 - 1 个键，否则之后的第一次插入就会分裂
+     * @throws Exception 扇出不合法时抛出 InvalidFanoutException
+     */
+    public BulkLoader(DataManager dm, int fanout, int runSize, double fillFactor) throws Exception {
+        BPlusTree.checkFanout(fanout);
+        this.dm = dm;
+        this.balance = fanout / 2;
+        this.runSize = runSize;
+        this.perNode = Math.max(3, Math.min(fanout - 1, (int) (fanout * fillFactor)));
+        this.keys = new long[Math.min(runSize, 1024)];
+        this.uids = new long[keys.length];
+    }
+
+    /**
+     * 加入一个索引项，顺序任意
+     */
+    public void add(long key, long uid) throws IOException {
+        if(size == keys.length) {
+            if(size == runSize) {
+                spill();
+            } else {
+                int n = Math.min(runSize, size * 2);
+                keys = Arrays.copyOf(keys, n);
+                uids = Arrays.copyOf(uids, n);
+            }
+        }
+        keys[size] = key;
+        uids[size] = uid;
+        size ++;
+        count ++;
+    }
+
+    /**
+     * 构建 B+树，之后不能再 add
+     * @return B+树的 bootUid，用于 BPlusTree.load
+     * @throws Exception 异常
+     */
+    public long build() throws Exception {
+        try {
+            long rootUid = count == 0
+                    ? dm.insert(TransactionManagerImpl.SUPER_XID, Node.newNilRootRaw(balance))
+                    : buildLevels(openSource());
+            return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        } finally {
+            for(File f : runs) {
+                f.delete();
+            }
+            runs.clear();
+            keys = uids = null;
+        }
+    }
+
+    /**
+     * 自底向上逐层构建，返回根节点的UID
+     */
+    private long buildLevels(Source src) throws Exception {
+        // 叶子层：从右向左，level 中按从左到右的顺序记录每个节点的 UID 和第一个键
+        int nodes = nodesFor(count);
+        long[] levelUids = new long[nodes];
+        long[] levelKeys = new long[nodes];
+        long sibling = 0;
+        for(int j = nodes - 1; j >= 0; j --) {
+            int n = sizeOf(count, nodes, j);
+            SubArray raw = newNode(true, n, sibling);
+            for(int i = n - 1; i >= 0; i --) {
+                src.next();
+                Node.setRawKthKey(raw, src.key, i);
+                Node.setRawKthSon(raw, src.uid, i);
+            }
+            sibling = dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw);
+            levelUids[j] = sibling;
+            levelKeys[j] = src.key; // 最后取出的是节点中最小的键
+        }
+        src.close();
+
+        while(nodes > 1) {
+            int sons = nodes;
+            nodes = nodesFor(sons);
+            long[] upperUids = new long[nodes];
+            long[] upperKeys = new long[nodes];
+            sibling = 0;
+            int next = sons; // 从右向左已用到的子节点下标
+            for(int j = nodes - 1; j >= 0; j --) {
+                int n = sizeOf(sons, nodes, j);
+                SubArray raw = newNode(false, n, sibling);
+                for(int i = n - 1; i >= 0; i --) {
+                    next --;
+                    Node.setRawKthSon(raw, levelUids[next], i);
+                    Node.setRawKthKey(raw, next + 1 < sons ? levelKeys[next + 1] : Long.MAX_VALUE, i);
+                }
+                sibling = dm.insert(TransactionManagerImpl.SUPER_XID, raw.raw);
+                upperUids[j] = sibling;
+                upperKeys[j] = levelKeys[next];
+            }
+            levelUids = upperUids;
+            levelKeys = upperKeys;
+        }
+        return levelUids[0];
+    }
+
+    private int nodesFor(long entries) {
+        return (int) ((entries + perNode - 1) / perNode);
+    }
+
+    /**
+     * entries 个键平均分到 nodes 个节点中，第 j 个节点的键数
+     */
+    private static int sizeOf(long entries, int nodes, int j) {
+        return (int) (entries / nodes) + (j < entries % nodes ? 1 : 0);
+    }
+
+    private SubArray newNode(boolean isLeaf, int noKeys, long sibling) {
+        int size = Node.nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
+        Node.setRawIsLeaf(raw, isLeaf);
+        Node.setRawNoKeys(raw, noKeys);
+        Node.setRawSibling(raw, sibling);
+        return raw;
+    }
+
+    /**
+     * 将缓冲区按键降序排序后写入一个临时文件
+     */
+    private void spill() throws IOException {
+        sortDesc(keys, uids, 0, size - 1);
+        File f = File.createTempFile("rtdb_bulk", ".run");
+        runs.add(f);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            for(int i = 0; i < size; i ++) {
+                out.writeLong(keys[i]);
+                out.writeLong(uids[i]);
+            }
+        }
+        size = 0;
+    }
+
+    /**
+     * 按键降序产生所有索引项：只有一个段时直接读缓冲区，否则归并各临时文件
+     */
+    private Source openSource() throws IOException {
+        if(runs.isEmpty()) {
+            sortDesc(keys, uids, 0, size - 1);
+            return new ArraySource(keys, uids);
+        }
+        if(size > 0) {
+            spill();
+        }
+        return new MergeSource(runs);
+    }
+
+    /**
+     * 按 (key, uid) 降序排列两个平行数组的 [lo, hi]
+     */
+    static void sortDesc(long[] keys, long[] uids, int lo, int hi) {
+        while(hi - lo > 16) {
+            int mid = (lo + hi) >>> 1;
+            // 三数取中作为枢轴
+            if(greater(keys, uids, mid, lo)) {
+                swap(keys, uids, mid, lo);
+            }
+            if(greater(keys, uids, hi, lo)) {
+                swap(keys, uids, hi, lo);
+            }
+            if(greater(keys, uids, hi, mid)) {
+                swap(keys, uids, hi, mid);
+            }
+            long pk = keys[mid], pu = uids[mid];
+            int i = lo, j = hi;
+            while(i <= j) {
+                while(keys[i] > pk || (keys[i] == pk && uids[i] > pu)) {
+                    i ++;
+                }
+                while(keys[j] < pk || (keys[j] == pk && uids[j] < pu)) {
+                    j --;
+                }
+                if(i <= j) {
+                    swap(keys, uids, i ++, j --);
+                }
+            }
+            // 递归较短的一边，较长的一边循环处理，栈深度为 O(log n)
+            if(j - lo < hi - i) {
+                sortDesc(keys, uids, lo, j);
+                lo = i;
+            } else {
+                sortDesc(keys, uids, i, hi);
+                hi = j;
+            }
+        }
+        for(int i = lo + 1; i <= hi; i ++) {
+            for(int j = i; j > lo && greater(keys, uids, j, j - 1); j --) {
+                swap(keys, uids, j, j - 1);
+            }
+        }
+    }
+
+    private static boolean greater(long[] keys, long[] uids, int a, int b) {
+        return keys[a] > keys[b] || (keys[a] == keys[b] && uids[a] > uids[b]);
+    }
+
+    private static void swap(long[] keys, long[] uids, int a, int b) {
+        long t = keys[a];
+        keys[a] = keys[b];
+        keys[b] = t;
+        t = uids[a];
+        uids[a] = uids[b];
+        uids[b] = t;
+    }
+
+    /**
+     * 按降序产生索引项，调用方保证 next 的次数不超过索引项总数
+     */
+    private static abstract class Source {
+        long key, uid;
+
+        abstract void next() throws IOException;
+
+        void close() throws IOException {
+        }
+    }
+
+    private static class ArraySource extends Source {
+        private final long[] keys, uids;
+        private int pos;
+
+        ArraySource(long[] keys, long[] uids) {
+            this.keys = keys;
+            this.uids = uids;
+        }
+
+        @Override
+        void next() {
+            key = keys[pos];
+            uid = uids[pos];
+            pos ++;
+        }
+    }
+
+    /**
+     * 一个有序段的读取位置
+     */
+    private static class Run {
+        final DataInputStream in;
+        long key, uid;
+
+        Run(File f) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+        }
+
+        boolean advance() throws IOException {
+            try {
+                key = in.readLong();
+                uid = in.readLong();
+                return true;
+            } catch(EOFException e) {
+                in.close();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 多路归并各有序段，每次取出所有段当前索引项中最大的
+     */
+    private static class MergeSource extends Source {
+        private final PriorityQueue<Run> heap = new PriorityQueue<>((a, b) ->
+                a.key != b.key ? Long.compare(b.key, a.key) : Long.compare(b.uid, a.uid));
+
+        MergeSource(List<File> files) throws IOException {
+            for(File f : files) {
+                Run r = new Run(f);
+                if(r.advance()) {
+                    heap.add(r);
+                }
+            }
+        }
+
+        @Override
+        void next() throws IOException {
+            Run r = heap.poll();
+            key = r.key;
+            uid = r.uid;
+            if(r.advance()) {
+                heap.add(r);
+            }
+        }
+
+        @Override
+        void close() throws IOException {
+            for(Run r : heap) {
+                r.in.close();
+            }
+        }
+    }
+}
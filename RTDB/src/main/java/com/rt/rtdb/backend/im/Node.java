@@ -2,30 +2,67 @@ package com.rt.rtdb.backend.im;
 
 import com.rt.rtdb.backend.common.SubArray;
 import com.rt.rtdb.backend.dm.dataItem.DataItem;
+import com.rt.rtdb.backend.dm.page.PageX;
 import com.rt.rtdb.backend.tm.TransactionManagerImpl;
 import com.rt.rtdb.backend.utils.Parser;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * Node结构如下：
  * [LeafFlag][KeyNumber][SiblingUid]
  * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
+ *
+ * 键、子节点等字段直接在页面的字节数组上按大端序读写，不分配内存；节点内的键有序，查找用二分
+ *
+ * 只读的操作先做乐观读：记下数据项的版本戳，不加锁读取，读完后版本未变即有效，
+ * 否则重试，多次失败后再加读锁。修改节点时加写锁，会使进行中的乐观读失效
+ *
+ * 节点的大小由平衡数决定，节点最多容纳 2 * 平衡数 个键，达到时分裂。平衡数在建索引时选定，
+ * 同一棵树的节点大小都相同；节点中不另外记录平衡数，而是由数据项的长度推出，
+ * 因此原来按默认平衡数创建的索引无需转换即可加载
+ *
+ * 删除后节点过空时，与同一父节点下右边相邻的节点合并：右边节点的项移入左边节点，右边节点被标记为已合并，
+ * 内容保持不变，正在读它的读者仍看到一致的旧内容；修改操作遇到已合并的节点时从根重新下降
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0; // 叶子节点标志的偏移量
     static final int NO_KEYS_OFFSET = IS_LEAF_OFFSET + 1; // 键数量的偏移量
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET + 2; // 兄弟节点的偏移量
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8; // 节点头部大小
-    static final int BALANCE_NUMBER = 32; // 平衡数
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2); // 节点大小
+    static final byte LEAF_FLAG = 1; // 标志字节中的叶子节点标志
+    static final byte RETIRED_FLAG = 2; // 标志字节中的已合并标志，节点已不在树中，等待释放
+    static final int DEFAULT_BALANCE_NUMBER = 32; // 默认的平衡数
+    static final int MIN_BALANCE_NUMBER = 2; // 最小的平衡数
+    // 节点连同数据项头部恰好放入一个空页面时的平衡数，此时读一个节点即读一个页面
+    static final int PAGE_BALANCE_NUMBER = balanceOf(PageX.MAX_FREE_SPACE - DataItem.HEADER_SIZE);
+    static final int OPTIMISTIC_RETRIES = 4; // 乐观读失败多少次后改加读锁
 
     BPlusTree tree; // B+树实例
     DataItem dataItem; // 数据项
     SubArray raw; // 原始数据数组
     long uid; // 节点的唯一标识符
+    int balance; // 平衡数，由节点大小推出
+
+    /**
+     * 平衡数对应的节点大小，多出的两个位置用于插入后、分裂前的节点
+     * @param balance 平衡数
+     * @return 节点大小
+     */
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2 * 8) * (balance * 2 + 2);
+    }
+
+    /**
+     * 节点大小能容纳的最大平衡数，nodeSize 的逆运算
+     * @param size 节点大小
+     * @return 平衡数
+     */
+    static int balanceOf(int size) {
+        return ((size - NODE_HEADER_SIZE) / (2 * 8) - 2) / 2;
+    }
 
     /**
      * 设置原始数据数组的叶子节点标志
@@ -47,7 +84,24 @@ public class Node {
      */
     static boolean getRawIfLeaf(SubArray raw) {
         // 返回原始数据数组的叶子节点标志是否为1
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte) 1;
+        return (raw.raw[raw.start + IS_LEAF_OFFSET] & LEAF_FLAG) != 0;
+    }
+
+    /**
+     * 将节点标记为已合并
+     * @param raw 原始数据数组
+     */
+    static void setRawRetired(SubArray raw) {
+        raw.raw[raw.start + IS_LEAF_OFFSET] |= RETIRED_FLAG;
+    }
+
+    /**
+     * 节点是否已被合并
+     * @param raw 原始数据数组
+     * @return 已合并时返回true
+     */
+    static boolean getRawIfRetired(SubArray raw) {
+        return (raw.raw[raw.start + IS_LEAF_OFFSET] & RETIRED_FLAG) != 0;
     }
 
     /**
@@ -56,8 +110,7 @@ public class Node {
      * @param noKeys 键数量
      */
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        // 将键数量转换为字节数组，并复制到原始数据数组中的相应位置
-        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+        Parser.writeShort(raw.raw, raw.start + NO_KEYS_OFFSET, (short) noKeys); // 写入键数量
     }
 
     /**
@@ -66,8 +119,7 @@ public class Node {
      * @return 键数量
      */
     static int getRawNoKeys(SubArray raw) {
-        // 将原始数据数组中的键数量字节数组转换为short类型，并返回其值
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+        return Parser.readShort(raw.raw, raw.start + NO_KEYS_OFFSET); // 读取键数量
     }
 
     /**
@@ -76,8 +128,7 @@ public class Node {
      * @param sibling 兄弟节点标识符
      */
     static void setRawSibling(SubArray raw, long sibling) {
-        // 将兄弟节点标识符转换为字节数组，并复制到原始数据数组中的相应位置
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+        Parser.writeLong(raw.raw, raw.start + SIBLING_OFFSET, sibling); // 写入兄弟节点标识符
     }
 
     /**
@@ -86,7 +137,7 @@ public class Node {
      * @return 兄弟节点标识符
      */
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8)); // 将原始数据数组中的兄弟节点标识符字节数组转换为long类型，并返回其值
+        return Parser.readLong(raw.raw, raw.start + SIBLING_OFFSET); // 读取兄弟节点标识符
     }
 
     /**
@@ -97,7 +148,7 @@ public class Node {
      */
     static void setRawKthSon(SubArray raw, long uid, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2); // 计算第k个子节点标识符在原始数据数组中的偏移量
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8); // 将子节点标识符转换为字节数组，并复制到原始数据数组中的相应位置
+        Parser.writeLong(raw.raw, offset, uid); // 写入子节点标识符
     }
 
     /**
@@ -108,7 +159,7 @@ public class Node {
      */
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2); // 计算第k个子节点标识符在原始数据数组中的偏移量
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8)); // 将原始数据数组中的子节点标识符字节数组转换为long类型，并返回其值
+        return Parser.readLong(raw.raw, offset); // 读取子节点标识符
     }
 
     /**
@@ -119,7 +170,7 @@ public class Node {
      */
     static void setRawKthKey(SubArray raw, long key, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8; // 计算第k个键的值在原始数据数组中的偏移量
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8); // 将键值转换为字节数组，并复制到原始数据数组中的相应位置
+        Parser.writeLong(raw.raw, offset, key); // 写入键值
     }
 
     /**
@@ -131,8 +182,27 @@ public class Node {
     static long getRawKthKey(SubArray raw, int kth) {
         // 计算第k个键的值在原始数据数组中的偏移量
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        // 将原始数据数组中的键值字节数组转换为long类型，并返回其值
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return Parser.readLong(raw.raw, offset); // 读取键值
+    }
+
+    /**
+     * 二分查找第一个不小于 key 的键
+     * @param raw 原始数据数组
+     * @param noKeys 键数量
+     * @param key 键值
+     * @return 键的下标，所有键都小于 key 时返回 noKeys
+     */
+    static int lowerBound(SubArray raw, int noKeys, long key) {
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(getRawKthKey(raw, mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
     }
 
     /**
@@ -155,10 +225,19 @@ public class Node {
      */
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2); // 计算起始位置
-        int end = raw.start + NODE_SIZE - 1; // 计算结束位置
-        for (int i = end; i >= begin; i--) { // 从结束位置向起始位置遍历
-            raw.raw[i] = raw.raw[i - (8 * 2)]; // 向后移动数据
-        }
+        int end = raw.end; // 计算结束位置
+        System.arraycopy(raw.raw, begin - (8 * 2), raw.raw, begin, end - begin); // 向后移动数据，arraycopy 可处理重叠的区间
+    }
+
+    /**
+     * 将原始数据数组中第k个键之后的数据向前移动，覆盖第k个键
+     * @param raw 原始数据数组
+     * @param kth 第k个键
+     */
+    static void shiftRawKthLeft(SubArray raw, int kth) {
+        int begin = raw.start + NODE_HEADER_SIZE + kth * (8 * 2); // 计算被覆盖的位置
+        int end = raw.end; // 计算结束位置
+        System.arraycopy(raw.raw, begin + (8 * 2), raw.raw, begin, end - begin - (8 * 2)); // 向前移动数据
     }
 
     /**
@@ -166,10 +245,12 @@ public class Node {
      * @param left 左子节点的UID
      * @param right 右子节点的UID
      * @param key 键值
+     * @param balance 平衡数
      * @return 新的根节点的原始数据数组
      */
-    static byte[] newRootRaw(long left, long right, long key)  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE); // 创建新的原始数据数组
+    static byte[] newRootRaw(long left, long right, long key, int balance)  {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size); // 创建新的原始数据数组
 
         setRawIsLeaf(raw, false); // 设置为非叶子节点
         setRawNoKeys(raw, 2); // 设置键的数量
@@ -184,10 +265,12 @@ public class Node {
 
     /**
      * 创建新的空根节点的原始数据数组
+     * @param balance 平衡数
      * @return 新的空根节点的原始数据数组
      */
-    static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE); // 创建新的原始数据数组
+    static byte[] newNilRootRaw(int balance)  {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size); // 创建新的原始数据数组
 
         setRawIsLeaf(raw, true); // 设置为叶子节点
         setRawNoKeys(raw, 0); // 设置键的数量
@@ -211,6 +294,7 @@ public class Node {
         n.dataItem = di; // 设置节点的数据项
         n.raw = di.data(); // 设置节点的原始数据数组
         n.uid = uid; // 设置节点的UID
+        n.balance = balanceOf(n.raw.end - n.raw.start); // 由节点大小推出平衡数
         return n; // 返回加载的节点对象
     }
 
@@ -222,18 +306,54 @@ public class Node {
     }
 
     /**
-     * 判断节点是否为叶子节点
-     * @return 是否为叶子节点
+     * 乐观地执行只读操作：读取期间节点被修改时重试，连续失败 OPTIMISTIC_RETRIES 次后加读锁执行
+     * 不加锁时可能读到修改了一半的节点，reader 应在数据不合法时返回 null，越界等异常也视为读取失败
+     * @param reader 只读操作
+     * @return 在某个一致的版本上执行的结果
      */
-    public boolean isLeaf() {
+    private <T> T optimisticRead(Supplier<T> reader) {
+        for(int i = 0; i < OPTIMISTIC_RETRIES; i ++) {
+            long stamp = dataItem.tryOptimisticRead();
+            if(stamp == 0) {
+                Thread.yield(); // 正在被修改
+                continue;
+            }
+            T res;
+            try {
+                res = reader.get();
+            } catch(RuntimeException e) {
+                res = null;
+            }
+            if(res != null && dataItem.validate(stamp)) {
+                return res;
+            }
+        }
         dataItem.rLock(); // 加读锁保证数据的一致性
         try {
-            return getRawIfLeaf(raw); // 获取节点是否为叶子节点的标志位
+            return reader.get();
         } finally {
             dataItem.rUnLock(); // 释放读锁
         }
     }
 
+    /**
+     * 读取键的数量，不在合法范围内时说明读到了修改了一半的节点
+     * @return 键的数量，不合法时返回 -1
+     */
+    private int readNoKeys() {
+        int noKeys = getRawNoKeys(raw);
+        return noKeys < 0 || noKeys > balance * 2 ? -1 : noKeys;
+    }
+
+    /**
+     * 判断节点是否为叶子节点
+     * 叶子标志在节点创建后不再改变，不需要加锁
+     * @return 是否为叶子节点
+     */
+    public boolean isLeaf() {
+        return getRawIfLeaf(raw); // 获取节点是否为叶子节点的标志位
+    }
+
     class SearchNextRes {
         long uid;
         long siblingUid;
@@ -245,73 +365,137 @@ public class Node {
      * @return 搜索结果对象
      */
     public SearchNextRes searchNext(long key) {
-        dataItem.rLock(); // 加读锁保证数据的一致性
-        try {
+        return optimisticRead(() -> {
             SearchNextRes res = new SearchNextRes(); // 创建搜索结果对象
-            int noKeys = getRawNoKeys(raw); // 获取节点的键数量
-            for(int i = 0; i < noKeys; i ++) { // 遍历节点的键
-                long ik = getRawKthKey(raw, i); // 获取第i个键的值
-                if(key < ik) { // 如果目标键值小于第i个键值
-                    res.uid = getRawKthSon(raw, i); // 设置搜索结果的UID为第i个子节点的UID
-                    res.siblingUid = 0; // 设置搜索结果的兄弟节点UID为0
-                    return res; // 返回搜索结果
-                }
+            int noKeys = readNoKeys(); // 获取节点的键数量
+            if(noKeys < 0) {
+                return null;
+            }
+            // 第一个不小于目标键值的键：分裂时与新节点首键相同的键可能留在左边的节点中，
+            // 从最左边可能含有该键的子节点开始，其余的沿兄弟链接向右找到
+            int i = lowerBound(raw, noKeys, key);
+            if(i < noKeys) {
+                res.uid = getRawKthSon(raw, i); // 设置搜索结果的UID为第i个子节点的UID
+                res.siblingUid = 0; // 设置搜索结果的兄弟节点UID为0
+                return res; // 返回搜索结果
             }
             res.uid = 0; // 如果没有找到合适的子节点，设置搜索结果的UID为0
             res.siblingUid = getRawSibling(raw); // 设置搜索结果的兄弟节点UID为节点的兄弟节点UID
             return res; // 返回搜索结果
+        });
+    }
 
-        } finally {
-            dataItem.rUnLock(); // 释放读锁
-        }
+    /**
+     * 节点的概况
+     */
+    class NodeInfo {
+        boolean isLeaf;
+        int noKeys;
+        long firstSon; // 第一个子节点的UID，节点为空时为0
+        long siblingUid;
     }
 
     /**
-     * 叶子节点搜索范围结果类
+     * 读取节点的概况，用于统计
+     * @return 节点的概况
      */
-    class LeafSearchRangeRes {
-        List<Long> uids; // 叶子节点搜索范围内的UID列表
-        long siblingUid; // 下一个兄弟节点的UID
+    public NodeInfo info() {
+        return optimisticRead(() -> {
+            int noKeys = readNoKeys();
+            if(noKeys < 0) {
+                return null;
+            }
+            NodeInfo res = new NodeInfo();
+            res.isLeaf = getRawIfLeaf(raw);
+            res.noKeys = noKeys;
+            res.firstSon = noKeys > 0 ? getRawKthSon(raw, 0) : 0;
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        });
     }
 
     /**
-     * 叶子节点范围搜索
+     * 叶子节点扫描结果类
+     */
+    class LeafScanRes {
+        int count; // 写入缓冲区的UID个数
+        long siblingUid; // 下一个要扫描的兄弟节点的UID，范围在本节点内结束时为0
+    }
+
+    /**
+     * 将叶子节点中键在 [leftKey, rightKey] 内的UID写入缓冲区，不分配列表和装箱
      * @param leftKey 左边界键值
      * @param rightKey 右边界键值
-     * @return 叶子节点范围搜索结果对象
+     * @param uids 缓冲区，长度不小于扇出
+     * @return 叶子节点扫描结果对象
      */
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock(); // 加读锁保证数据的一致性
+    public LeafScanRes leafScan(long leftKey, long rightKey, long[] uids) {
+        return optimisticRead(() -> {
+            int noKeys = readNoKeys(); // 获取节点的键数量
+            if(noKeys < 0) {
+                return null;
+            }
+            int kth = lowerBound(raw, noKeys, leftKey); // 第一个大于等于左边界键值的键
+            int count = 0;
+            while(kth < noKeys && getRawKthKey(raw, kth) <= rightKey) {
+                uids[count ++] = getRawKthSon(raw, kth); // 键有序，遇到大于右边界的键即停止
+                kth ++;
+            }
+            LeafScanRes res = new LeafScanRes();
+            res.count = count;
+            res.siblingUid = kth == noKeys ? getRawSibling(raw) : 0; // 遍历到了最后一个键，范围可能延续到兄弟节点
+            return res;
+        });
+    }
+
+    /**
+     * 叶子节点删除结果类
+     */
+    class LeafDeleteRes {
+        boolean deleted; // 是否删除了索引项
+        int noKeys; // 删除后节点剩余的键数
+        long siblingUid; // 需要继续查找的兄弟节点的UID，为0时停止查找
+        boolean retired; // 节点已被合并，需要重新下降
+    }
+
+    /**
+     * 在叶子节点中删除键为key、指向uid的索引项
+     * 当前节点的键都小于key时需要继续在兄弟节点中查找
+     * 本方法不合并节点，由调用方根据剩余的键数决定是否合并
+     * @param key 键值
+     * @param uid 索引项指向的数据的UID
+     * @return 叶子节点删除结果对象
+     */
+    public LeafDeleteRes leafDelete(long key, long uid) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        dataItem.before(); // 执行数据项的before方法，准备删除操作
         try {
+            if(getRawIfRetired(raw)) {
+                res.retired = true;
+                return res;
+            }
             int noKeys = getRawNoKeys(raw); // 获取节点的键数量
-            int kth = 0;
-            while(kth < noKeys) { // 遍历节点的键
+            for(int kth = lowerBound(raw, noKeys, key); kth < noKeys; kth ++) {
                 long ik = getRawKthKey(raw, kth); // 获取第kth个键的值
-                if(ik >= leftKey) { // 如果第kth个键大于等于左边界键值
-                    break; // 跳出循环
+                if(ik > key) {
+                    return res; // 键有序，后面不会再有该键
                 }
-                kth ++; // 继续下一个键
-            }
-            List<Long> uids = new ArrayList<>(); // 创建存储UID的列表
-            while(kth < noKeys) { // 遍历节点的键
-                long ik = getRawKthKey(raw, kth); // 获取第kth个键的值
-                if(ik <= rightKey) { // 如果第kth个键小于等于右边界键值
-                    uids.add(getRawKthSon(raw, kth)); // 将第kth个子节点的UID添加到列表中
-                    kth ++; // 继续下一个键
-                } else {
-                    break; // 跳出循环
+                if(ik == key && getRawKthSon(raw, kth) == uid) {
+                    shiftRawKthLeft(raw, kth); // 覆盖第kth个键
+                    setRawNoKeys(raw, noKeys-1); // 更新节点的键的数量
+                    res.deleted = true;
+                    res.noKeys = noKeys - 1;
+                    return res;
                 }
             }
-            long siblingUid = 0;
-            if(kth == noKeys) { // 如果遍历到了节点的最后一个键
-                siblingUid = getRawSibling(raw); // 获取节点的兄弟节点UID
-            }
-            LeafSearchRangeRes res = new LeafSearchRangeRes(); // 创建叶子节点范围搜索结果对象
-            res.uids = uids; // 设置搜索结果的UID列表
-            res.siblingUid = siblingUid; // 设置搜索结果的兄弟节点UID
-            return res; // 返回搜索结果
+            res.siblingUid = getRawSibling(raw); // 继续在兄弟节点中查找
+            return res;
         } finally {
-            dataItem.rUnLock(); // 释放读锁
+            if(res.deleted) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID); // 删除成功，记录日志
+            } else {
+                dataItem.unBefore(); // 没有修改，撤销before
+            }
         }
     }
 
@@ -322,6 +506,7 @@ public class Node {
         long siblingUid; // 兄弟节点的UID
         long newSon; // 新的子节点的UID
         long newKey; // 新的键值
+        boolean retired; // 节点已被合并，需要重新下降
     }
 
     /**
@@ -338,6 +523,10 @@ public class Node {
 
         dataItem.before(); // 执行数据项的before方法，准备插入操作
         try {
+            if(getRawIfRetired(raw)) {
+                res.retired = true; // 下降后节点被合并掉了，其中的范围已并入左边的节点
+                return res;
+            }
             success = insert(uid, key); // 调用insert方法进行插入操作
             if(!success) {
                 res.siblingUid = getRawSibling(raw); // 如果插入不成功，则获取兄弟节点的ID
@@ -373,15 +562,7 @@ public class Node {
      */
     private boolean insert(long uid, long key) {
         int noKeys = getRawNoKeys(raw); // 获取节点的键的数量
-        int kth = 0; // 初始化键的索引
-        while(kth < noKeys) { // 遍历键的索引
-            long ik = getRawKthKey(raw, kth); // 获取第kth个键
-            if(ik < key) {
-                kth ++; // 如果第kth个键小于要插入的键，则继续遍历
-            } else {
-                break; // 否则跳出循环
-            }
-        }
+        int kth = lowerBound(raw, noKeys, key); // 第一个不小于要插入的键的位置
         if(kth == noKeys && getRawSibling(raw) != 0) {
             return false; // 如果遍历到最后一个键且存在兄弟节点，则返回插入失败
         }
@@ -407,7 +588,7 @@ public class Node {
      * @return 是否需要拆分
      */
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw); // 如果节点的键的数量等于平衡数的两倍，则需要进行拆分
+        return balance*2 == getRawNoKeys(raw); // 如果节点的键的数量等于平衡数的两倍，则需要进行拆分
     }
 
     class SplitRes {
@@ -419,13 +600,14 @@ public class Node {
      * @throws Exception 异常
      */
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE); // 创建一个新的节点数组
+        int size = raw.end - raw.start; // 新节点与原节点大小相同
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size); // 创建一个新的节点数组
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw)); // 设置新节点数组的叶子节点属性与原节点数组相同
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER); // 设置新节点数组的键的数量为平衡数
+        setRawNoKeys(nodeRaw, balance); // 设置新节点数组的键的数量为平衡数
         setRawSibling(nodeRaw, getRawSibling(raw)); // 设置新节点数组的兄弟节点为原节点数组的兄弟节点
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER); // 将原节点数组的后半部分键和子节点复制到新节点数组
+        copyRawFromKth(raw, nodeRaw, balance); // 将原节点数组的后半部分键和子节点复制到新节点数组
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw); // 将新节点数组插入到数据管理器中，并返回新节点的ID
-        setRawNoKeys(raw, BALANCE_NUMBER); // 更新原节点数组的键的数量为平衡数
+        setRawNoKeys(raw, balance); // 更新原节点数组的键的数量为平衡数
         setRawSibling(raw, son); // 设置原节点数组的兄弟节点为新节点的ID
 
         SplitRes res = new SplitRes(); // 创建SplitRes对象
@@ -434,6 +616,64 @@ public class Node {
         return res; // 返回拆分结果
     }
 
+    /**
+     * 子节点在本节点中的下标，调用方持有本节点的锁
+     * @param son 子节点的UID
+     * @return 下标，不是本节点的子节点时返回 -1
+     */
+    int sonIndex(long son) {
+        int noKeys = getRawNoKeys(raw);
+        for(int i = 0; i < noKeys; i ++) {
+            if(getRawKthSon(raw, i) == son) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 本节点能否并入右边相邻的节点 right，调用方持有两个节点的锁
+     * @param right 右边的节点
+     * @param limit 合并后最多的键数，不超过 2 * 平衡数 - 1，合并后不需要分裂
+     * @return 可以合并时返回true
+     */
+    boolean canAbsorb(Node right, int limit) {
+        return !getRawIfRetired(raw) && !getRawIfRetired(right.raw)
+                && getRawSibling(raw) == right.uid
+                && getRawNoKeys(raw) + getRawNoKeys(right.raw) <= limit;
+    }
+
+    /**
+     * 将右边相邻的节点的所有项追加到本节点，并接上它的兄弟链接，right 本身保持不变
+     * 键有序，直接追加即可：内部节点的最后一个键是最后一个子节点的上界，仍小于 right 中的键
+     * @param right 右边的节点
+     */
+    void absorb(Node right) {
+        int noKeys = getRawNoKeys(raw), rightKeys = getRawNoKeys(right.raw);
+        System.arraycopy(right.raw.raw, right.raw.start + NODE_HEADER_SIZE,
+                raw.raw, raw.start + NODE_HEADER_SIZE + noKeys * (8 * 2), rightKeys * (8 * 2));
+        setRawNoKeys(raw, noKeys + rightKeys);
+        setRawSibling(raw, getRawSibling(right.raw));
+    }
+
+    /**
+     * 第 kth+1 个子节点并入第 kth 个子节点后，在父节点中删去第 kth 项：
+     * 合并后的节点占据第 kth+1 项的位置，键为原来第 kth+1 个子节点的上界
+     * @param kth 左边子节点的下标
+     */
+    void removeSon(int kth) {
+        setRawKthSon(raw, getRawKthSon(raw, kth), kth + 1);
+        shiftRawKthLeft(raw, kth);
+        setRawNoKeys(raw, getRawNoKeys(raw) - 1);
+    }
+
+    /**
+     * 标记节点为已合并
+     */
+    void retire() {
+        setRawRetired(raw);
+    }
+
     /**
      * 将节点的信息转为字符串
      * @return 节点的字符串表示
@@ -0,0 +1,58 @@
+package com.rt.rtdb.backend.im;
+
+import com.rt.rtdb.backend.im.Node.LeafScanRes;
+
+/**
+ * B+树上的范围扫描游标，按键的顺序逐个产生 [leftKey, rightKey] 内的UID
+ *
+ * 每次读入一个叶子节点中的匹配项，存放在 long 数组中，用完后沿兄弟链接读下一个叶子；
+ * 无论范围多大，占用的内存都只有一个叶子节点的大小，第一个UID在读完第一个叶子后即可取得，
+ * 调用方随时可以停止。游标在两次读取之间不持有任何锁，
+ * 与 searchRange 一样，读过的叶子中之后插入的键不会再被看到
+ */
+public class RangeCursor {
+    private final BPlusTree tree;
+    private final long leftKey, rightKey;
+    private final long[] batch; // 当前叶子中的匹配项
+    private int pos, size;
+    private long nextLeaf; // 下一个要读的叶子，为0时没有更多的叶子
+
+    RangeCursor(BPlusTree tree, long leftKey, long rightKey, long firstLeaf) {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.batch = new long[tree.getFanout()];
+        this.nextLeaf = firstLeaf;
+    }
+
+    /**
+     * 是否还有UID，当前叶子用完时读入下一个叶子
+     * @return 还有UID时返回true
+     * @throws Exception 异常
+     */
+    public boolean hasNext() throws Exception {
+        while(pos == size) {
+            if(nextLeaf == 0) {
+                return false;
+            }
+            Node leaf = Node.loadNode(tree, nextLeaf); // 加载叶子节点
+            LeafScanRes res = leaf.leafScan(leftKey, rightKey, batch);
+            leaf.release(); // 释放叶子节点
+            if(res.siblingUid != 0) {
+                tree.dm.prefetch(res.siblingUid); // 调用方处理当前叶子时在后台读入下一个叶子
+            }
+            nextLeaf = res.siblingUid;
+            size = res.count;
+            pos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * 取出下一个UID，调用前 hasNext 应返回true
+     * @return 下一个UID
+     */
+    public long next() {
+        return batch[pos ++];
+    }
+}
@@ -0,0 +1,85 @@
+package com.rt.rtdb.backend.im;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一棵 B+树的高度和填充率，由 BPlusTree.stats 遍历得到
+ * 各层从根到叶子排列；填充率为键数与节点容量之比，节点容量即扇出
+ */
+public class TreeStats {
+
+    private final int fanout;
+    private final List<long[]> levels = new ArrayList<>(); // 每层的 {节点数, 键数}
+
+    TreeStats(int fanout) {
+        this.fanout = fanout;
+    }
+
+    void addLevel(long nodes, long keys) {
+        levels.add(new long[]{nodes, keys});
+    }
+
+    public int fanout() {
+        return fanout;
+    }
+
+    /**
+     * 树的高度，只有根节点时为 1；即一次点查读的节点数
+     */
+    public int height() {
+        return levels.size();
+    }
+
+    public long nodes() {
+        long res = 0;
+        for(long[] level : levels) {
+            res += level[0];
+        }
+        return res;
+    }
+
+    public long leaves() {
+        return levels.isEmpty() ? 0 : levels.get(levels.size() - 1)[0];
+    }
+
+    /**
+     * 叶子中的索引项数
+     */
+    public long entries() {
+        return levels.isEmpty() ? 0 : levels.get(levels.size() - 1)[1];
+    }
+
+    /**
+     * 第 level 层的填充率，根为第 0 层
+     */
+    public double fill(int level) {
+        long[] l = levels.get(level);
+        return (double) l[1] / (l[0] * fanout);
+    }
+
+    /**
+     * 叶子层的填充率
+     */
+    public double leafFill() {
+        return levels.isEmpty() ? 0 : fill(levels.size() - 1);
+    }
+
+    /**
+     * 所有节点的填充率
+     */
+    public double fill() {
+        long keys = 0;
+        for(long[] level : levels) {
+            keys += level[1];
+        }
+        long nodes = nodes();
+        return nodes == 0 ? 0 : (double) keys / (nodes * fanout);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("fanout=%d, height=%d, nodes=%d, leaves=%d, entries=%d, fill=%.2f, leafFill=%.2f",
+                fanout, height(), nodes(), leaves(), entries(), fill(), leafFill());
+    }
+}
@@ -93,9 +93,19 @@ public class Parser {
      * @throws Exception 如果解析过程中发生异常
      */
     private static Show parseShow(Tokenizer tokenizer) throws Exception {
+        Show show = new Show();
         String tmp = tokenizer.peek();
+        if ("locks".equals(tmp)) {
+            tokenizer.pop();
+            show.locks = true;  // SHOW LOCKS
+            tmp = tokenizer.peek();
+        } else if ("index".equals(tmp)) {
+            tokenizer.pop();
+            show.indexes = true;  // SHOW INDEX
+            tmp = tokenizer.peek();
+        }
         if ("".equals(tmp)) {
-            return new Show();
+            return show;
         }
         throw Error.InvalidCommandException;  // 抛出无效命令异常
     }
@@ -249,12 +259,22 @@ public class Parser {
         tokenizer.pop();
 
         String tmp = tokenizer.peek();
-        if("".equals(tmp)) {
-            read.where = null;
-            return read;
+        if("where".equals(tmp)) {
+            read.where = parseWhere(tokenizer);
         }
 
-        read.where = parseWhere(tokenizer);
+        if("limit".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            try {
+                read.limit = Integer.parseInt(tokenizer.peek());
+            } catch(NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            if(read.limit < 0) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+        }
         return read;
     }
 
@@ -270,8 +290,8 @@ public class Parser {
         where.singleExp1 = exp1;
 
         String logicOp = tokenizer.peek();
-        if("".equals(logicOp)) {
-            where.logicOp = logicOp;
+        if("".equals(logicOp) || "limit".equals(logicOp)) { // limit 由 parseSelect 解析，其他语句带 limit 时由 Parse 报错
+            where.logicOp = "";
             return where;
         }
         if(!isLogicOp(logicOp)) {
@@ -283,7 +303,7 @@ public class Parser {
         SingleExpression exp2 = parseSingleExp(tokenizer);
         where.singleExp2 = exp2;
 
-        if(!"".equals(tokenizer.peek())) {
+        if(!"".equals(tokenizer.peek()) && !"limit".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
         return where;
@@ -340,7 +360,11 @@ public class Parser {
         return drop;
     }
 
-    private static Create parseCreate(Tokenizer tokenizer) throws Exception {
+    private static Object parseCreate(Tokenizer tokenizer) throws Exception {
+        if("index".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            return parseCreateIndex(tokenizer);
+        }
         if(!"table".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
@@ -409,6 +433,7 @@ public class Parser {
         }
         create.index = indexes.toArray(new String[indexes.size()]);
         tokenizer.pop();
+        create.fanout = parseFanout(tokenizer);
 
         if(!"".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
@@ -416,6 +441,85 @@ public class Parser {
         return create;
     }
 
+    /**
+     * 解析 CREATE INDEX 命令：create index on tableName (field1 field2 ...) [fanout N|page]
+     *
+     * @param tokenizer Tokenizer 对象
+     * @return 解析后的 CreateIndex 对象
+     * @throws Exception 如果解析过程中发生异常
+     */
+    private static CreateIndex parseCreateIndex(Tokenizer tokenizer) throws Exception {
+        if(!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        CreateIndex createIndex = new CreateIndex();
+        String name = tokenizer.peek();
+        if(!isName(name)) {
+            throw Error.InvalidCommandException;
+        }
+        createIndex.tableName = name;
+        tokenizer.pop();
+        if(!"(".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+
+        List<String> indexes = new ArrayList<>();
+        while(true) {
+            tokenizer.pop();
+            String field = tokenizer.peek();
+            if(")".equals(field)) {
+                break;
+            }
+            if(!isName(field)) {
+                throw Error.InvalidCommandException;
+            }
+            indexes.add(field);
+        }
+        if(indexes.isEmpty()) {
+            throw Error.InvalidCommandException;
+        }
+        createIndex.index = indexes.toArray(new String[indexes.size()]);
+        tokenizer.pop();
+        createIndex.fanout = parseFanout(tokenizer);
+
+        if(!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return createIndex;
+    }
+
+    /**
+     * 解析可选的扇出：fanout N 或 fanout page
+     *
+     * @param tokenizer Tokenizer 对象
+     * @return 扇出，没有指定时为0，page 为 Create.PAGE_FANOUT
+     * @throws Exception 如果解析过程中发生异常
+     */
+    private static int parseFanout(Tokenizer tokenizer) throws Exception {
+        if(!"fanout".equals(tokenizer.peek())) {
+            return 0;
+        }
+        tokenizer.pop();
+        String value = tokenizer.peek();
+        int fanout;
+        if("page".equals(value)) {
+            fanout = Create.PAGE_FANOUT; // 一个节点占满一个页面
+        } else {
+            try {
+                fanout = Integer.parseInt(value);
+            } catch(NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            if(fanout <= 0) {
+                throw Error.InvalidFanoutException;
+            }
+        }
+        tokenizer.pop();
+        return fanout;
+    }
+
     private static boolean isType(String tp) {
         return ("int32".equals(tp) || "int64".equals(tp) ||
         "string".equals(tp));
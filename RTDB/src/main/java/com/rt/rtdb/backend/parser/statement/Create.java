@@ -8,4 +8,8 @@ public class Create {
     public String[] fieldName;
     public String[] fieldType;
     public String[] index;
+    // 索引的扇出：0 为默认扇出，PAGE_FANOUT 为一个节点占满一个页面
+    public int fanout;
+
+    public static final int PAGE_FANOUT = -1;
 }
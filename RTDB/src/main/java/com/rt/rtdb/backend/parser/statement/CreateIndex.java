@@ -0,0 +1,11 @@
+package com.rt.rtdb.backend.parser.statement;
+
+/**
+ * create index on tableName (field1 field2 ...) [fanout N|page]
+ */
+public class CreateIndex {
+    public String tableName;
+    public String[] index;
+    // 索引的扇出，取值同 Create.fanout
+    public int fanout;
+}
@@ -7,4 +7,6 @@ public class Select {
     public String tableName;
     public String[] fields;
     public Where where;
+    // 最多返回的行数，-1 为不限制
+    public int limit = -1;
 }
@@ -1,5 +1,8 @@
 package com.rt.rtdb.backend.parser.statement;
 
 public class Show {
-    
+    // show locks：显示行锁等待的统计
+    public boolean locks;
+    // show index：显示各索引的高度和填充率
+    public boolean indexes;
 }
@@ -61,9 +61,12 @@ public class Executor {
         try {
             byte[] res = null;
             if(Show.class.isInstance(stat)) {
-                res = tbm.show(xid);
+                Show show = (Show)stat;
+                res = show.locks ? tbm.showLocks() : show.indexes ? tbm.showIndexes() : tbm.show(xid);
             } else if(Create.class.isInstance(stat)) {
                 res = tbm.create(xid, (Create)stat);
+            } else if(CreateIndex.class.isInstance(stat)) {
+                res = tbm.createIndex((CreateIndex)stat);
             } else if(Select.class.isInstance(stat)) {
                 res = tbm.read(xid, (Select)stat);
             } else if(Insert.class.isInstance(stat)) {
@@ -1,7 +1,12 @@
 package com.rt.rtdb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
+import com.rt.rtdb.backend.common.SubArray;
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.dm.dataItem.DataItem;
 import com.rt.rtdb.backend.im.BPlusTree;
+import com.rt.rtdb.backend.im.RangeCursor;
+import com.rt.rtdb.backend.im.TreeStats;
 import com.rt.rtdb.backend.parser.statement.SingleExpression;
 import com.rt.rtdb.backend.tm.TransactionManagerImpl;
 import com.rt.rtdb.backend.utils.Panic;
@@ -9,6 +14,7 @@ import com.rt.rtdb.backend.utils.ParseStringRes;
 import com.rt.rtdb.backend.utils.Parser;
 import com.rt.rtdb.common.Error;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -24,8 +30,9 @@ public class Field {
     private Table tb; // 所属的表
     String fieldName; // 字段名
     String fieldType; // 字段类型
-    private long index; // 索引
-    private BPlusTree bt; // B+树
+    private volatile long index; // 索引
+    private volatile BPlusTree bt; // B+树，先于 index 设置
+    private List<long[]> building; // 建索引期间新插入的 {键, uid}，由 this 保护；不在建索引时为null
 
     /**
      * 加载指定表和uid对应的字段，并返回Field对象。
@@ -99,14 +106,15 @@ public class Field {
      * @param fieldName 字段名
      * @param fieldType 字段类型
      * @param indexed 是否索引
+     * @param fanout 索引的扇出
      * @return Field对象
      * @throws Exception 如果字段类型无效，则抛出异常
      */
-    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
+    public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed, int fanout) throws Exception {
         typeCheck(fieldType); // 检查字段类型是否有效
         Field f = new Field(tb, fieldName, fieldType, 0); // 创建Field对象(index为0代表没有索引)
         if(indexed) {
-            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm); // 创建一个新的B+树
+            long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm, fanout); // 创建一个新的B+树
             BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl)tb.tbm).dm); // 加载B+树
             f.index = index;
             f.bt = bt;
@@ -147,6 +155,93 @@ public class Field {
         return index != 0;
     }
 
+    /**
+     * 判断插入的行是否需要写入该字段的索引：有索引，或正在建索引
+     * @return 有索引或正在建索引时返回true
+     */
+    public boolean isIndexing() {
+        if(index != 0) {
+            return true;
+        }
+        synchronized(this) {
+            return index != 0 || building != null;
+        }
+    }
+
+    /**
+     * 开始在已有数据上建索引，之后插入的索引项先记录下来，由 finishIndex 补入新的索引
+     * @throws Exception 已有索引或正在建索引时抛出 FieldAlreadyIndexedException
+     */
+    synchronized void beginIndex() throws Exception {
+        if(isIndexing()) {
+            throw Error.FieldAlreadyIndexedException;
+        }
+        building = new ArrayList<>();
+    }
+
+    /**
+     * 建索引失败，丢弃记录的索引项
+     */
+    synchronized void abandonIndex() {
+        building = null;
+    }
+
+    /**
+     * 建好索引后启用：补入建索引期间插入的索引项，并将索引的UID写入字段记录
+     * 扫描已有版本与记录新插入的索引项有重叠，补入时跳过索引中已有的项
+     * @param index 批量构建的B+树的 bootUid
+     * @throws Exception 异常
+     */
+    void finishIndex(long index) throws Exception {
+        DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+        BPlusTree t = BPlusTree.load(index, dm);
+        while(true) {
+            List<long[]> batch;
+            synchronized(this) {
+                if(building.isEmpty()) {
+                    // 没有待补入的项，启用索引，之后的插入直接写入B+树
+                    persistIndex(dm, index);
+                    bt = t;
+                    this.index = index;
+                    building = null;
+                    return;
+                }
+                batch = building;
+                building = new ArrayList<>();
+            }
+            for(long[] e : batch) {
+                if(!t.search(e[0]).contains(e[1])) {
+                    t.insert(e[0], e[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 原地更新字段记录中索引的UID
+     * 记录的最后 8 字节即 IndexUid，长度不变；与 B+树的节点一样不随事务回滚
+     */
+    private void persistIndex(DataManager dm, long index) throws Exception {
+        DataItem di = dm.read(uid);
+        try {
+            di.before();
+            SubArray sa = di.data();
+            System.arraycopy(Parser.long2Byte(index), 0, sa.raw, sa.end - 8, 8);
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 统计索引的高度和填充率
+     * @return 统计结果，没有索引时返回null
+     * @throws Exception 异常
+     */
+    public TreeStats indexStats() throws Exception {
+        return bt == null ? null : bt.stats();
+    }
+
     /**
      * 将键值对插入到B+树中。
      * @param key 键
@@ -155,7 +250,47 @@ public class Field {
      */
     public void insert(Object key, long uid) throws Exception {
         long uKey = value2Uid(key); // 将键转换为唯一标识符
-        bt.insert(uKey, uid); // 将键值对插入B+树中
+        BPlusTree t = bt;
+        if(t == null) {
+            synchronized(this) {
+                t = bt;
+                if(t == null) {
+                    if(building != null) {
+                        building.add(new long[]{uKey, uid}); // 正在建索引，稍后补入
+                    }
+                    return;
+                }
+            }
+        }
+        t.insert(uKey, uid); // 将键值对插入B+树中
+    }
+
+    /**
+     * 从B+树中删除键值对。
+     * @param key 键
+     * @param uid 值的唯一标识符
+     * @throws Exception 如果发生错误，则抛出异常
+     */
+    public void remove(Object key, long uid) throws Exception {
+        long uKey = value2Uid(key); // 将键转换为唯一标识符
+        bt.delete(uKey, uid); // 从B+树中删除键值对
+    }
+
+    /**
+     * 整理索引，合并相邻的稀疏节点
+     * @return 合并掉的节点数，没有索引时返回0
+     * @throws Exception 异常
+     */
+    public int compactIndex() throws Exception {
+        return bt == null ? 0 : bt.compact();
+    }
+
+    /**
+     * 取出索引中已合并、等待释放的节点
+     * @return 节点的UID
+     */
+    public List<Long> drainRetiredNodes() {
+        return bt == null ? new ArrayList<>() : bt.drainRetired();
     }
 
     /**
@@ -168,6 +303,17 @@ public class Field {
     public List<Long> search(long left, long right) throws Exception {
         return bt.searchRange(left, right); // 在B+树中搜索位于指定范围的值，并返回结果列表
     }
+
+    /**
+     * 打开B+树上指定范围的游标，逐个取出匹配的UID
+     * @param left 范围左边界
+     * @param right 范围右边界
+     * @return 游标
+     * @throws Exception 如果发生错误，则抛出异常
+     */
+    public RangeCursor cursor(long left, long right) throws Exception {
+        return bt.cursor(left, right);
+    }
     /**
      * 将字符串转换为相应的值
      *
@@ -1,12 +1,17 @@
 package com.rt.rtdb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.im.BPlusTree;
+import com.rt.rtdb.backend.im.BulkLoader;
+import com.rt.rtdb.backend.im.RangeCursor;
 import com.rt.rtdb.backend.parser.statement.*;
 import com.rt.rtdb.backend.tm.TransactionManagerImpl;
 import com.rt.rtdb.backend.tbm.Field.ParseValueRes;
 import com.rt.rtdb.backend.utils.Panic;
 import com.rt.rtdb.backend.utils.ParseStringRes;
 import com.rt.rtdb.backend.utils.Parser;
+import com.rt.rtdb.backend.vm.VersionManager;
 import com.rt.rtdb.common.Error;
 
 import java.util.*;
@@ -51,6 +56,7 @@ public class Table {
     public static Table createTable(TableManager tbm, long nextUid, long xid, Create create) throws Exception {
         // 创建 Table 对象，并设置表格名称和下一个 UID
         Table tb = new Table(tbm, create.tableName, nextUid);
+        int fanout = fanoutOf(create.fanout); // 在创建任何字段之前检查
 
         for(int i = 0; i < create.fieldName.length; i ++) {
             String fieldName = create.fieldName[i];
@@ -66,7 +72,7 @@ public class Table {
             }
 
             // 创建 Field 对象，并将其添加到 Table 的 fields 列表中
-            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed));
+            tb.fields.add(Field.createField(tb, xid, fieldName, fieldType, indexed, fanout));
         }
 
         // 将 Table 对象持久化，并返回
@@ -151,13 +157,13 @@ public class Table {
      * @throws Exception 异常情况
      */
     public int delete(long xid, Delete delete) throws Exception {
-        // 解析删除操作的条件，获取要删除的UID列表
-        List<Long> uids = parseWhere(delete.where);
         int count = 0;
-        // 遍历UID列表，逐个删除对应的行
-        for (Long uid : uids) {
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
-                count++;
+        // 逐个删除匹配的行
+        for (RangeCursor cursor : parseWhere(delete.where)) {
+            while (cursor.hasNext()) {
+                if(((TableManagerImpl)tbm).vm.delete(xid, cursor.next(), name)) {
+                    count++;
+                }
             }
         }
         return count;
@@ -172,8 +178,8 @@ public class Table {
      * @throws Exception 异常情况
      */
     public int update(long xid, Update update) throws Exception {
-        // 解析更新操作的条件，获取要更新的UID列表
-        List<Long> uids = parseWhere(update.where);
+        // 解析更新操作的条件，获取匹配的行的游标
+        List<RangeCursor> cursors = parseWhere(update.where);
         Field fd = null;
         // 根据字段名在fields列表中查找对应的字段
         for (Field f : fields) {
@@ -189,29 +195,33 @@ public class Table {
         // 将更新的值转换为对应字段类型的对象
         Object value = fd.string2Value(update.value);
         int count = 0;
-        // 遍历UID列表，逐个更新对应的行
-        for (Long uid : uids) {
+        // 新版本写入了正在扫描的索引，可能在之后被游标扫描到，记录下来以免重复更新
+        Set<Long> inserted = new HashSet<>();
+        // 逐个更新匹配的行
+        for (RangeCursor cursor : cursors) {
+          while (cursor.hasNext()) {
+            long uid = cursor.next();
+            if(inserted.contains(uid)) {
+                continue;
+            }
             // 读取当前行的字节数组
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
             if(raw == null) {
                 continue;
             }
             // 删除当前行
-            ((TableManagerImpl)tbm).vm.delete(xid, uid);
+            ((TableManagerImpl)tbm).vm.delete(xid, uid, name);
             // 解析当前行的键值对，并更新指定字段的值
             Map<String, Object> entry = parseEntry(raw);
             entry.put(fd.fieldName, value);
             // 将更新后的键值对转换为字节数组，并插入新的行
             raw = entry2Raw(entry);
             long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+            inserted.add(uuid);
 
             count++;
-            // 更新索引字段
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
-                }
-            }
+            insertIndexes(entry, uuid); // 更新索引字段
+          }
         }
         return count;
     }
@@ -225,19 +235,21 @@ public class Table {
      * @throws Exception 异常情况
      */
     public String read(long xid, Select read) throws Exception {
-        // 解析查询操作的条件，获取要查询的UID列表
-        List<Long> uids = parseWhere(read.where);
         StringBuilder sb = new StringBuilder();
-        // 遍历UID列表，逐个读取对应的行，并将结果拼接为字符串
-        for (Long uid : uids) {
-            // 读取当前行的字节数组
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
-            if(raw == null) {
-                continue;
+        int rows = 0;
+        // 逐个读取匹配的行，并将结果拼接为字符串；读够 limit 行后不再扫描索引
+        for (RangeCursor cursor : parseWhere(read.where)) {
+            while (rows != read.limit && cursor.hasNext()) {
+                // 读取当前行的字节数组
+                byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, cursor.next());
+                if(raw == null) {
+                    continue;
+                }
+                // 解析当前行的键值对，并将结果添加到StringBuilder中
+                Map<String, Object> entry = parseEntry(raw);
+                sb.append(printEntry(entry)).append("\n");
+                rows++;
             }
-            // 解析当前行的键值对，并将结果添加到StringBuilder中
-            Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
         }
         return sb.toString();
     }
@@ -255,13 +267,173 @@ public class Table {
         // 将键值对转换为字节数组，并插入新的行
         byte[] raw = entry2Raw(entry);
         long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-        // 更新索引字段
+        insertIndexes(entry, uid); // 更新索引字段
+    }
+
+    /**
+     * 将一行写入所有索引
+     * 先写入已有的索引，再检查正在建索引的字段：建索引先开始记录新插入的项，再扫描第一个索引中已有的版本，
+     * 因此检查时尚未开始建索引的行已在第一个索引中，会被扫描到，其余的行会被记录下来
+     *
+     * @param entry 行的键值对
+     * @param uid 行的UID
+     * @throws Exception 异常情况
+     */
+    private void insertIndexes(Map<String, Object> entry, long uid) throws Exception {
+        List<Field> rest = new ArrayList<>();
         for (Field field : fields) {
             if(field.isIndexed()) {
                 field.insert(entry.get(field.fieldName), uid);
+            } else {
+                rest.add(field);
+            }
+        }
+        for (Field field : rest) {
+            if(field.isIndexing()) {
+                field.insert(entry.get(field.fieldName), uid);
+            }
+        }
+    }
+
+    /**
+     * 在已有数据上为字段建索引
+     * 扫描第一个索引中的所有版本，不论是否可见，批量构建B+树；期间插入的行先记录下来，建好后补入。
+     * 调用方需保证期间不回收已死亡的版本，否则扫描到的版本可能被释放
+     *
+     * @param createIndex 建索引的语句
+     * @throws Exception 字段不存在、已有索引或扇出不合法时抛出异常
+     */
+    void createIndex(CreateIndex createIndex) throws Exception {
+        int fanout = fanoutOf(createIndex.fanout);
+        List<Field> targets = new ArrayList<>();
+        for (String name : createIndex.index) {
+            Field fd = null;
+            for (Field field : fields) {
+                if(field.fieldName.equals(name)) {
+                    fd = field;
+                    break;
+                }
+            }
+            if(fd == null) {
+                throw Error.FieldNotFoundException;
+            }
+            if(fd.isIndexing() || targets.contains(fd)) {
+                throw Error.FieldAlreadyIndexedException;
+            }
+            targets.add(fd);
+        }
+
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        DataManager dm = ((TableManagerImpl)tbm).dm;
+        int begun = 0;
+        try {
+            for (Field fd : targets) {
+                fd.beginIndex();
+                begun ++;
+            }
+            List<BulkLoader> loaders = new ArrayList<>();
+            for (int i = 0; i < targets.size(); i ++) {
+                loaders.add(new BulkLoader(dm, fanout));
+            }
+            RangeCursor versions = versions();
+            while (versions.hasNext()) {
+                long uid = versions.next();
+                byte[] raw = vm.readVersion(uid);
+                if(raw == null) {
+                    continue;
+                }
+                Map<String, Object> entry = parseEntry(raw);
+                for (int i = 0; i < targets.size(); i ++) {
+                    Field fd = targets.get(i);
+                    loaders.get(i).add(fd.value2Uid(entry.get(fd.fieldName)), uid);
+                }
+            }
+            for (int i = 0; i < targets.size(); i ++) {
+                targets.get(i).finishIndex(loaders.get(i).build());
+            }
+        } catch(Exception e) {
+            for (int i = 0; i < begun; i ++) {
+                targets.get(i).abandonIndex();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 语句中的扇出转为B+树的扇出，并检查是否合法
+     *
+     * @param fanout 语句中的扇出，0 为默认，Create.PAGE_FANOUT 为一个节点占满一个页面
+     * @return B+树的扇出
+     * @throws Exception 不合法时抛出 InvalidFanoutException
+     */
+    private static int fanoutOf(int fanout) throws Exception {
+        int res = fanout == Create.PAGE_FANOUT ? BPlusTree.PAGE_FANOUT
+                : fanout == 0 ? BPlusTree.DEFAULT_FANOUT : fanout;
+        BPlusTree.checkFanout(res);
+        return res;
+    }
+    /**
+     * 遍历表中所有版本的UID，从第一个有索引的字段中读取
+     *
+     * @return 所有版本的UID的游标
+     * @throws Exception 表没有索引时抛出 TableNoIndexException
+     */
+    RangeCursor versions() throws Exception {
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                return field.cursor(0, Long.MAX_VALUE);
             }
         }
+        throw Error.TableNoIndexException;
     }
+
+    /**
+     * uid 为已死亡的版本时，删除它在所有索引中的索引项
+     *
+     * @param uid 版本的UID
+     * @param horizon 回收水位
+     * @return 是否删除了索引项
+     * @throws Exception 异常情况
+     */
+    boolean removeDeadVersion(long uid, long horizon) throws Exception {
+        byte[] raw = ((TableManagerImpl)tbm).vm.readDeadVersion(uid, horizon);
+        if(raw == null) {
+            return false;
+        }
+        Map<String, Object> entry = parseEntry(raw);
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                field.remove(entry.get(field.fieldName), uid);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 整理表的所有索引
+     * @return 合并掉的节点数
+     * @throws Exception 异常
+     */
+    int compactIndexes() throws Exception {
+        int merged = 0;
+        for (Field field : fields) {
+            merged += field.compactIndex();
+        }
+        return merged;
+    }
+
+    /**
+     * 取出表的各索引中已合并、等待释放的节点
+     * @return 节点的UID
+     */
+    List<Long> drainRetiredNodes() {
+        List<Long> nodes = new ArrayList<>();
+        for (Field field : fields) {
+            nodes.addAll(field.drainRetiredNodes());
+        }
+        return nodes;
+    }
+
     /**
      * 将字符串数组转换为键值对。
      *
@@ -285,14 +457,14 @@ public class Table {
     }
 
     /**
-     * 解析查询条件，并返回匹配的UID列表。
+     * 解析查询条件，并返回遍历匹配的UID的游标，每个键值范围一个。
      *
      * @param where 查询条件对象
-     * @return 匹配的UID列表
+     * @return 匹配的UID的游标
      * @throws Exception 如果查询条件中的字段没有索引，抛出FieldNotIndexedException异常；
      *                   如果查询条件中的字段在表格中不存在，抛出FieldNotFoundException异常
      */
-    private List<Long> parseWhere(Where where) throws Exception {
+    private List<RangeCursor> parseWhere(Where where) throws Exception {
         long l0 = 0, r0 = 0, l1 = 0, r1 = 0;
         boolean single = false;
         Field fd = null;
@@ -326,13 +498,13 @@ public class Table {
             l1 = res.l1; r1 = res.r1;
             single = res.single;
         }
-        // 根据查询条件进行搜索，并返回匹配的UID列表
-        List<Long> uids = fd.search(l0, r0);
+        // 根据查询条件打开游标，调用方边扫描边处理，不需要一次装入所有UID
+        List<RangeCursor> cursors = new ArrayList<>();
+        cursors.add(fd.cursor(l0, r0));
         if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+            cursors.add(fd.cursor(l1, r1));
         }
-        return uids;
+        return cursors;
     }
 
     /**
@@ -3,6 +3,7 @@ package com.rt.rtdb.backend.tbm;
 import com.rt.rtdb.backend.dm.DataManager;
 import com.rt.rtdb.backend.parser.statement.*;
 import com.rt.rtdb.backend.utils.Parser;
+import com.rt.rtdb.backend.vm.LockStats;
 import com.rt.rtdb.backend.vm.VersionManager;
 
 /**
@@ -48,6 +49,14 @@ public interface TableManager {
      */
     byte[] create(long xid, Create create) throws Exception;
 
+    /**
+     * 在已有数据上为字段建索引，建索引不属于任何事务，不随事务回滚
+     * @param createIndex 建索引的参数对象
+     * @return create index操作的响应结果
+     * @throws Exception 抛出异常
+     */
+    byte[] createIndex(CreateIndex createIndex) throws Exception;
+
     /**
      * 在指定事务中插入数据到表中，并返回插入操作的结果。
      * @param xid 事务ID
@@ -84,6 +93,27 @@ public interface TableManager {
      */
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    void startVacuum(long intervalSeconds); // 启动后台回收已死亡的版本
+
+    void stopVacuum(); // 停止后台回收
+
+    VacuumStats getVacuumStats(); // 回收的进度计数
+
+    /**
+     * 显示行锁等待的统计：全局、各表以及等待最多的 UID
+     * @return show locks 操作的响应结果
+     */
+    byte[] showLocks();
+
+    LockStats getLockStats(); // 行锁等待的计数
+
+    /**
+     * 显示各索引的扇出、高度和填充率
+     * @return show index 操作的响应结果
+     * @throws Exception 异常
+     */
+    byte[] showIndexes() throws Exception;
+
     /**
      * 创建TableManager实例，并返回实例对象。
      * @param path 表管理器的路径
@@ -1,8 +1,10 @@
 package com.rt.rtdb.backend.tbm;
 
 import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.im.TreeStats;
 import com.rt.rtdb.backend.parser.statement.*;
 import com.rt.rtdb.backend.utils.Parser;
+import com.rt.rtdb.backend.vm.LockStats;
 import com.rt.rtdb.backend.vm.VersionManager;
 import com.rt.rtdb.common.Error;
 import java.util.ArrayList;
@@ -26,6 +28,9 @@ public class TableManagerImpl implements TableManager {
     private Map<String, Table> tableCache; // 表缓存
     private Map<Long, List<Table>> xidTableCache; // 事务ID-表列表缓存
     private Lock lock; // 锁对象
+    Vacuum vacuum; // 已死亡版本的回收
+
+    static final int SHOW_LOCKS_TOP_UIDS = 10; // show locks 列出的 UID 个数
 
     /**
      * 构造方法
@@ -41,6 +46,7 @@ public class TableManagerImpl implements TableManager {
         this.xidTableCache = new HashMap<>(); // 创建事务ID-表列表缓存
         lock = new ReentrantLock(); // 创建可重入锁
         loadTables(); // 加载表数据
+        this.vacuum = new Vacuum(this, Vacuum.DEFAULT_BATCH_SIZE, Vacuum.DEFAULT_PAUSE_MILLIS);
     }
 
     /**
@@ -163,6 +169,26 @@ public class TableManagerImpl implements TableManager {
         }
     }
 
+    /**
+     * 在已有数据上建索引，期间暂停回收已死亡的版本
+     * @param createIndex 建索引的语句
+     * @return 建索引的结果
+     * @throws Exception 表或字段不存在、字段已有索引时抛出异常
+     */
+    @Override
+    public byte[] createIndex(CreateIndex createIndex) throws Exception {
+        lock.lock(); // 获取锁
+        Table table = tableCache.get(createIndex.tableName); // 从表缓存中根据表名获取Table对象
+        lock.unlock(); // 释放锁
+        if (table == null) {
+            throw Error.TableNotFoundException; // 抛出表未找到异常
+        }
+        synchronized (vacuum) { // 与一轮回收互斥：扫描到的版本在索引建好之前不会被释放
+            table.createIndex(createIndex);
+        }
+        return ("create index on " + createIndex.tableName).getBytes();
+    }
+
     /**
      * 插入记录
      * @param xid 事务ID
@@ -238,4 +264,85 @@ public class TableManagerImpl implements TableManager {
         int count = table.delete(xid, delete); // 在Table对象上执行删除操作，并获取删除的记录数
         return ("delete " + count).getBytes(); // 返回包含"delete count"的字节数组，其中count为删除的记录数
     }
+
+    /**
+     * 启动后台回收已死亡的版本
+     * @param intervalSeconds 两轮回收之间的间隔，秒
+     */
+    @Override
+    public void startVacuum(long intervalSeconds) {
+        vacuum.start(intervalSeconds);
+    }
+
+    /**
+     * 停止后台回收
+     */
+    @Override
+    public void stopVacuum() {
+        vacuum.stop();
+    }
+
+    /**
+     * 获取回收的进度计数
+     */
+    @Override
+    public VacuumStats getVacuumStats() {
+        return vacuum.getStats();
+    }
+
+    /**
+     * 显示行锁等待的统计，每行一组计数
+     * @return 全局、各表以及等待最多的 SHOW_LOCKS_TOP_UIDS 个 UID 的计数
+     */
+    @Override
+    public byte[] showLocks() {
+        LockStats stats = vm.getLockStats();
+        StringBuilder sb = new StringBuilder();
+        sb.append("total: ").append(stats.total()).append("\n");
+        for (Map.Entry<String, LockStats.Counter> e : stats.tables().entrySet()) {
+            sb.append("table ").append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+        }
+        for (Map.Entry<Long, LockStats.Counter> e : stats.hottestUids(SHOW_LOCKS_TOP_UIDS)) {
+            sb.append("uid ").append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    /**
+     * 显示各索引的扇出、高度和填充率，每个索引一行
+     * 每个索引都要遍历所有节点，开销与索引大小成正比
+     */
+    @Override
+    public byte[] showIndexes() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (Table tb : tables()) {
+            for (Field f : tb.fields) {
+                TreeStats stats = f.indexStats();
+                if (stats != null) {
+                    sb.append(tb.name).append(".").append(f.fieldName).append(": ").append(stats).append("\n");
+                }
+            }
+        }
+        return sb.toString().getBytes();
+    }
+
+    /**
+     * 获取行锁等待的计数
+     */
+    @Override
+    public LockStats getLockStats() {
+        return vm.getLockStats();
+    }
+
+    /**
+     * 获取当前所有表的列表
+     */
+    List<Table> tables() {
+        lock.lock();
+        try {
+            return new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+    }
 }
@@ -0,0 +1,181 @@
+package com.rt.rtdb.backend.tbm;
+
+import com.rt.rtdb.backend.im.RangeCursor;
+import com.rt.rtdb.backend.utils.Panic;
+import com.rt.rtdb.backend.vm.VersionManager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 后台回收已死亡的版本
+ *
+ * 一轮回收按表扫描第一个索引中的所有版本：
+ * 1. 版本的删除事务已提交且早于回收水位（见 VersionManager.vacuumHorizon），或创建事务已中止时，
+ *    该版本对任何事务都不可见，删除它在所有索引中的索引项
+ * 2. 删除索引项之前开始的事务可能已经从索引中读到了 uid，
+ *    等这些事务都结束后才释放版本，之后它的空间和 uid 才会被新插入的数据复用
+ * 3. 删除索引项时过空的索引节点被合并；一张表扫描完后，本轮删除过索引项的表再整理它的所有索引，
+ *    把相邻的稀疏节点合并。合并掉的节点与版本一样等之前开始的事务结束后才释放，
+ *    本轮对该表的扫描也可能正读着它们，因此在扫描结束后才记录
+ *
+ * 每检查 batchSize 个版本暂停 pauseMillis 毫秒，限制回收占用的 IO 和锁
+ * @author RT666
+ */
+public class Vacuum {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+    public static final long DEFAULT_PAUSE_MILLIS = 10;
+
+    /**
+     * 删除了索引项、等待旧事务结束后释放的一批版本
+     */
+    static class PendingFree {
+        List<Long> uids;
+        boolean nodes; // uids 为合并掉的索引节点，而不是版本
+        long barrier; // 删除索引项时活跃事务中最大的事务ID，回收水位超过它之后才能释放
+    }
+
+    private final TableManagerImpl tbm;
+    private final VersionManager vm;
+    private final int batchSize;
+    private final long pauseMillis;
+    private final VacuumStats stats = new VacuumStats();
+    private final Deque<PendingFree> pending = new ArrayDeque<>(); // 只由回收线程访问
+    private ScheduledExecutorService executor;
+    private volatile boolean stopped;
+
+    Vacuum(TableManagerImpl tbm, int batchSize, long pauseMillis) {
+        this.tbm = tbm;
+        this.vm = tbm.vm;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+    }
+
+    /**
+     * 启动定期回收
+     * @param intervalSeconds 两轮回收之间的间隔，秒
+     */
+    void start(long intervalSeconds) {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vacuum");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                runOnce();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停止回收，正在进行的一轮在当前批次结束后退出
+     */
+    void stop() {
+        stopped = true;
+        if(executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    VacuumStats getStats() {
+        return stats;
+    }
+
+    /**
+     * 做一轮回收
+     */
+    synchronized void runOnce() throws Exception {
+        long start = System.currentTimeMillis();
+        long horizon = vm.vacuumHorizon(); // 水位只增不减，本轮判定为已死亡的版本之后也不会再可见
+        for(Table table : tbm.tables()) {
+            List<Long> removed = new ArrayList<>();
+            int checked = 0;
+            RangeCursor versions = table.versions(); // 逐个叶子地扫描，不一次装入所有版本
+            boolean dirty = false;
+            while(versions.hasNext()) {
+                long uid = versions.next();
+                if(stopped) {
+                    return;
+                }
+                stats.scan();
+                if(table.removeDeadVersion(uid, horizon)) {
+                    stats.remove();
+                    removed.add(uid);
+                    dirty = true;
+                }
+                if(++ checked == batchSize) {
+                    checked = 0;
+                    removed = defer(removed);
+                    freePending();
+                    Thread.sleep(pauseMillis);
+                }
+            }
+            defer(removed);
+            if(dirty) {
+                stats.merge(table.compactIndexes());
+            }
+            deferNodes(table.drainRetiredNodes());
+        }
+        freePending();
+        stats.round(System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 记录刚删除了索引项的一批版本，之后开始的事务不会再读到它们
+     */
+    private List<Long> defer(List<Long> uids) {
+        if(!uids.isEmpty()) {
+            PendingFree pf = new PendingFree();
+            pf.uids = uids;
+            pf.barrier = vm.newestActiveXid();
+            pending.addLast(pf);
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * 记录已合并、不再在索引中的节点，之后开始的事务不会再读到它们
+     */
+    private void deferNodes(List<Long> nodes) {
+        if(!nodes.isEmpty()) {
+            PendingFree pf = new PendingFree();
+            pf.uids = nodes;
+            pf.nodes = true;
+            pf.barrier = vm.newestActiveXid();
+            pending.addLast(pf);
+        }
+    }
+
+    /**
+     * 释放删除索引项或合并节点之前开始的事务都已结束的版本和节点
+     */
+    private void freePending() {
+        long horizon = vm.vacuumHorizon();
+        while(!pending.isEmpty() && pending.peekFirst().barrier < horizon) {
+            PendingFree pf = pending.pollFirst();
+            for(long uid : pf.uids) {
+                if(pf.nodes) {
+                    tbm.dm.free(uid);
+                    stats.freeNode();
+                } else {
+                    vm.purge(uid);
+                    stats.free();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.rt.rtdb.backend.tbm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 回收的进度计数
+ * scanned 为检查过的版本数，removed 为删除了索引项的已死亡版本数，
+ * freed 为已释放空间的版本数，两者之差为等待旧事务结束、尚未释放的版本数
+ * merged 为整理索引时合并掉的节点数，freedNodes 为已释放的索引节点数，包括删除索引项时合并掉的节点
+ * @author RT666
+ */
+public class VacuumStats {
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder removed = new LongAdder();
+    private final LongAdder freed = new LongAdder();
+    private final LongAdder merged = new LongAdder();
+    private final LongAdder freedNodes = new LongAdder();
+    private final AtomicLong lastRoundMillis = new AtomicLong();
+
+    void round(long millis) {
+        rounds.increment();
+        lastRoundMillis.set(millis);
+    }
+
+    void scan() {
+        scanned.increment();
+    }
+
+    void remove() {
+        removed.increment();
+    }
+
+    void free() {
+        freed.increment();
+    }
+
+    void merge(int nodes) {
+        merged.add(nodes);
+    }
+
+    void freeNode() {
+        freedNodes.increment();
+    }
+
+    public long rounds() {
+        return rounds.sum();
+    }
+
+    public long scanned() {
+        return scanned.sum();
+    }
+
+    public long removed() {
+        return removed.sum();
+    }
+
+    public long freed() {
+        return freed.sum();
+    }
+
+    public long merged() {
+        return merged.sum();
+    }
+
+    public long freedNodes() {
+        return freedNodes.sum();
+    }
+
+    public long pending() {
+        return removed() - freed();
+    }
+
+    /**
+     * 最近一轮回收的耗时，毫秒
+     */
+    public long lastRoundMillis() {
+        return lastRoundMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("rounds=%d, scanned=%d, removed=%d, freed=%d, pending=%d, merged=%d, freedNodes=%d, lastRoundMillis=%d",
+                rounds(), scanned(), removed(), freed(), pending(), merged(), freedNodes(), lastRoundMillis());
+    }
+}
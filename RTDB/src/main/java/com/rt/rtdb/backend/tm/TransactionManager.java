@@ -32,6 +32,8 @@ public interface TransactionManager {
 
     boolean isAborted(long xid);        // 查询一个事务的状态是否是已取消
 
+    void force();                       // 将提交和回滚的状态落盘
+
     void close();                       // 关闭TM
 
     /**
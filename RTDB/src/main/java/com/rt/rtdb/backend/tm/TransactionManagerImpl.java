@@ -7,6 +7,8 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -15,6 +17,17 @@ import com.rt.rtdb.common.Error;
 /**
  * 事务管理器实现类
  *
+ * XID 文件是事务状态的持久副本，内存中另有一份状态位图，每个事务占 2 位，打开时从文件载入，
+ * 提交和回滚时先写文件再更新位图。查询状态只读位图，不做系统调用。
+ *
+ * 提交和回滚的持久性由主日志中的提交、回滚日志保证（见 Recover），这里写文件不 force，
+ * 由检查点在删除旧日志之前、以及关闭时调用 force 落盘；崩溃时丢失的状态由恢复过程根据日志重建。
+ *
+ * XID 按段预留：文件头记录已预留的最大 XID，预留时把文件扩展到该长度并补零，每段只落盘一次。
+ * begin 从 AtomicLong 中取号，不写文件；活跃状态即文件中的 0，没有提交或回滚记录的 XID 都是活跃的。
+ * 崩溃后重新打开时从预留的末尾继续分配，预留了但未用到的 XID 一直保持活跃，不会出现在任何数据中；
+ * 崩溃时正在进行的事务同样保持活跃，写过日志的由恢复过程回滚。
+ *
  * @author ryh
  * @version 1.0
  * @create 2023/7/5 8:15
@@ -35,16 +48,31 @@ public class TransactionManagerImpl implements TransactionManager {
     public static final long SUPER_XID = 0;
     // XID 文件后缀
     static final String XID_SUFFIX = ".xid";
+
+    // 状态位图每块包含的 long 个数，每个 long 存放 32 个事务的状态
+    private static final int CHUNK_LONGS = 1 << 12;
+    private static final int XIDS_PER_LONG = 32;
+    private static final long XIDS_PER_CHUNK = (long) CHUNK_LONGS * XIDS_PER_LONG;
+    // 每次预留的 XID 个数
+    private static final int XID_RESERVE_SIZE = 1024;
+    // 载入状态时每次读取的字节数
+    private static final int LOAD_BUFFER_SIZE = 1 << 16;
+
     private RandomAccessFile file; // 用于操作文件的RandomAccessFile对象
     private FileChannel fc; // 文件通道对象，用于读写文件
-    private long xidCounter; // 事务标识符计数器的值
-    private Lock counterLock; // 用于对事务标识符计数器进行加锁操作的Lock对象
+    private volatile long xidCounter; // 已预留的最大事务标识符，与文件头一致
+    private AtomicLong lastXid; // 最近分配的事务标识符
+    private Lock counterLock; // 预留新一段事务标识符时加锁
+    // 状态位图，按块分配，扩容时只复制块的引用，已有的块不会被替换
+    private volatile AtomicLongArray[] statusChunks = new AtomicLongArray[0];
 
     public TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
         this.fc = fc;
         counterLock = new ReentrantLock();
         checkXIDCounter(); // 检查XID文件是否合法
+        loadStatus(); // 将事务状态载入位图
+        lastXid = new AtomicLong(xidCounter); // 从预留的末尾继续分配
     }
 
     /**
@@ -80,12 +108,84 @@ public class TransactionManagerImpl implements TransactionManager {
         this.xidCounter = Parser.parseLong(buf.array());
         // 计算下一个事务标识符的位置
         long end = getXidPosition(this.xidCounter + 1);
-        // 如果下一个事务标识符的位置与文件长度不匹配，抛出BadXIDFileException异常
-        if (end != fileLen) {
+        // 如果文件比文件头记录的短，抛出BadXIDFileException异常
+        if (end > fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
+        // 扩展了文件、但文件头还未更新时崩溃，多出的部分尚未预留，截掉
+        if (end < fileLen) {
+            try {
+                fc.truncate(end);
+                fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+
+    /**
+     * 从 XID 文件载入所有事务的状态
+     */
+    private void loadStatus() {
+        ensureCapacity(xidCounter);
+        ByteBuffer buf = ByteBuffer.allocate(LOAD_BUFFER_SIZE);
+        long xid = 1;
+        try {
+            while (xid <= xidCounter) {
+                buf.clear();
+                int n = fc.read(buf, getXidPosition(xid));
+                if (n <= 0) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+                for (int i = 0; i < n; i++, xid++) {
+                    setStatus(xid, buf.get(i));
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 保证位图能容纳 xid，只在持有 counterLock 或构造时调用
+     */
+    private void ensureCapacity(long xid) {
+        int chunks = (int) (xid / XIDS_PER_CHUNK) + 1;
+        AtomicLongArray[] old = statusChunks;
+        if (chunks <= old.length) {
+            return;
+        }
+        AtomicLongArray[] grown = new AtomicLongArray[chunks];
+        System.arraycopy(old, 0, grown, 0, old.length);
+        for (int i = old.length; i < chunks; i++) {
+            grown[i] = new AtomicLongArray(CHUNK_LONGS);
+        }
+        statusChunks = grown;
+    }
+
+    // 在位图中设置xid的状态
+    private void setStatus(long xid, byte status) {
+        AtomicLongArray chunk = statusChunks[(int) (xid / XIDS_PER_CHUNK)];
+        int index = (int) (xid % XIDS_PER_CHUNK / XIDS_PER_LONG);
+        int shift = (int) (xid % XIDS_PER_LONG) * 2;
+        long mask = 3L << shift;
+        long prev;
+        do {
+            prev = chunk.get(index);
+        } while (!chunk.compareAndSet(index, prev, (prev & ~mask) | ((long) status << shift)));
     }
 
+    // 从位图中读取xid的状态，超出位图的xid与文件中读到的空字节一样视为活跃
+    private byte getStatus(long xid) {
+        AtomicLongArray[] chunks = statusChunks;
+        int c = (int) (xid / XIDS_PER_CHUNK);
+        if (c >= chunks.length) {
+            return FIELD_TRAN_ACTIVE;
+        }
+        long bits = chunks[c].get((int) (xid % XIDS_PER_CHUNK / XIDS_PER_LONG));
+        return (byte) ((bits >>> ((int) (xid % XIDS_PER_LONG) * 2)) & 3);
+    }
 
     // 根据事务xid取得其在xid文件中对应的位置
     private long getXidPosition(long xid) {
@@ -95,40 +195,42 @@ public class TransactionManagerImpl implements TransactionManager {
     //开始一个事务，并返回XID
     @Override
     public long begin() {
-        counterLock.lock(); // 对计数器加锁，确保在多线程环境下的安全访问
-        try {
-            long xid = xidCounter + 1; // 计算下一个事务标识符
-            updateXID(xid, FIELD_TRAN_ACTIVE); // 更新事务标识符的状态为活动状态
-            incrXIDCounter(); // 递增事务标识符计数器的值
-            return xid; // 返回事务标识符
-        } finally {
-            counterLock.unlock(); // 释放锁
+        long xid = lastXid.incrementAndGet();
+        if (xid > xidCounter) {
+            reserveXID(xid); // 本段已用完
         }
+        return xid;
     }
 
-    // 将XID加一，并更新XID Header
-    private void incrXIDCounter() {
-        // 事务标识符计数器自增
-        xidCounter++;
-        // 将自增后的计数器转换为字节数组，并将其包装成ByteBuffer对象
-        ByteBuffer byteBuffer = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
-
-        try {
-            // 设置文件通道的位置为0，即文件的开头
-            fc.position(0);
-            // 将ByteBuffer中的数据写入文件通道，实现更新事务标识符计数器的操作
-            fc.write(byteBuffer);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+    /**
+     * 预留包含 xid 的一段事务标识符
+     * 先把文件扩展到新的末尾并落盘，再更新文件头并落盘，文件头记录的 XID 在文件中都有位置
+     */
+    private void reserveXID(long xid) {
+        counterLock.lock();
         try {
-            // 强制将文件通道的数据刷新到磁盘，参数为false表示不强制刷新元数据，如最后修改时间等
-            fc.force(false);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if (xid <= xidCounter) {
+                return; // 其他线程已经预留
+            }
+            long end = Math.max(xid, xidCounter + XID_RESERVE_SIZE);
+            ensureCapacity(end);
+            try {
+                long position = getXidPosition(xidCounter + 1);
+                ByteBuffer zero = ByteBuffer.allocate((int) ((end - xidCounter) * XID_FIELD_SIZE));
+                while (zero.hasRemaining()) {
+                    position += fc.write(zero, position);
+                }
+                fc.force(false);
+                // 按位置写入，不改变通道的共享位置，与并发的状态更新互不干扰
+                fc.write(ByteBuffer.wrap(Parser.long2Byte(end)), 0);
+                fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            xidCounter = end;
+        } finally {
+            counterLock.unlock();
         }
-
-
     }
 
     // 更新xid事务的状态为status
@@ -143,19 +245,21 @@ public class TransactionManagerImpl implements TransactionManager {
         ByteBuffer byteBuffer = ByteBuffer.wrap(temp);
 
         try {
-            // 设置文件通道的位置为事务标识符的偏移量
-            fc.position(offset);
-            // 将ByteBuffer中的数据写入文件通道
-            fc.write(byteBuffer);
+            // 将ByteBuffer中的数据按偏移写入文件通道
+            fc.write(byteBuffer, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        // 强制将文件通道的数据刷新到磁盘，参数为false表示不强制刷新元数据
-        try {
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+        // 写入文件之后才更新位图，force 时位图中已结束的事务在文件中都已结束
+        if (xid / XIDS_PER_CHUNK >= statusChunks.length) {
+            counterLock.lock();
+            try {
+                ensureCapacity(xid);
+            } finally {
+                counterLock.unlock();
+            }
         }
+        setStatus(xid, status);
     }
 
     /**
@@ -166,20 +270,7 @@ public class TransactionManagerImpl implements TransactionManager {
      * @return 如果事务处于指定状态，则返回true；否则返回false
      */
     private boolean checkXID(long xid, byte status) {
-        // 根据XID计算偏移量
-        long offset = getXidPosition(xid);
-        // 创建一个指定容量的ByteBuffer对象，用于存储从文件通道中读取的数据
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            // 将文件通道的位置设置为偏移量，即从指定位置开始读取数据
-            fc.position(offset);
-            // 从文件通道读取数据到ByteBuffer中
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e); // 如果读取文件数据时发生异常，则抛出异常
-        }
-        // 检查ByteBuffer中的第一个字节是否等于指定状态值
-        return buf.get(0) == status;
+        return getStatus(xid) == status;
     }
 
 
@@ -219,9 +310,22 @@ public class TransactionManagerImpl implements TransactionManager {
         return checkXID(xid, FIELD_TRAN_ABORTED);
     }
 
+    /**
+     * 将已写入的提交、回滚状态落盘
+     */
+    @Override
+    public void force() {
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
     @Override
     public void close() {
         try {
+            fc.force(false);
             fc.close();
             file.close();
         } catch (IOException e) {
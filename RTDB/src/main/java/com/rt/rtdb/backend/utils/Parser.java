@@ -62,6 +62,42 @@ public class Parser {
         return buffer.getLong();
     }
 
+    /**
+     * 从 buf 的 offset 处按大端序读取 short，不分配内存
+     */
+    public static short readShort(byte[] buf, int offset) {
+        return (short) (((buf[offset] & 0xff) << 8) | (buf[offset + 1] & 0xff));
+    }
+
+    /**
+     * 将 short 按大端序写入 buf 的 offset 处
+     */
+    public static void writeShort(byte[] buf, int offset, short value) {
+        buf[offset] = (byte) (value >>> 8);
+        buf[offset + 1] = (byte) value;
+    }
+
+    /**
+     * 从 buf 的 offset 处按大端序读取 long，不分配内存，与 parseLong 的结果一致
+     */
+    public static long readLong(byte[] buf, int offset) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (buf[offset + i] & 0xff);
+        }
+        return v;
+    }
+
+    /**
+     * 将 long 按大端序写入 buf 的 offset 处，与 long2Byte 的结果一致
+     */
+    public static void writeLong(byte[] buf, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
     /**
      * 将long值转换为字节数组
      * @param value 要转换的long值
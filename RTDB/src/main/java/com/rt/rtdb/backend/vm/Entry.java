@@ -61,6 +61,9 @@ public class Entry {
      */
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem di = ((VersionManagerImpl)vm).dm.read(uid);
+        if(di == null) {
+            return null; // 数据项已无效或已被回收
+        }
         return newEntry(vm, di, uid);
     }
 
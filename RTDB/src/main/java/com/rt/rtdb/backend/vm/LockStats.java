@@ -0,0 +1,192 @@
+package com.rt.rtdb.backend.vm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 行锁等待的计数：等待次数、等待耗时的直方图、等待超时和死锁中止的次数
+ * 分别按全局、表和 UID 统计；不知道所属表的等待只计入全局和 UID
+ * 只跟踪最先发生等待的 MAX_TRACKED_UIDS 个 UID，避免计数随数据量无限增长
+ * @author RT666
+ */
+public class LockStats {
+
+    public static final int MAX_TRACKED_UIDS = 4096;
+
+    // 直方图各桶的上界（不含），毫秒；最后一个桶为 >= 10000ms
+    private static final long[] BOUNDS_MILLIS = {1, 10, 100, 1000, 10000};
+
+    /**
+     * 一组计数
+     */
+    public static class Counter {
+        private final LongAdder waits = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder deadlocks = new LongAdder();
+        private final LongAdder[] histogram = new LongAdder[BOUNDS_MILLIS.length + 1];
+
+        Counter() {
+            for(int i = 0; i < histogram.length; i ++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        void waited(long nanos) {
+            waits.increment();
+            waitNanos.add(nanos);
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int i = 0;
+            while(i < BOUNDS_MILLIS.length && millis >= BOUNDS_MILLIS[i]) {
+                i ++;
+            }
+            histogram[i].increment();
+        }
+
+        /**
+         * 发生等待的次数，包括超时和被选为死锁牺牲者的等待
+         */
+        public long waits() {
+            return waits.sum();
+        }
+
+        /**
+         * 等待的总耗时，毫秒
+         */
+        public long waitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+        }
+
+        public long timeouts() {
+            return timeouts.sum();
+        }
+
+        public long deadlocks() {
+            return deadlocks.sum();
+        }
+
+        /**
+         * 等待耗时的直方图，第 i 个桶统计 [BOUNDS[i-1], BOUNDS[i]) 毫秒的等待
+         */
+        public long[] histogram() {
+            long[] res = new long[histogram.length];
+            for(int i = 0; i < res.length; i ++) {
+                res[i] = histogram[i].sum();
+            }
+            return res;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("waits=%d, waitMillis=%d, timeouts=%d, deadlocks=%d, histogram=[",
+                    waits(), waitMillis(), timeouts(), deadlocks()));
+            long[] h = histogram();
+            for(int i = 0; i < h.length; i ++) {
+                if(i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(i < BOUNDS_MILLIS.length ? "<" + BOUNDS_MILLIS[i] : ">=" + BOUNDS_MILLIS[i-1])
+                        .append("ms:").append(h[i]);
+            }
+            return sb.append("]").toString();
+        }
+    }
+
+    private final Counter total = new Counter();
+    private final Map<String, Counter> tables = new ConcurrentHashMap<>();
+    private final Map<Long, Counter> uids = new ConcurrentHashMap<>();
+
+    /**
+     * 一次等待结束，包括获得锁、超时和被选为死锁牺牲者
+     */
+    void waited(String table, long uid, long nanos) {
+        total.waited(nanos);
+        Counter c = tableCounter(table);
+        if(c != null) {
+            c.waited(nanos);
+        }
+        c = uidCounter(uid);
+        if(c != null) {
+            c.waited(nanos);
+        }
+    }
+
+    void timeout(String table, long uid) {
+        total.timeouts.increment();
+        Counter c = tableCounter(table);
+        if(c != null) {
+            c.timeouts.increment();
+        }
+        c = uidCounter(uid);
+        if(c != null) {
+            c.timeouts.increment();
+        }
+    }
+
+    void deadlock(String table, long uid) {
+        total.deadlocks.increment();
+        Counter c = tableCounter(table);
+        if(c != null) {
+            c.deadlocks.increment();
+        }
+        c = uidCounter(uid);
+        if(c != null) {
+            c.deadlocks.increment();
+        }
+    }
+
+    private Counter tableCounter(String table) {
+        return table == null ? null : tables.computeIfAbsent(table, k -> new Counter());
+    }
+
+    private Counter uidCounter(long uid) {
+        Counter c = uids.get(uid);
+        if(c == null && uids.size() < MAX_TRACKED_UIDS) {
+            c = uids.computeIfAbsent(uid, k -> new Counter());
+        }
+        return c;
+    }
+
+    public Counter total() {
+        return total;
+    }
+
+    /**
+     * 各表的计数
+     */
+    public Map<String, Counter> tables() {
+        return Collections.unmodifiableMap(tables);
+    }
+
+    /**
+     * 某个 UID 的计数，未发生过等待或未被跟踪时返回 null
+     */
+    public Counter uid(long uid) {
+        return uids.get(uid);
+    }
+
+    /**
+     * 等待次数最多的 n 个 UID，按等待次数降序
+     */
+    public List<Map.Entry<Long, Counter>> hottestUids(int n) {
+        List<Map.Entry<Long, Counter>> res = new ArrayList<>(uids.entrySet());
+        Map<Long, Long> waits = new HashMap<>(); // 排序期间计数仍在变化，按快照排序
+        for(Map.Entry<Long, Counter> e : res) {
+            waits.put(e.getKey(), e.getValue().waits());
+        }
+        res.sort((a, b) -> Long.compare(waits.get(b.getKey()), waits.get(a.getKey())));
+        return res.size() > n ? new ArrayList<>(res.subList(0, n)) : res;
+    }
+
+    @Override
+    public String toString() {
+        return total.toString();
+    }
+}
@@ -1,232 +1,414 @@
 package com.rt.rtdb.backend.vm;
 
-import java.util.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+
+import com.rt.rtdb.backend.utils.Panic;
 import com.rt.rtdb.common.Error;
 
 /**
- * 维护了一个依赖等待图，以进行死锁检测
+ * 行锁表，维护了一个依赖等待图，以进行死锁检测
+ *
+ * 1. 锁按 UID 散列到若干个桶中，每个桶有自己的互斥锁，不冲突的加锁、释放只锁一个桶
+ * 2. 每个事务持有的 UID 存放在 long 数组中；是否已持有由锁的持有者直接判断，不扫描列表
+ * 3. 每个事务最多等待一个 UID，等待图中从一个事务出发只有一条边。需要等待时，
+ *    只沿新等待者出发的边前进，回到自己即为死锁，代价与等待链长度成正比
+ * 4. 后台检测模式下，加锁时不做检测，后台线程定期检查等待超过 detectDelay 的事务，
+ *    发现死锁时让该等待者失败，适合死锁很少、等待链较长的负载
+ *
+ * 登记等待和死锁检测在 deadlockLock 下串行进行，每条新边都与之前的所有边一起被检查；
+ * 释放锁只移除边，不会形成新的环
  * @author RT666
  */
 public class LockTable {
 
-    private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
-    private Map<Long, Long> u2x;        // UID被某个XID持有
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
-    private Map<Long, Long> waitU;      // XID正在等待的UID
-    private Lock lock;                  // 用于并发访问控制的互斥锁
+    public static final int DEFAULT_STRIPES = 64;
 
-    public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+    private static final long NO_OWNER = -1;
+
+    /**
+     * 一个 UID 上的锁
+     */
+    private static class RowLock {
+        long owner;                                     // 持有者
+        ArrayDeque<Waiter> waiters = new ArrayDeque<>(); // 按到达顺序等待的事务
     }
 
     /**
-     * 不需要等待则返回null，否则返回锁对象
-     * 如果会造成死锁，则抛出异常
-     *
-     * @param xid 事务ID
-     * @param uid 用户ID
-     * @return 如果不需要等待，则返回null；否则返回锁对象
-     * @throws Exception 如果会造成死锁，则抛出异常
+     * 一个桶，桶内的锁由 lock 保护
      */
-    public Lock add(long xid, long uid) throws Exception {
-        lock.lock(); // 获取锁
-        try {
-            if (isInList(x2u, xid, uid)) {
-                return null; // 如果事务ID和用户ID已存在于列表中，则不需要等待，返回null
+    private static class Bucket {
+        final Lock lock = new ReentrantLock();
+        final Map<Long, RowLock> rows = new HashMap<>();
+    }
+
+    /**
+     * 事务持有和等待的锁
+     */
+    private static class TxLocks {
+        LongList held = new LongList(); // 持有的 UID，由 synchronized(this) 保护
+        volatile Waiter waiting;        // 正在等待的锁
+    }
+
+    /**
+     * 等待一个 UID 的事务，由释放锁的线程授予，或被死锁检测选为牺牲者
+     */
+    public static class Waiter {
+        final long xid;
+        final long uid;
+        final long since = System.nanoTime(); // 开始等待的时间
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean granted;
+        private volatile boolean deadlock;
+
+        Waiter(long xid, long uid) {
+            this.xid = xid;
+            this.uid = uid;
+        }
+
+        /**
+         * 等待直到获得锁
+         * @throws Exception 被后台死锁检测选为牺牲者时抛出 DeadlockException
+         */
+        public void await() throws Exception {
+            done.await();
+            if(deadlock) {
+                throw Error.DeadlockException;
             }
-            if (!u2x.containsKey(uid)) {
-                u2x.put(uid, xid); // 如果用户ID不存在于映射表中，则将用户ID和事务ID存入映射表
-                putIntoList(x2u, xid, uid); // 将用户ID插入到事务ID的列表的开头
-                return null; // 不需要等待，返回null
+        }
+
+        /**
+         * 最多等待 timeoutMillis 毫秒
+         * @return 超时返回 false
+         * @throws Exception 被后台死锁检测选为牺牲者时抛出 DeadlockException
+         */
+        private boolean await(long timeoutMillis) throws Exception {
+            if(!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                return false;
             }
-            waitU.put(xid, uid); // 将事务ID和用户ID存入等待映射表
-            putIntoList(wait, uid, xid); // 将事务ID插入到用户ID的列表的开头
-            if (hasDeadLock()) {
-                waitU.remove(xid); // 如果存在死锁，则从等待映射表中移除事务ID
-                removeFromList(wait, uid, xid); // 从用户ID的列表中移除事务ID
-                throw Error.DeadlockException; // 抛出死锁异常
+            if(deadlock) {
+                throw Error.DeadlockException;
             }
-            Lock l = new ReentrantLock(); // 创建一个新的锁对象
-            l.lock(); // 获取新的锁对象
-            waitLock.put(xid, l); // 将事务ID和锁对象存入等待锁映射表
-            return l; // 返回锁对象
+            return true;
+        }
 
-        } finally {
-            lock.unlock(); // 释放锁
+        public boolean isGranted() {
+            return granted;
+        }
+
+        private void grant() {
+            granted = true;
+            done.countDown();
+        }
+
+        private void fail() {
+            deadlock = true;
+            done.countDown();
+        }
+    }
+
+    /**
+     * long 的动态数组
+     */
+    static class LongList {
+        private long[] items = new long[4];
+        private int size;
+
+        void add(long x) {
+            if(size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size ++] = x;
+        }
+
+        int size() {
+            return size;
         }
+
+        long get(int i) {
+            return items[i];
+        }
+    }
+
+    private final Bucket[] buckets;
+    private final Map<Long, TxLocks> txs = new ConcurrentHashMap<>();
+    private final Lock deadlockLock = new ReentrantLock(); // 登记等待与死锁检测串行
+    private final long detectDelayNanos;
+    private ScheduledExecutorService detector; // 后台检测线程，立即检测模式下为 null
+
+    /**
+     * 需要等待时立即检测死锁
+     */
+    public LockTable() {
+        this(DEFAULT_STRIPES, 0);
     }
 
     /**
-     * 从列表中移除指定的元素
+     * @param stripes 桶的个数
+     * @param detectDelayMillis 大于 0 时为后台检测模式，等待超过该时间的事务才被检查
+     */
+    public LockTable(int stripes, long detectDelayMillis) {
+        buckets = new Bucket[stripes];
+        for(int i = 0; i < stripes; i ++) {
+            buckets[i] = new Bucket();
+        }
+        detectDelayNanos = TimeUnit.MILLISECONDS.toNanos(detectDelayMillis);
+        if(detectDelayMillis > 0) {
+            detector = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "deadlock-detector");
+                t.setDaemon(true);
+                return t;
+            });
+            long interval = Math.max(1, detectDelayMillis / 2);
+            detector.scheduleWithFixedDelay(() -> {
+                try {
+                    detectLongWaits();
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Bucket bucketOf(long uid) {
+        long h = uid * 0x9E3779B97F4A7C15L; // 相邻的 UID 散列到不同的桶
+        return buckets[(int) ((h >>> 32) % buckets.length)];
+    }
+
+    private TxLocks txLocks(long xid) {
+        return txs.computeIfAbsent(xid, k -> new TxLocks());
+    }
+
+    /**
+     * 不需要等待则返回null，否则返回等待者，调用方在其上等待
+     * 如果会造成死锁，则抛出异常
      *
      * @param xid 事务ID
+     * @param uid 记录ID
+     * @return 如果不需要等待，则返回null；否则返回等待者
+     * @throws Exception 如果会造成死锁，则抛出异常
      */
-    public void remove(long xid) {
-        lock.lock(); // 获取锁
+    public Waiter add(long xid, long uid) throws Exception {
+        TxLocks tx = txLocks(xid);
+        Bucket b = bucketOf(uid);
+        b.lock.lock();
         try {
-            List<Long> l = x2u.get(xid); // 获取事务ID对应的用户ID列表
-            if (l != null) {
-                while (l.size() > 0) {
-                    Long uid = l.remove(0); // 移除列表中的用户ID
-                    selectNewXID(uid); // 选择一个新的事务ID占用该用户ID
-                }
+            if(tryAcquire(b, tx, xid, uid)) {
+                return null;
             }
-            waitU.remove(xid); // 从等待映射表中移除事务ID
-            x2u.remove(xid); // 从事务ID映射表中移除事务ID
-            waitLock.remove(xid); // 从等待锁映射表中移除事务ID
+        } finally {
+            b.lock.unlock();
+        }
 
+        // 需要等待：登记等待和检测与其他等待者串行
+        deadlockLock.lock();
+        try {
+            Waiter w = new Waiter(xid, uid);
+            b.lock.lock();
+            try {
+                if(tryAcquire(b, tx, xid, uid)) {
+                    return null; // 期间持有者已释放
+                }
+                b.rows.get(uid).waiters.addLast(w);
+                tx.waiting = w;
+            } finally {
+                b.lock.unlock();
+            }
+            if(detectDelayNanos == 0 && hasDeadLock(xid, uid)) {
+                if(cancel(w)) {
+                    throw Error.DeadlockException;
+                }
+                return null; // 检测期间已被授予，环已不存在
+            }
+            return w;
         } finally {
-            lock.unlock(); // 释放锁
+            deadlockLock.unlock();
         }
     }
 
     /**
-     * 从等待队列中选择一个事务ID来占用用户ID
+     * 在等待者上等待，超时后撤回等待，调用方应中止该事务
      *
-     * @param uid 用户ID
+     * @param w add 返回的等待者
+     * @param timeoutMillis 等待的上限，毫秒；不大于 0 时一直等待
+     * @throws Exception 超时抛出 LockWaitTimeoutException，被选为死锁牺牲者时抛出 DeadlockException
      */
-    private void selectNewXID(long uid) {
-        u2x.remove(uid); // 从用户ID映射表中移除用户ID
-        List<Long> l = wait.get(uid); // 获取用户ID对应的等待事务ID列表
-        if (l == null) {
+    public void await(Waiter w, long timeoutMillis) throws Exception {
+        if(timeoutMillis <= 0) {
+            w.await();
             return;
         }
-        assert l.size() > 0;
-
-        while (l.size() > 0) {
-            long xid = l.remove(0); // 移除列表中的事务ID
-            if (!waitLock.containsKey(xid)) {
-                continue;
-            } else {
-                u2x.put(uid, xid); // 将用户ID和事务ID存入映射表
-                Lock lo = waitLock.remove(xid); // 从等待锁映射表中移除事务ID，并获取对应的锁对象
-                waitU.remove(xid); // 从等待映射表中移除事务ID
-                lo.unlock(); // 释放锁对象
-                break;
-            }
+        if(w.await(timeoutMillis)) {
+            return;
         }
-
-        if (l.size() == 0) {
-            wait.remove(uid); // 如果列表为空，则从等待映射表中移除用户ID
+        if(cancel(w)) {
+            throw Error.LockWaitTimeoutException;
         }
+        w.await(); // 撤回前已被授予
     }
 
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
+    /**
+     * 在桶锁下尝试获得锁：已持有或无人持有时成功
+     */
+    private boolean tryAcquire(Bucket b, TxLocks tx, long xid, long uid) {
+        RowLock row = b.rows.get(uid);
+        if(row == null) {
+            row = new RowLock();
+            b.rows.put(uid, row);
+            row.owner = xid;
+            synchronized(tx) {
+                tx.held.add(uid);
+            }
+            return true;
+        }
+        return row.owner == xid;
+    }
 
     /**
-     * 检测是否存在死锁
-     *
-     * @return 如果存在死锁，则返回true；否则返回false
+     * 撤回尚未被授予的等待
+     * @return 撤回成功返回 true，已被授予时返回 false
      */
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>(); // 创建事务ID和时间戳的映射表
-        stamp = 1; // 初始化时间戳
-        for (long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid); // 获取事务ID对应的时间戳
-            if (s != null && s > 0) {
-                continue;
+    private boolean cancel(Waiter w) {
+        Bucket b = bucketOf(w.uid);
+        b.lock.lock();
+        try {
+            if(w.isGranted()) {
+                return false;
             }
-            stamp++; // 增加时间戳
-            if (dfs(xid)) {
-                return true; // 如果存在环形依赖，则存在死锁，返回true
+            RowLock row = b.rows.get(w.uid);
+            if(row != null) {
+                row.waiters.remove(w);
             }
+            TxLocks tx = txs.get(w.xid);
+            if(tx != null && tx.waiting == w) {
+                tx.waiting = null;
+            }
+            return true;
+        } finally {
+            b.lock.unlock();
         }
-        return false; // 不存在死锁，返回false
     }
 
     /**
-     * 深度优先搜索，用于检测是否存在环形依赖
+     * 释放事务持有的所有锁，并撤回它的等待
      *
-     * @param xid 起始事务ID
-     * @return 如果存在环形依赖，则返回true；否则返回false
+     * @param xid 事务ID
      */
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid); // 获取事务ID对应的时间戳
-        if (stp != null && stp == stamp) {
-            return true; // 如果时间戳存在且与当前时间戳相等，则存在环形依赖，返回true
+    public void remove(long xid) {
+        TxLocks tx = txs.remove(xid);
+        if(tx == null) {
+            return;
         }
-        if (stp != null && stp < stamp) {
-            return false; // 如果时间戳存在但小于当前时间戳，则不存在环形依赖，返回false
+        Waiter w = tx.waiting;
+        if(w != null) {
+            cancel(w);
         }
-        xidStamp.put(xid, stamp); // 将事务ID与当前时间戳存入映射表
+        LongList held;
+        synchronized(tx) {
+            held = tx.held;
+            tx.held = new LongList();
+        }
+        for(int i = 0; i < held.size(); i ++) {
+            release(held.get(i));
+        }
+    }
 
-        Long uid = waitU.get(xid); // 获取事务ID对应的等待用户ID
-        if (uid == null) {
-            return false; // 如果等待用户ID为空，则不存在环形依赖，返回false
+    /**
+     * 释放 uid 上的锁，授予最早的等待者
+     */
+    private void release(long uid) {
+        Bucket b = bucketOf(uid);
+        b.lock.lock();
+        try {
+            RowLock row = b.rows.get(uid);
+            Waiter next;
+            while((next = row.waiters.pollFirst()) != null) {
+                TxLocks tx = txs.get(next.xid);
+                if(tx == null) {
+                    continue; // 等待者已经结束
+                }
+                row.owner = next.xid;
+                synchronized(tx) {
+                    tx.held.add(uid);
+                }
+                tx.waiting = null;
+                next.grant();
+                return;
+            }
+            b.rows.remove(uid);
+        } finally {
+            b.lock.unlock();
         }
-        Long x = u2x.get(uid); // 获取等待用户ID对应的事务ID
-        assert x != null;
-        return dfs(x); // 递归调用dfs方法，继续检测下一个事务ID是否存在环形依赖
     }
 
     /**
-     * 从列表中移除指定的元素
+     * 在 deadlockLock 下调用：xid 等待 uid 时，沿等待边前进是否会回到 xid
      *
-     * @param listMap 列表的映射表
-     * @param uid0    第一个元素的ID
-     * @param uid1    第二个元素的ID
-     */
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0); // 获取第一个元素的列表
-        if (l == null) {
-            return; // 如果列表为空，则无需移除
-        }
-        Iterator<Long> i = l.iterator(); // 创建列表的迭代器
-        while (i.hasNext()) {
-            long e = i.next(); // 获取下一个元素
-            if (e == uid1) {
-                i.remove(); // 如果元素等于第二个元素的ID，则移除该元素
-                break;
+     * @return 如果存在死锁，则返回true；否则返回false
+     */
+    private boolean hasDeadLock(long xid, long uid) {
+        long x = ownerOf(uid);
+        for(int steps = txs.size(); x != NO_OWNER && steps >= 0; steps --) {
+            if(x == xid) {
+                return true;
+            }
+            TxLocks tx = txs.get(x);
+            Waiter w = tx == null ? null : tx.waiting;
+            if(w == null) {
+                return false; // 链的末端没有在等待
             }
+            x = ownerOf(w.uid);
         }
-        if (l.size() == 0) {
-            listMap.remove(uid0); // 如果列表为空，则从映射表中移除该列表
+        return false; // 链上不含 xid 的环由其中的等待者自己检测
+    }
+
+    private long ownerOf(long uid) {
+        Bucket b = bucketOf(uid);
+        b.lock.lock();
+        try {
+            RowLock row = b.rows.get(uid);
+            return row == null ? NO_OWNER : row.owner;
+        } finally {
+            b.lock.unlock();
         }
     }
 
     /**
-     * 将元素插入到列表的开头
-     *
-     * @param listMap 列表的映射表
-     * @param uid0    第一个元素的ID
-     * @param uid1    第二个元素的ID
+     * 后台检测：检查等待超过 detectDelay 的事务，在死锁环上的让其失败
      */
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if (!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>()); // 如果映射表中不包含第一个元素的ID，则创建一个新的列表
+    void detectLongWaits() {
+        long now = System.nanoTime();
+        deadlockLock.lock();
+        try {
+            for(TxLocks tx : txs.values()) {
+                Waiter w = tx.waiting;
+                if(w == null || now - w.since < detectDelayNanos) {
+                    continue;
+                }
+                if(hasDeadLock(w.xid, w.uid) && cancel(w)) {
+                    w.fail(); // 环被打破，之后检查的等待者看到的是新的等待图
+                }
+            }
+        } finally {
+            deadlockLock.unlock();
         }
-        listMap.get(uid0).add(0, uid1); // 将第二个元素的ID插入到第一个元素的列表的开头
     }
+
     /**
-     * 判断元素是否存在于列表中
-     *
-     * @param listMap 列表的映射表
-     * @param uid0    第一个元素的ID
-     * @param uid1    第二个元素的ID
-     * @return 如果第二个元素存在于第一个元素的列表中，则返回true；否则返回false
-     */
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0); // 获取第一个元素的列表
-        if (l == null) {
-            return false; // 如果列表为空，则第二个元素肯定不存在于列表中，返回false
-        }
-
-        Iterator<Long> i = l.iterator(); // 创建列表的迭代器
-        while (i.hasNext()) {
-            long e = i.next(); // 获取下一个元素
-            if (e == uid1) {
-                return true; // 如果第二个元素等于当前元素，则存在于列表中，返回true
-            }
+     * 停止后台检测线程
+     */
+    public void close() {
+        if(detector != null) {
+            detector.shutdownNow();
         }
-        return false; // 遍历完整个列表都没有找到第二个元素，返回false
     }
 }
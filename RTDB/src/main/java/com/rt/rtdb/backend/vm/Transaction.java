@@ -2,11 +2,15 @@ package com.rt.rtdb.backend.vm;
 
 import com.rt.rtdb.backend.tm.TransactionManagerImpl;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.SortedSet;
 
 /**
  * vm对一个事务的抽象
+ *
+ * 可重复读事务的快照由 (xmin, xmax, 进行中的事务) 表示：
+ * 小于 xmin 的事务在快照时都已结束，不小于 xmax 的事务在快照时还未开始，
+ * 两者之间的进行中事务按升序存放在 long 数组中，查询时二分查找
  * @author ryh
  * @version 1.0
  * @since 1.0
@@ -15,7 +19,9 @@ import java.util.Map;
 public class Transaction {
     public long xid; // 事务ID
     public int level; // 事务隔离级别
-    public Map<Long, Boolean> snapshot; // 事务快照
+    public long snapshotXmin; // 快照时最小的活跃事务ID，没有其他活跃事务时等于 snapshotXmax
+    public long snapshotXmax; // 快照时尚未分配的最小事务ID
+    public long[] snapshotXids; // 快照时进行中的事务，升序
     public Exception err; // 异常信息
     public boolean autoAborted; // 是否自动中止事务
 
@@ -24,26 +30,32 @@ public class Transaction {
      *
      * @param xid    事务ID
      * @param level  隔离级别
-     * @param active 活跃事务的映射表
+     * @param active 升序的活跃事务ID，不含超级事务和 xid 本身；调用方持锁保证遍历期间不变
      * @return 新创建的事务
      */
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, SortedSet<Long> active) {
         Transaction t = new Transaction();
         t.xid = xid; // 设置事务ID
         t.level = level; // 设置隔离级别
 
         if (level != 0) {
-            t.snapshot = new HashMap<>(); // 创建一个新的快照
-            // 为快照添加活跃事务
-            for (Long x : active.keySet()) {
-                t.snapshot.put(x, true); // 将活跃事务添加到快照中
+            // 只分配一个数组，不为每个活跃事务装箱
+            long[] xids = new long[active.size()];
+            int n = 0;
+            for (long x : active) {
+                if (x < xid) {
+                    xids[n++] = x;
+                }
             }
+            t.snapshotXids = n == xids.length ? xids : Arrays.copyOf(xids, n);
+            t.snapshotXmax = xid + 1;
+            t.snapshotXmin = n == 0 ? t.snapshotXmax : t.snapshotXids[0];
         }
         return t; // 返回新创建的事务
     }
 
     /**
-     * 判断事务是否在快照中
+     * 判断事务在快照时是否仍在进行：未结束或还未开始
      *
      * @param xid 事务ID
      * @return 如果事务在快照中，则返回true；否则返回false
@@ -52,7 +64,12 @@ public class Transaction {
         if (xid == TransactionManagerImpl.SUPER_XID) {
             return false; // 如果事务ID为特殊值SUPER_XID，则不在快照中，返回false
         }
-        return snapshot.containsKey(xid); // 检查快照中是否包含给定的事务ID，并返回结果
+        if (xid < snapshotXmin) {
+            return false;
+        }
+        if (xid >= snapshotXmax) {
+            return true;
+        }
+        return Arrays.binarySearch(snapshotXids, xid) >= 0;
     }
 }
-
@@ -11,7 +11,12 @@ public interface VersionManager {
     long insert(long xid, byte[] data) throws Exception;
 
     // 删除指定事务和数据版本的数据
-    boolean delete(long xid, long uid) throws Exception;
+    default boolean delete(long xid, long uid) throws Exception {
+        return delete(xid, uid, null);
+    }
+
+    // 删除数据，table 为所属的表名，用于按表统计锁等待，未知时为null
+    boolean delete(long xid, long uid, String table) throws Exception;
 
     // 开始一个新的事务，并指定事务隔离级别
     long begin(int level);
@@ -22,6 +27,24 @@ public interface VersionManager {
     // 中止指定事务
     void abort(long xid);
 
+    // 回收水位：删除事务已提交且小于水位的版本对所有活跃事务和之后开始的事务都不可见
+    long vacuumHorizon();
+
+    // 活跃事务中最大的事务ID，没有活跃事务时返回0
+    long newestActiveXid();
+
+    // uid 为已死亡的版本时返回其数据，否则返回null
+    byte[] readDeadVersion(long uid, long horizon) throws Exception;
+
+    // 读取版本的数据，不判断可见性，不存在时返回null；用于在已有数据上建索引
+    byte[] readVersion(long uid) throws Exception;
+
+    // 释放已死亡的版本，调用方需保证不会再有事务通过索引访问它
+    void purge(long uid);
+
+    // 行锁等待的计数
+    LockStats getLockStats();
+
     // 创建一个新的VersionManager实例
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
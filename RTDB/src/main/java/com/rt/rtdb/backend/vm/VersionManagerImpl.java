@@ -1,27 +1,41 @@
 package com.rt.rtdb.backend.vm;
 
-import com.rt.rtdb.backend.common.AbstractCache;
+import com.rt.rtdb.backend.common.ConcurrentCache;
 import com.rt.rtdb.backend.dm.DataManager;
 import com.rt.rtdb.backend.tm.TransactionManager;
 import com.rt.rtdb.backend.tm.TransactionManagerImpl;
 import com.rt.rtdb.backend.utils.Panic;
 import com.rt.rtdb.common.Error;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 版本管理器的实现类。
+ *
+ * 活跃事务登记在 ConcurrentHashMap 中，读写、提交和回滚查找事务都不加锁；
+ * 另有一个升序的活跃事务ID集合，其中最小者即最早的活跃事务，供快照和回收水位读取。
+ * 活跃集合的变化都在 procLock 下进行：开始事务时分配 XID、生成并发布快照，
+ * 提交和回滚时离开活跃集合，回收水位也在锁下计算。
+ * 因此快照是活跃集合在某一时刻的一致视图，回收水位看到的每个活跃事务都已发布快照。
  */
-public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
+public class VersionManagerImpl extends ConcurrentCache<Entry> implements VersionManager {
 
     TransactionManager tm; // 事务管理器
     DataManager dm; // 数据管理器
     Map<Long, Transaction> activeTransaction; // 活跃事务列表
-    Lock lock; // 用于并发控制的锁
+    NavigableSet<Long> activeXids; // 升序的活跃事务ID，不含超级事务，用于生成快照
+    Lock procLock; // 分配XID、生成快照、登记和移出活跃事务时加锁
     LockTable lt; // 锁表
+    long lockWaitTimeoutMillis; // 锁等待的上限，超时的事务被中止；不大于 0 时一直等待
+    LockStats lockStats; // 锁等待的计数
+
+    public static final long DEFAULT_LOCK_WAIT_TIMEOUT = 50000; // 默认锁等待上限，毫秒
 
     /**
      * 构造函数
@@ -29,13 +43,26 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      * @param dm 数据管理器
      */
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
+        this(tm, dm, DEFAULT_LOCK_WAIT_TIMEOUT);
+    }
+
+    /**
+     * 构造函数
+     * @param tm 事务管理器
+     * @param dm 数据管理器
+     * @param lockWaitTimeoutMillis 锁等待的上限，毫秒；不大于 0 时一直等待
+     */
+    public VersionManagerImpl(TransactionManager tm, DataManager dm, long lockWaitTimeoutMillis) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>(); // 初始化活跃事务列表
+        this.activeTransaction = new ConcurrentHashMap<>(); // 初始化活跃事务列表
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null)); // 添加超级事务到活跃事务列表
-        this.lock = new ReentrantLock(); // 初始化锁
+        this.activeXids = new ConcurrentSkipListSet<>();
+        this.procLock = new ReentrantLock(); // 初始化锁
         this.lt = new LockTable(); // 初始化锁表
+        this.lockWaitTimeoutMillis = lockWaitTimeoutMillis;
+        this.lockStats = new LockStats();
     }
 
     /**
@@ -47,9 +74,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock(); // 加锁
-        Transaction t = activeTransaction.get(xid); // 获取事务
-        lock.unlock(); // 解锁
+        Transaction t = activeTransaction.get(xid); // 获取事务，无锁查找
 
         if(t.err != null) { // 如果事务发生错误
             throw t.err; // 抛出异常
@@ -85,9 +110,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock(); // 加锁
-        Transaction t = activeTransaction.get(xid); // 获取事务
-        lock.unlock(); // 解锁
+        Transaction t = activeTransaction.get(xid); // 获取事务，无锁查找
 
         if(t.err != null) { // 如果事务发生错误
             throw t.err; // 抛出异常
@@ -101,14 +124,13 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      * 删除数据
      * @param xid 事务ID
      * @param uid 要删除的数据的UID
+     * @param table 所属的表名，用于统计锁等待，可以为null
      * @return 如果删除成功返回true，否则返回false
-     * @throws Exception 如果事务发生错误
+     * @throws Exception 如果事务发生错误，或锁等待超时
      */
     @Override
-    public boolean delete(long xid, long uid) throws Exception {
-        lock.lock(); // 加锁
-        Transaction t = activeTransaction.get(xid); // 获取事务
-        lock.unlock(); // 解锁
+    public boolean delete(long xid, long uid, String table) throws Exception {
+        Transaction t = activeTransaction.get(xid); // 获取事务，无锁查找
 
         if(t.err != null) { // 如果事务发生错误
             throw t.err; // 抛出异常
@@ -127,19 +149,31 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             if(!Visibility.isVisible(tm, t, entry)) { // 如果记录不可见
                 return false; // 返回false
             }
-            Lock l = null;
+            long start = 0;
             try {
-                l = lt.add(xid, uid); // 尝试在锁表中添加锁
+                LockTable.Waiter w = lt.add(xid, uid); // 尝试在锁表中添加锁
+                if(w != null) {
+                    start = System.nanoTime();
+                    lt.await(w, lockWaitTimeoutMillis); // 等待持有者结束
+                    lockStats.waited(table, uid, System.nanoTime() - start);
+                }
             } catch(Exception e) {
-                t.err = Error.ConcurrentUpdateException; // 并发更新异常
+                if(start != 0) {
+                    lockStats.waited(table, uid, System.nanoTime() - start);
+                }
+                if(e == Error.LockWaitTimeoutException) {
+                    lockStats.timeout(table, uid);
+                    t.err = e; // 锁等待超时
+                } else {
+                    if(e == Error.DeadlockException) {
+                        lockStats.deadlock(table, uid);
+                    }
+                    t.err = Error.ConcurrentUpdateException; // 并发更新异常
+                }
                 internAbort(xid, true); // 中止事务
                 t.autoAborted = true;
                 throw t.err; // 抛出异常
             }
-            if(l != null) {
-                l.lock();
-                l.unlock();
-            }
 
             if(entry.getXmax() == xid) { // 如果记录已被删除
                 return false; // 返回false
@@ -167,14 +201,16 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long begin(int level) {
-        lock.lock(); // 加锁
+        procLock.lock(); // 加锁
         try {
             long xid = tm.begin(); // 开始事务
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction); // 创建新事务
+            // 锁内活跃集合不变，快照中恰好是此刻未结束的更早事务；发布后才解锁，回收水位一定能看到它
+            Transaction t = Transaction.newTransaction(xid, level, activeXids); // 创建新事务
+            activeXids.add(xid);
             activeTransaction.put(xid, t); // 将事务添加到活跃事务列表
             return xid; // 返回事务ID
         } finally {
-            lock.unlock(); // 解锁
+            procLock.unlock(); // 解锁
         }
     }
 
@@ -185,9 +221,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock(); // 加锁
-        Transaction t = activeTransaction.get(xid); // 获取事务
-        lock.unlock(); // 解锁
+        Transaction t = activeTransaction.get(xid); // 获取事务，无锁查找
 
         try {
             if(t.err != null) { // 如果事务发生错误
@@ -199,12 +233,13 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(n);
         }
 
-        lock.lock(); // 加锁
-        activeTransaction.remove(xid); // 从活跃事务列表中移除事务
-        lock.unlock(); // 解锁
+        dm.logCommit(xid); // 提交日志落盘后事务即已提交，之后才释放锁并对其他事务可见
+        // 先标记为已提交再移出活跃集合：此后生成的快照不含它时，它一定已提交
+        tm.commit(xid); // 提交事务
+
+        leave(xid);
 
         lt.remove(xid); // 从锁表中移除事务
-        tm.commit(xid); // 提交事务
     }
 
     /**
@@ -222,18 +257,154 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      * @param autoAborted 是否自动中止
      */
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock(); // 加锁
-        Transaction t = activeTransaction.get(xid); // 获取事务
+        Transaction t = activeTransaction.get(xid); // 获取事务，无锁查找
+        if(!t.autoAborted) {
+            dm.logAbort(xid); // 写入回滚日志
+            tm.abort(xid); // 中止事务
+        }
         if(!autoAborted) {
+            leave(xid);
+        }
+        if(!t.autoAborted) {
+            lt.remove(xid); // 从锁表中移除事务
+        }
+    }
+
+    /**
+     * 在 procLock 下将事务移出活跃集合，不会与生成快照交错
+     * @param xid 已提交或已回滚的事务ID
+     */
+    private void leave(long xid) {
+        procLock.lock();
+        try {
             activeTransaction.remove(xid); // 从活跃事务列表中移除事务
+            activeXids.remove(xid);
+        } finally {
+            procLock.unlock();
         }
-        lock.unlock(); // 解锁
+    }
 
-        if(t.autoAborted) {
-            return;
+    /**
+     * 计算回收水位
+     * 取活跃事务及其快照中最小的事务ID：删除事务早于所有活跃事务提交，
+     * 且不在任何可重复读事务的快照中，该版本对所有事务都不可见；
+     * 之后开始的事务的快照中不会有已提交的事务，也看不到该版本
+     * @return 回收水位，没有活跃事务时为 Long.MAX_VALUE
+     */
+    @Override
+    public long vacuumHorizon() {
+        // 与开始事务互斥：活跃集合中的事务都已发布快照，不会漏掉正在生成的快照的 xmin
+        procLock.lock();
+        try {
+            long horizon = minActiveXid();
+            for(Transaction t : activeTransaction.values()) {
+                if(t.xid == TransactionManagerImpl.SUPER_XID) {
+                    continue;
+                }
+                horizon = Math.min(horizon, t.xid);
+                if(t.level != 0) {
+                    horizon = Math.min(horizon, t.snapshotXmin);
+                }
+            }
+            return horizon;
+        } finally {
+            procLock.unlock();
         }
-        lt.remove(xid); // 从锁表中移除事务
-        tm.abort(xid); // 中止事务
+    }
+
+    /**
+     * 最早的活跃事务ID，按 XID 顺序登记，只增不减
+     * @return 没有活跃事务时为 Long.MAX_VALUE
+     */
+    public long minActiveXid() {
+        try {
+            return activeXids.first();
+        } catch(NoSuchElementException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 活跃事务中最大的事务ID，之后开始的事务ID都比它大
+     */
+    @Override
+    public long newestActiveXid() {
+        try {
+            return activeXids.last();
+        } catch(NoSuchElementException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 判断版本是否已死亡：删除事务已提交且早于回收水位，或创建事务已中止
+     * @param uid 记录ID
+     * @param horizon 回收水位
+     * @return 已死亡时返回记录的数据，否则返回null
+     */
+    @Override
+    public byte[] readDeadVersion(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid); // 从缓存中获取记录
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) { // 如果记录不存在
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            long xmin = entry.getXmin();
+            long xmax = entry.getXmax();
+            boolean dead = tm.isAborted(xmin)
+                    || (xmax != TransactionManagerImpl.SUPER_XID && xmax < horizon && tm.isCommitted(xmax));
+            return dead ? entry.data() : null;
+        } finally {
+            entry.release(); // 释放记录
+        }
+    }
+
+    /**
+     * 读取版本的数据，不判断可见性
+     * 新建的索引要包含索引中已有的所有版本，包括尚未提交和已删除的版本
+     * @param uid 记录ID
+     * @return 记录的数据，不存在时返回null
+     */
+    @Override
+    public byte[] readVersion(long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid); // 从缓存中获取记录
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) { // 如果记录不存在
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            return entry.data();
+        } finally {
+            entry.release(); // 释放记录
+        }
+    }
+
+    /**
+     * 释放已死亡的版本，之后它的空间和uid可被新插入的数据复用
+     * @param uid 记录ID
+     */
+    @Override
+    public void purge(long uid) {
+        dm.free(uid);
+    }
+
+    /**
+     * 获取行锁等待的计数
+     */
+    @Override
+    public LockStats getLockStats() {
+        return lockStats;
     }
 
     /**
@@ -24,6 +24,7 @@ public class Error {
 
     // vm
     public static final Exception DeadlockException = new RuntimeException("死锁！");
+    public static final Exception LockWaitTimeoutException = new RuntimeException("锁等待超时！");
     public static final Exception ConcurrentUpdateException = new RuntimeException("并发更新问题！");
     public static final Exception NullEntryException = new RuntimeException("空条目！");
 
@@ -35,6 +36,8 @@ public class Error {
     public static final Exception InvalidValuesException = new RuntimeException("无效的值！");
     public static final Exception DuplicatedTableException = new RuntimeException("重复的表！");
     public static final Exception TableNotFoundException = new RuntimeException("表未找到！");
+    public static final Exception InvalidFanoutException = new RuntimeException("无效的索引扇出！");
+    public static final Exception FieldAlreadyIndexedException = new RuntimeException("字段已建立索引！");
 
     // parser
     public static final Exception InvalidCommandException = new RuntimeException("无效的命令！");
@@ -49,5 +52,7 @@ public class Error {
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("无效的内存！");
+    public static final Exception InvalidCheckpointIntervalException = new RuntimeException("无效的检查点间隔！");
+    public static final Exception InvalidLockTimeoutException = new RuntimeException("无效的锁等待超时！");
 
 }
@@ -0,0 +1,112 @@
+package com.rt.rtdb.backend.common;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AbstractCache 与 ConcurrentCache 的吞吐量对比
+ *
+ * 以 test classpath 运行 main 方法，线程数依次为 1、2、4、8、16、32
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+    private static final int HOT_KEYS = 1024;
+
+    @Param({"locked", "concurrent"})
+    public String impl;
+
+    private LockedCache locked;
+    private StripedCache striped;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        locked = new LockedCache();
+        striped = new StripedCache();
+        // 预先持有热点数据，模拟被事务固定在缓存中的页面
+        for(long k = 0; k < HOT_KEYS; k ++) {
+            locked.get(k);
+            striped.get(k);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        locked.close();
+        striped.close();
+    }
+
+    @Benchmark
+    public long getRelease() throws Exception {
+        long key = ThreadLocalRandom.current().nextInt(HOT_KEYS * 2);
+        long v;
+        if("locked".equals(impl)) {
+            v = locked.get(key);
+            locked.release(key);
+        } else {
+            v = striped.get(key);
+            striped.release(key);
+        }
+        return v;
+    }
+
+    static class LockedCache extends AbstractCache<Long> {
+        LockedCache() {
+            super(0);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {}
+    }
+
+    static class StripedCache extends ConcurrentCache<Long> {
+        StripedCache() {
+            super(0);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {}
+    }
+
+    public static void main(String[] args) throws Exception {
+        for(int threads : new int[]{1, 2, 4, 8, 16, 32}) {
+            Options opt = new OptionsBuilder()
+                    .include(CacheBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.rt.rtdb.backend.common;
+
+import com.rt.rtdb.backend.utils.Panic;
+import com.rt.rtdb.common.Error;
+import org.junit.Test;
+
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrentCacheTest {
+
+    static Random random = new SecureRandom();
+
+    private CountDownLatch cdl;
+    private MockConcurrentCache cache;
+
+    @Test
+    public void testCache() throws InterruptedException {
+        cache = new MockConcurrentCache();
+        cdl = new CountDownLatch(200);
+        for(int i = 0; i < 200; i ++) {
+            Runnable r = () -> work();
+            new Thread(r).start();
+        }
+        cdl.await();
+    }
+
+    private void work() {
+        for(int i = 0; i < 1000; i++) {
+            long uid = random.nextInt(100);
+            long h = 0;
+            try {
+                h = cache.get(uid);
+            } catch (Exception e) {
+                if(e == Error.CacheFullException) continue;
+                Panic.panic(e);
+            }
+            assert h == uid;
+            cache.release(h);
+        }
+        cdl.countDown();
+    }
+
+    @Test
+    public void testCacheFullKeepsBound() throws Exception {
+        checkCacheFull(new ConcurrentCache<Long>(2) {
+            @Override
+            protected Long getForCache(long key) { return key; }
+
+            @Override
+            protected void releaseForCache(Long obj) {}
+        });
+        checkCacheFull(new ConcurrentCache<Long>(2, new TwoQueuePolicy(2)) {
+            @Override
+            protected Long getForCache(long key) { return key; }
+
+            @Override
+            protected void releaseForCache(Long obj) {}
+        });
+    }
+
+    /**
+     * 占满所有位置后反复未命中，每次都应抛出 CacheFullException，且驻留的元素不超过上限
+     */
+    private void checkCacheFull(ConcurrentCache<Long> full) throws Exception {
+        full.get(1);
+        full.get(2);
+        for(int i = 0; i < 5; i ++) {
+            try {
+                full.get(3 + i);
+                assert false;
+            } catch (Exception e) {
+                assert e == Error.CacheFullException;
+            }
+            assert full.cachedKeys(x -> true).size() == 2;
+        }
+        // 释放一个后可以驱逐它腾出位置
+        full.release(1);
+        assert full.get(10) == 10;
+        assert full.cachedKeys(x -> true).size() <= 2;
+    }
+
+    @Test
+    public void testSingleLoad() throws InterruptedException {
+        AtomicInteger loads = new AtomicInteger(0);
+        ConcurrentCache<Long> slow = new ConcurrentCache<Long>(0) {
+            @Override
+            protected Long getForCache(long key) throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep(50);
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {}
+        };
+        CountDownLatch done = new CountDownLatch(16);
+        for(int i = 0; i < 16; i ++) {
+            new Thread(() -> {
+                try {
+                    assert slow.get(7) == 7;
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        // 所有线程在引用未释放时并发获取同一个 key，只应加载一次
+        assert loads.get() == 1;
+    }
+}
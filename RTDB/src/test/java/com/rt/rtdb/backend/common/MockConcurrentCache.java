@@ -0,0 +1,17 @@
+package com.rt.rtdb.backend.common;
+
+public class MockConcurrentCache extends ConcurrentCache<Long> {
+
+    public MockConcurrentCache() {
+        super(50);
+    }
+
+    @Override
+    protected Long getForCache(long key) throws Exception {
+        return key;
+    }
+
+    @Override
+    protected void releaseForCache(Long obj) {}
+
+}
@@ -2,9 +2,12 @@ package com.rt.rtdb.backend.dm;
 
 import com.rt.rtdb.backend.common.SubArray;
 import com.rt.rtdb.backend.dm.dataItem.DataItem;
+import com.rt.rtdb.backend.dm.logger.LogRecord;
+import com.rt.rtdb.backend.dm.logger.Logger;
 import com.rt.rtdb.backend.dm.pageCache.PageCache;
 import com.rt.rtdb.backend.tm.MockTransactionManager;
 import com.rt.rtdb.backend.tm.TransactionManager;
+import com.rt.rtdb.backend.tm.TransactionManagerImpl;
 import com.rt.rtdb.backend.utils.Panic;
 import com.rt.rtdb.backend.utils.RandomUtil;
 import org.junit.Test;
@@ -15,6 +18,7 @@ import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
@@ -159,4 +163,277 @@ public class DataManagerTest {
         new File("/tmp/TestRecoverySimple.xid").delete();
 
     }
+
+    @Test
+    public void testRecoveryFromCheckpoint() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestRecoveryCheckpoint");
+        DataManager dm0 = DataManager.create("/tmp/TestRecoveryCheckpoint", PageCache.PAGE_SIZE*30, tm0);
+
+        // 检查点之前开始、崩溃时仍未提交的事务
+        long xidA = tm0.begin();
+        long uidA = dm0.insert(xidA, "aaa".getBytes());
+        long xidB = tm0.begin();
+        long uidB = dm0.insert(xidB, "bbb".getBytes());
+        tm0.commit(xidB);
+
+        dm0.checkpoint();
+
+        long xidC = tm0.begin();
+        long uidC = dm0.insert(xidC, "ccc".getBytes());
+        tm0.commit(xidC);
+
+        // 不关闭 dm0，模拟崩溃后重新打开
+        DataManager dm1 = DataManager.open("/tmp/TestRecoveryCheckpoint", PageCache.PAGE_SIZE*30, tm0);
+        assert tm0.isAborted(xidA);
+        assert dm1.read(uidA) == null;
+        for(Object[] kv : new Object[][]{{uidB, "bbb"}, {uidC, "ccc"}}) {
+            DataItem di = dm1.read((long) kv[0]);
+            SubArray data = di.data();
+            assert kv[1].equals(new String(Arrays.copyOfRange(data.raw, data.start, data.end)));
+            di.release();
+        }
+        dm1.close();
+
+        new File("/tmp/TestRecoveryCheckpoint.db").delete();
+        new File("/tmp/TestRecoveryCheckpoint.log").delete();
+        new File("/tmp/TestRecoveryCheckpoint.xid").delete();
+    }
+
+    @Test
+    public void testParallelRecovery() throws Exception {
+        testRecoveryWith("/tmp/TestParallelRecovery", 4);
+    }
+
+    @Test
+    public void testSequentialRecovery() throws Exception {
+        testRecoveryWith("/tmp/TestSequentialRecovery", 1);
+    }
+
+    @Test
+    public void testFreeSpaceReuse() throws Exception {
+        String path = "/tmp/TestFreeSpaceReuse";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+
+        // 写满若干页面后释放其中一半，再插入更长的数据项，需要整理页面才能放下
+        long xid = tm0.begin();
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 100; i ++) {
+            byte[] data = RandomUtil.randomBytes(400);
+            uids.add(dm0.insert(xid, data));
+            datas.add(data);
+        }
+        tm0.commit(xid);
+        int pageNumber = ((DataManagerImpl) dm0).pc.getPageNumber();
+        for(int i = 0; i < uids.size(); i += 2) {
+            dm0.free(uids.get(i));
+        }
+        xid = tm0.begin();
+        List<Long> uids1 = new ArrayList<>();
+        List<byte[]> datas1 = new ArrayList<>();
+        for(int i = 0; i < 25; i ++) {
+            byte[] data = RandomUtil.randomBytes(600);
+            uids1.add(dm0.insert(xid, data));
+            datas1.add(data);
+        }
+        tm0.commit(xid);
+        assert ((DataManagerImpl) dm0).pc.getPageNumber() == pageNumber;
+        // 页面已包含全部修改，恢复时从日志开头重放，需按 PageLSN 跳过已应用的日志
+        ((DataManagerImpl) dm0).pc.flushDirtyPages();
+
+        // 不关闭 dm0，模拟崩溃后重新打开
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        for(int i = 1; i < uids.size(); i += 2) {
+            assertData(dm1, uids.get(i), datas.get(i));
+        }
+        for(int i = 0; i < uids1.size(); i ++) {
+            assertData(dm1, uids1.get(i), datas1.get(i));
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testRecoveryInsertRacingUpdate() throws Exception {
+        String path = "/tmp/TestInsertRacingUpdate";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        DataManagerImpl impl = (DataManagerImpl) dm0;
+
+        long xid = tm0.begin();
+        long uidX = dm0.insert(xid, "xxxx".getBytes());
+        tm0.commit(xid);
+        impl.pc.flushDirtyPages();
+
+        // 插入写完日志、尚未生效时，另一个线程修改同一页面上的数据项（PageLSN 被推过插入的日志）并刷盘
+        long xidU = tm0.begin();
+        Thread racer = new Thread(() -> {
+            try {
+                DataItem di = dm0.read(uidX);
+                SubArray s = di.data();
+                di.before();
+                System.arraycopy("yyyy".getBytes(), 0, s.raw, s.start, 4);
+                di.after(xidU);
+                di.release();
+                impl.pc.flushDirtyPages();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        });
+        impl.logger = new RaceLogger(impl.logger, racer);
+        long xidI = tm0.begin();
+        long uidI = dm0.insert(xidI, "iiii".getBytes());
+        tm0.commit(xidI);
+        racer.join();
+        tm0.commit(xidU);
+        assert uidI >>> 32 == uidX >>> 32; // 两个数据项在同一页面上
+
+        // 不关闭 dm0，模拟崩溃后重新打开，已提交的插入和修改都在
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        assertData(dm1, uidI, "iiii".getBytes());
+        assertData(dm1, uidX, "yyyy".getBytes());
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testCheckpointDuringInsert() throws Exception {
+        String path = "/tmp/TestCheckpointDuringInsert";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        DataManagerImpl impl = (DataManagerImpl) dm0;
+        dm0.insert(TransactionManagerImpl.SUPER_XID, "xxxx".getBytes());
+
+        // SUPER_XID 的插入写完日志、尚未修改页面时做检查点：检查点等插入生效后才取恢复起点并写回页面
+        Thread checkpointer = new Thread(dm0::checkpoint);
+        impl.logger = new RaceLogger(impl.logger, checkpointer);
+        long uid = dm0.insert(TransactionManagerImpl.SUPER_XID, "node".getBytes());
+        checkpointer.join();
+
+        // 不关闭 dm0，模拟崩溃后重新打开，插入的日志即使已被删除，页面中也有这个数据项
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        assertData(dm1, uid, "node".getBytes());
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    /**
+     * 写完第一条插入日志后启动 racer，并等它最多 500 毫秒再返回，
+     * 使 racer 的操作落在插入写完日志、修改页面之前的窗口中；racer 需要等插入生效时这里超时返回
+     */
+    private static class RaceLogger implements Logger {
+        private final Logger real;
+        private Thread racer;
+
+        RaceLogger(Logger real, Thread racer) {
+            this.real = real;
+            this.racer = racer;
+        }
+
+        public long log(byte[] data) {
+            long lsn = real.log(data);
+            if(data[0] == 0 && racer != null) { // 插入日志
+                Thread t = racer;
+                racer = null;
+                t.start();
+                try {
+                    t.join(500);
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+            }
+            return lsn;
+        }
+
+        public long size() { return real.size(); }
+        public void truncate(long x) throws Exception { real.truncate(x); }
+        public byte[] next() { return real.next(); }
+        public void rewind() { real.rewind(); }
+        public void seek(long position) { real.seek(position); }
+        public Iterator<LogRecord> scan(long position) { return real.scan(position); }
+        public void purge(long lsn) { real.purge(lsn); }
+        public void close() { real.close(); }
+    }
+
+    private void assertData(DataManager dm, long uid, byte[] expected) throws Exception {
+        DataItem di = dm.read(uid);
+        SubArray data = di.data();
+        assert Arrays.equals(expected, Arrays.copyOfRange(data.raw, data.start, data.end));
+        di.release();
+    }
+
+    private void testRecoveryWith(String path, int parallelism) throws Exception {
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+
+        // 已提交的事务写满多个页面
+        long xidB = tm0.begin();
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 200; i ++) {
+            byte[] data = RandomUtil.randomBytes(500);
+            uids.add(dm0.insert(xidB, data));
+            datas.add(data);
+        }
+        // 只写提交日志，模拟 XID 文件还未写入时崩溃
+        dm0.logCommit(xidB);
+
+        // 已回滚的事务
+        long xidC = tm0.begin();
+        dm0.insert(xidC, RandomUtil.randomBytes(500));
+        dm0.logAbort(xidC);
+
+        // 崩溃时仍未提交的事务：修改一半数据项，并插入新数据项
+        long xidA = tm0.begin();
+        for(int i = 0; i < uids.size(); i += 2) {
+            DataItem di = dm0.read(uids.get(i));
+            SubArray s = di.data();
+            di.before();
+            System.arraycopy(RandomUtil.randomBytes(500), 0, s.raw, s.start, 500);
+            di.after(xidA);
+            di.release();
+        }
+        List<Long> uidsA = new ArrayList<>();
+        for(int i = 0; i < 50; i ++) {
+            uidsA.add(dm0.insert(xidA, RandomUtil.randomBytes(500)));
+        }
+
+        // 不关闭 dm0，模拟崩溃后按指定的并行度恢复，事务状态从日志重建
+        TransactionManager tm1 = TransactionManager.open(path);
+        assert tm1.isActive(xidB) && tm1.isActive(xidC);
+        PageCache pc = PageCache.open(path, PageCache.PAGE_SIZE*30);
+        Logger lg = Logger.open(path);
+        DataManagerImpl dm1 = new DataManagerImpl(pc, lg, tm1);
+        assert !dm1.loadCheckPageOne();
+        Recover.recover(tm1, lg, pc, parallelism);
+        dm1.fillPageIndex();
+        assert tm1.isCommitted(xidB);
+        assert tm1.isAborted(xidC);
+        assert tm1.isAborted(xidA);
+        for(long uid : uidsA) {
+            assert dm1.read(uid) == null;
+        }
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray data = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(data.raw, data.start, data.end));
+            di.release();
+        }
+        dm1.close();
+        tm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
 }
@@ -1,5 +1,6 @@
 package com.rt.rtdb.backend.dm;
 
+import com.rt.rtdb.backend.common.CacheStats;
 import com.rt.rtdb.backend.common.SubArray;
 import com.rt.rtdb.backend.dm.dataItem.DataItem;
 import com.rt.rtdb.backend.dm.dataItem.MockDataItem;
@@ -51,7 +52,37 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public void free(long uid) {
+        lock.lock();
+        try {
+            cache.remove(uid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void logCommit(long xid) {}
+
+    @Override
+    public void logAbort(long xid) {}
+
     @Override
     public void close() {}
+
+    @Override
+    public CacheStats getPageCacheStats() {
+        return new CacheStats();
+    }
+
+    @Override
+    public void checkpoint() {}
+
+    @Override
+    public void startCheckpoint(long intervalSeconds) {}
+
+    @Override
+    public void prefetch(long uid) {}
     
 }
@@ -0,0 +1,88 @@
+package com.rt.rtdb.backend.dm.logger;
+
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.dm.pageCache.PageCache;
+import com.rt.rtdb.backend.tm.TransactionManager;
+import com.rt.rtdb.backend.tm.TransactionManagerImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 组提交下带日志的插入吞吐量
+ *
+ * log：只写日志；insert：DataManager.insert，先写日志再写页面
+ * 以 test classpath 运行 main 方法，线程数依次为 1、2、4、8、16、32、64
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark {
+
+    private static final byte[] RECORD = new byte[64];
+
+    private File dir;
+    private Logger lg;
+    private TransactionManager tm;
+    private DataManager dm;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("logger_bench").toFile();
+        lg = Logger.create(new File(dir, "log").getPath());
+        String path = new File(dir, "db").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, PageCache.PAGE_SIZE * 1000, tm);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        lg.close();
+        dm.close();
+        tm.close();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long log() {
+        return lg.log(RECORD);
+    }
+
+    @Benchmark
+    public long insert() throws Exception {
+        return dm.insert(TransactionManagerImpl.SUPER_XID, RECORD);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for(int threads : new int[]{1, 2, 4, 8, 16, 32, 64}) {
+            Options opt = new OptionsBuilder()
+                    .include(LoggerBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
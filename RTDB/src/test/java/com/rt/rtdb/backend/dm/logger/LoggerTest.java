@@ -2,7 +2,16 @@ package com.rt.rtdb.backend.dm.logger;
 
 import org.junit.Test;
 
+import com.google.common.primitives.Bytes;
+import com.rt.rtdb.backend.utils.Parser;
+
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 public class LoggerTest {
     @Test
@@ -45,4 +54,252 @@ public class LoggerTest {
 
         assert new File("/tmp/logger_test.log").delete();
     }
+
+    @Test
+    public void testLoggerConcurrent() throws Exception {
+        Logger writer = Logger.create("/tmp/logger_concurrent_test");
+        int threads = 16, perThread = 200;
+        Set<Long> lsns = ConcurrentHashMap.newKeySet();
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for(int i = 0; i < threads; i ++) {
+            int id = i;
+            new Thread(() -> {
+                for(int j = 0; j < perThread; j ++) {
+                    lsns.add(writer.log((id + ":" + j).getBytes()));
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        writer.close();
+        // 每条日志的位置各不相同
+        assert lsns.size() == threads * perThread;
+
+        Logger lg = Logger.open("/tmp/logger_concurrent_test");
+        lg.rewind();
+        Set<String> logs = new HashSet<>();
+        byte[] log;
+        while((log = lg.next()) != null) {
+            logs.add(new String(log));
+        }
+        lg.close();
+        assert logs.size() == threads * perThread;
+        for(int i = 0; i < threads; i ++) {
+            for(int j = 0; j < perThread; j ++) {
+                assert logs.contains(i + ":" + j);
+            }
+        }
+
+        assert new File("/tmp/logger_concurrent_test.log").delete();
+    }
+
+    @Test
+    public void testRemoveBadTail() throws Exception {
+        Logger lg = Logger.create("/tmp/logger_tail_test");
+        lg.log("aaa".getBytes());
+        long end = lg.log("bbb".getBytes());
+        lg.close();
+
+        // 模拟写到一半崩溃：尾部是一条不完整的日志
+        try (RandomAccessFile raf = new RandomAccessFile("/tmp/logger_tail_test.log", "rw")) {
+            raf.seek(raf.length());
+            raf.write(Bytes.concat(Parser.int2Byte(100), Parser.int2Byte(0), "cc".getBytes()));
+        }
+
+        lg = Logger.open("/tmp/logger_tail_test");
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert lg.next() == null;
+        // 新日志接在最后一条完整日志之后
+        long lsn = lg.log("ddd".getBytes());
+        assert lsn == end + 8 + 3;
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_tail_test");
+        lg.seek(lsn);
+        assert "ddd".equals(new String(lg.next()));
+        lg.close();
+
+        assert new File("/tmp/logger_tail_test.log").delete();
+    }
+
+    @Test
+    public void testConvertLegacyLog() throws Exception {
+        // 按旧格式写入：[XChecksum] 之后是 [Size] [Checksum] [Data]
+        String[] datas = {"aaa", "bbb", "ccc"};
+        int xChecksum = 0;
+        byte[] logs = new byte[0];
+        for(String d : datas) {
+            byte[] data = d.getBytes();
+            byte[] log = Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(legacyChecksum(0, data)), data);
+            xChecksum = legacyChecksum(xChecksum, log);
+            logs = Bytes.concat(logs, log);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile("/tmp/logger_legacy_test.log", "rw")) {
+            raf.write(Bytes.concat(Parser.int2Byte(xChecksum), logs));
+        }
+
+        Logger lg = Logger.open("/tmp/logger_legacy_test");
+        for(String d : datas) {
+            assert d.equals(new String(lg.next()));
+        }
+        assert lg.next() == null;
+        // LSN 与旧文件中的位置一致
+        lg.seek(4 + 8 + 3);
+        assert "bbb".equals(new String(lg.next()));
+        lg.log("ddd".getBytes());
+        lg.close();
+
+        // 转换只发生一次
+        lg = Logger.open("/tmp/logger_legacy_test");
+        for(String d : new String[]{"aaa", "bbb", "ccc", "ddd"}) {
+            assert d.equals(new String(lg.next()));
+        }
+        lg.close();
+
+        assert new File("/tmp/logger_legacy_test.log").delete();
+    }
+
+    @Test
+    public void testSegmentRotation() throws Exception {
+        LoggerImpl lg = (LoggerImpl) Logger.create("/tmp/logger_rotate_test");
+        lg.setSegmentSize(64);
+        long[] lsns = new long[20];
+        for(int i = 0; i < lsns.length; i ++) {
+            lsns[i] = lg.log(("log" + i).getBytes());
+        }
+        lg.close();
+        // 每条日志 8 + 4 或 8 + 5 字节，64 字节的段写满后切换
+        assert LogSegment.listSealed(new File("/tmp/logger_rotate_test.log")).size() > 1;
+
+        lg = (LoggerImpl) Logger.open("/tmp/logger_rotate_test");
+        for(int i = 0; i < lsns.length; i ++) {
+            assert ("log" + i).equals(new String(lg.next()));
+        }
+        assert lg.next() == null;
+        // 跨段的 LSN 依然连续
+        lg.seek(lsns[10]);
+        assert "log10".equals(new String(lg.next()));
+        lg.close();
+
+        deleteLog("/tmp/logger_rotate_test");
+    }
+
+    @Test
+    public void testPurge() throws Exception {
+        LoggerImpl lg = (LoggerImpl) Logger.create("/tmp/logger_purge_test");
+        lg.setSegmentSize(64);
+        long[] lsns = new long[20];
+        for(int i = 0; i < lsns.length; i ++) {
+            lsns[i] = lg.log(("log" + i).getBytes());
+        }
+        File active = new File("/tmp/logger_purge_test.log");
+        int before = LogSegment.listSealed(active).size();
+        lg.purge(lsns[15]);
+        int after = LogSegment.listSealed(active).size();
+        assert after < before;
+
+        // 只遍历仍然存在的段，lsns[15] 所在的段没有被删除
+        lg.rewind();
+        byte[] log = lg.next();
+        int first = Integer.parseInt(new String(log).substring(3));
+        assert first > 0 && first <= 15;
+        // 落在已删除段中的位置从第一个存在的段开始读
+        lg.seek(lsns[0]);
+        assert ("log" + first).equals(new String(lg.next()));
+        lg.close();
+
+        lg = (LoggerImpl) Logger.open("/tmp/logger_purge_test");
+        assert ("log" + first).equals(new String(lg.next()));
+        for(int i = first + 1; i < lsns.length; i ++) {
+            assert ("log" + i).equals(new String(lg.next()));
+        }
+        assert lg.next() == null;
+        lg.close();
+
+        deleteLog("/tmp/logger_purge_test");
+    }
+
+    @Test
+    public void testOpenAfterCrashDuringRotation() throws Exception {
+        LoggerImpl lg = (LoggerImpl) Logger.create("/tmp/logger_crash_rotate_test");
+        lg.setSegmentSize(64);
+        for(int i = 0; i < 20; i ++) {
+            lg.log(("log" + i).getBytes());
+        }
+        long end = lg.size();
+        lg.close();
+
+        // 模拟旧段改名之后、新段创建之前崩溃
+        File active = new File("/tmp/logger_crash_rotate_test.log");
+        LogSegment seg = LogSegment.open(active);
+        long base = seg.base;
+        seg.close();
+        assert active.renameTo(LogSegment.sealedFile(active, base));
+
+        Logger reopened = Logger.open("/tmp/logger_crash_rotate_test");
+        assert reopened.size() == end;
+        for(int i = 0; i < 20; i ++) {
+            assert ("log" + i).equals(new String(reopened.next()));
+        }
+        assert reopened.log("log20".getBytes()) == end;
+        reopened.close();
+
+        deleteLog("/tmp/logger_crash_rotate_test");
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        LoggerImpl lg = (LoggerImpl) Logger.create("/tmp/logger_scan_test");
+        lg.setSegmentSize(64);
+        long[] lsns = new long[20];
+        for(int i = 0; i < lsns.length; i ++) {
+            lsns[i] = lg.log(("log" + i).getBytes());
+        }
+
+        // 跨段遍历，记录的 LSN 和数据与写入时一致
+        Iterator<LogRecord> it = lg.scan(lsns[0]);
+        for(int i = 0; i < lsns.length; i ++) {
+            assert it.hasNext();
+            LogRecord rec = it.next();
+            assert rec.lsn == lsns[i];
+            assert ("log" + i).equals(new String(rec.toBytes()));
+        }
+        assert !it.hasNext();
+
+        // 从中间开始遍历
+        it = lg.scan(lsns[13]);
+        assert "log13".equals(new String(it.next().toBytes()));
+        lg.close();
+
+        // 打开时截掉的损坏尾部不会被遍历到
+        try (RandomAccessFile raf = new RandomAccessFile("/tmp/logger_scan_test.log", "rw")) {
+            raf.seek(raf.length());
+            raf.write(Bytes.concat(Parser.int2Byte(3), Parser.int2Byte(0), "bad".getBytes()));
+        }
+        Logger reopened = Logger.open("/tmp/logger_scan_test");
+        int count = 0;
+        for(it = reopened.scan(0); it.hasNext(); it.next()) {
+            count ++;
+        }
+        assert count == lsns.length;
+        reopened.close();
+
+        deleteLog("/tmp/logger_scan_test");
+    }
+
+    private static void deleteLog(String path) {
+        File active = new File(path + LoggerImpl.LOG_SUFFIX);
+        for(File f : LogSegment.listSealed(active)) {
+            assert f.delete();
+        }
+        assert active.delete();
+    }
+
+    private static int legacyChecksum(int xCheck, byte[] log) {
+        for (byte b : log) {
+            xCheck = xCheck * 13331 + b;
+        }
+        return xCheck;
+    }
 }
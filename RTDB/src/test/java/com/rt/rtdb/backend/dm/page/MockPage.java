@@ -46,5 +46,11 @@ public class MockPage implements Page {
     public byte[] getData() {
         return data;
     }
+
+    @Override
+    public void startUpdate() {}
+
+    @Override
+    public void endUpdate() {}
     
 }
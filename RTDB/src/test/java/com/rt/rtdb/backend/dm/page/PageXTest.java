@@ -0,0 +1,104 @@
+package com.rt.rtdb.backend.dm.page;
+
+import com.rt.rtdb.backend.dm.pageCache.PageCache;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class PageXTest {
+
+    private static byte[] item(int length, int b) {
+        byte[] raw = new byte[length];
+        Arrays.fill(raw, (byte) b);
+        return raw;
+    }
+
+    private static byte[] read(Page pg, short position, int length) {
+        int offset = PageX.getOffset(pg, position);
+        return Arrays.copyOfRange(pg.getData(), offset, offset + length);
+    }
+
+    @Test
+    public void testSlottedReuse() {
+        Page pg = MockPage.newMockPage(2, PageX.initRaw());
+        assert PageX.isSlotted(pg);
+        assert PageX.getFreeSpace(pg) == PageX.MAX_FREE_SPACE;
+
+        int n = 0;
+        while(PageX.fits(pg, 1000)) {
+            short position = PageX.getInsertPosition(pg);
+            assert PageX.insert(pg, item(1000, n), position) == n;
+            n ++;
+        }
+        assert n == 8;
+
+        // 释放后槽号被复用，空间在整理之后回收
+        PageX.free(pg, (short) 2);
+        PageX.free(pg, (short) 5);
+        assert PageX.getInsertPosition(pg) == 2;
+        assert !PageX.fits(pg, 1500);
+        assert PageX.getFreeSpace(pg) >= 2000;
+        // 被引用的数据项保持原位，其他数据项绕开它整理
+        int pinned = PageX.getOffset(pg, (short) 4);
+        PageX.compact(pg, Collections.singleton(4));
+        assert PageX.getOffset(pg, (short) 4) == pinned;
+        assert PageX.fits(pg, 1500);
+        PageX.insert(pg, item(1500, 100), (short) 2);
+        assert PageX.getInsertPosition(pg) == 5;
+
+        // 整理移动了数据项，但槽号不变
+        for(int i = 0; i < 8; i ++) {
+            if(i == 2 || i == 5) continue;
+            assert Arrays.equals(item(1000, i), read(pg, (short) i, 1000));
+        }
+        assert Arrays.equals(item(1500, 100), read(pg, (short) 2, 1500));
+        assert PageX.getOffset(pg, (short) 5) == 0;
+    }
+
+    @Test
+    public void testRecoverSlotted() {
+        Page pg = MockPage.newMockPage(2, PageX.initRaw());
+        // 重做时槽中已有长度不同的数据，释放后重新分配
+        PageX.recoverInsert(pg, item(3000, 1), (short) 0);
+        PageX.recoverInsert(pg, item(3000, 2), (short) 1);
+        PageX.recoverInsert(pg, item(2000, 3), (short) 0);
+        PageX.recoverInsert(pg, item(3000, 4), (short) 3);
+        assert Arrays.equals(item(2000, 3), read(pg, (short) 0, 2000));
+        assert Arrays.equals(item(3000, 2), read(pg, (short) 1, 3000));
+        assert Arrays.equals(item(3000, 4), read(pg, (short) 3, 3000));
+        assert PageX.getOffset(pg, (short) 2) == 0;
+        assert PageX.getInsertPosition(pg) == 2;
+
+        PageX.recoverFree(pg, (short) 1);
+        assert PageX.getOffset(pg, (short) 1) == 0;
+
+        PageX.setPageLsn(pg, 100);
+        PageX.setPageLsn(pg, 50);
+        assert PageX.getPageLsn(pg) == 100;
+    }
+
+    @Test
+    public void testLegacyPage() {
+        Page pg = MockPage.newMockPage(2, PageX.initLegacyRaw());
+        assert !PageX.isSlotted(pg);
+        assert PageX.getPageLsn(pg) == 0;
+        assert PageX.getFreeSpace(pg) == PageCache.PAGE_SIZE - 2;
+
+        // 旧格式的位置就是偏移，追加写入
+        short p0 = PageX.getInsertPosition(pg);
+        PageX.insert(pg, item(100, 1), p0);
+        short p1 = PageX.getInsertPosition(pg);
+        PageX.insert(pg, item(100, 2), p1);
+        assert p0 == 2 && p1 == 102;
+        assert PageX.getOffset(pg, p1) == p1;
+        assert Arrays.equals(item(100, 2), read(pg, p1, 100));
+
+        // 不回收空间，只标记为无效
+        PageX.free(pg, p0);
+        PageX.compact(pg, Collections.emptySet());
+        assert pg.getData()[p0] == 1;
+        assert Arrays.equals(item(100, 2), read(pg, p1, 100));
+        assert PageX.getFreeSpace(pg) == PageCache.PAGE_SIZE - 202;
+    }
+}
@@ -1,6 +1,7 @@
 package com.rt.rtdb.backend.dm.pageCache;
 
 
+import com.rt.rtdb.backend.common.CacheStats;
 import com.rt.rtdb.backend.dm.page.MockPage;
 import com.rt.rtdb.backend.dm.page.Page;
 
@@ -55,5 +56,19 @@ public class MockPageCache implements PageCache {
 
     @Override
     public void flushPage(Page pg) {}
+
+    @Override
+    public void flushDirtyPages() {}
+
+    @Override
+    public void startFlusher(long intervalMillis) {}
+
+    @Override
+    public void prefetch(int fromPgno, int count) {}
+
+    @Override
+    public CacheStats getStats() {
+        return new CacheStats();
+    }
     
 }
@@ -0,0 +1,97 @@
+package com.rt.rtdb.backend.dm.pageCache;
+
+import com.rt.rtdb.backend.dm.page.Page;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 复用页面帧与每次读入分配新数组的 GC 对比
+ *
+ * 混合负载：在缓存容量 4 倍的页面上随机访问，20% 的访问修改页面，缓存不断驱逐
+ * pooled：启动时分配帧池；unpooled：每次读入分配新数组
+ * 以 test classpath 运行 main 方法，GC profiler 报告 gc.count、gc.time 和分配速率
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class PageCacheGcBenchmark {
+
+    private static final int CACHE_PAGES = 16 * 1024; // 128MB
+    private static final int FILE_PAGES = CACHE_PAGES * 4;
+
+    @Param({"pooled", "unpooled"})
+    public String frames;
+
+    private File dir;
+    private PageCacheImpl pc;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("page_cache_gc_bench").toFile();
+        File f = new File(dir, "db" + PageCacheImpl.DB_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength((long) FILE_PAGES * PageCache.PAGE_SIZE);
+        int capacity = "pooled".equals(frames) ? CACHE_PAGES : 0;
+        pc = new PageCacheImpl(raf, raf.getChannel(), CACHE_PAGES, capacity);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pc.close();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public int mixed() throws Exception {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Page pg = pc.getPage(1 + random.nextInt(FILE_PAGES));
+        try {
+            if(random.nextInt(100) < 20) {
+                pg.getData()[random.nextInt(PageCache.PAGE_SIZE)] ++;
+                pg.setDirty(true);
+            }
+            return pg.getData()[0];
+        } finally {
+            pg.release();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for(int threads : new int[]{1, 4, 16}) {
+            Options opt = new OptionsBuilder()
+                    .include(PageCacheGcBenchmark.class.getSimpleName())
+                    .addProfiler(GCProfiler.class)
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
@@ -42,6 +42,115 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testPageCacheEviction() throws Exception {
+        // 缓存只能容纳 10 页，写入 100 页迫使缓存不断驱逐
+        PageCache pc = PageCache.create("/tmp/pcacher_evict_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 0; i < 100; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        // 被引用的页面不会被驱逐
+        Page pinned = pc.getPage(1);
+        for(int i = 2; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            pg.setDirty(true);
+            pg.getData()[0] = (byte)i;
+            pg.release();
+        }
+        assert pc.getPage(1) == pinned;
+        pc.release(pinned);
+        pinned.release();
+        assert pc.getStats().evictions() > 0;
+
+        // 被驱逐的脏页已经写回
+        for(int i = 2; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i;
+            pg.release();
+        }
+        // 反复访问同一页面应命中缓存
+        long hits = pc.getStats().hits();
+        Page pg = pc.getPage(100);
+        pg.release();
+        assert pc.getStats().hits() == hits + 1;
+        pc.close();
+
+        assert new File("/tmp/pcacher_evict_test.db").delete();
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_prefetch_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 1; i <= 100; i ++) {
+            byte[] init = new byte[PageCache.PAGE_SIZE];
+            init[0] = (byte)i;
+            pc.newPage(init);
+        }
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_prefetch_test", PageCache.PAGE_SIZE * 100);
+        // 超出文件末尾的部分被忽略
+        pc.prefetch(91, 20);
+        awaitPrefetches(pc, 10);
+        long hits = pc.getStats().hits();
+        for(int i = 91; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i;
+            pg.release();
+        }
+        assert pc.getStats().hits() == hits + 10;
+        assert pc.getPageNumber() == 100;
+
+        // 顺序访问触发预读
+        for(int i = 1; i <= 3; i ++) {
+            pc.getPage(i).release();
+        }
+        awaitPrefetches(pc, 10 + 32);
+        hits = pc.getStats().hits();
+        for(int i = 4; i <= 35; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i;
+            pg.release();
+        }
+        // 预读的页面全部命中，读到一半时已经开始预读下一段
+        assert pc.getStats().hits() == hits + 32;
+        pc.close();
+
+        assert new File("/tmp/pcacher_prefetch_test.db").delete();
+    }
+
+    private static void awaitPrefetches(PageCache pc, long n) throws InterruptedException {
+        for(int i = 0; i < 1000 && pc.getStats().prefetches() < n; i ++) {
+            Thread.sleep(5);
+        }
+        assert pc.getStats().prefetches() == n;
+    }
+
+    @Test
+    public void testPageFrameReuse() throws Exception {
+        // 每页写满同一个字节，复用帧时残留的数据会被发现
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_frame_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 1; i <= 100; i ++) {
+            byte[] init = new byte[PageCache.PAGE_SIZE];
+            Arrays.fill(init, (byte)i);
+            pc.newPage(init);
+        }
+        for(int round = 0; round < 3; round ++) {
+            for(int i = 1; i <= 100; i ++) {
+                Page pg = pc.getPage(i);
+                for(byte b : pg.getData()) {
+                    assert b == (byte)i;
+                }
+                pg.release();
+            }
+        }
+        // 驱逐的页面的帧被复用，不再分配新的帧
+        assert pc.allocatedFrames() == 10;
+        pc.close();
+
+        assert new File("/tmp/pcacher_frame_test.db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
@@ -0,0 +1,128 @@
+package com.rt.rtdb.backend.im;
+
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.dm.pageCache.PageCache;
+import com.rt.rtdb.backend.tm.MockTransactionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多线程在同一个索引上插入和查找
+ *
+ * lookup：查找预先插入的随机键，只经过乐观下降和叶子节点的乐观读
+ * rangeScan：取出从随机键开始、键值跨度为 200 的范围，开始时约 100 个键，跨越多个叶子
+ * cursorScan：用游标遍历同样的范围，只缓存一个叶子中的匹配项，不装箱
+ * cursorLimit：用游标取出范围内的前 10 个UID后停止，即 select ... limit 10，只读第一个叶子
+ * insert：插入随机键，叶子加写锁，分裂时才锁上层节点；每次插入的日志由组提交落盘
+ * fanout：default 为默认扇出，page 为一个节点占满一个页面，树更矮但节点内移动的数据更多
+ * 以 test classpath 运行 main 方法，线程数依次为 1、4、16、64
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BPlusTreeBenchmark {
+
+    private static final int KEYS = 20000;
+
+    @Param({"default", "page"})
+    public String fanout;
+
+    private File dir;
+    private DataManager dm;
+    private BPlusTree tree;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("bplustree_bench").toFile();
+        dm = DataManager.create(new File(dir, "db").getPath(), PageCache.PAGE_SIZE * 10000, new MockTransactionManager());
+        int f = "page".equals(fanout) ? BPlusTree.PAGE_FANOUT : BPlusTree.DEFAULT_FANOUT;
+        tree = BPlusTree.load(BPlusTree.create(dm, f), dm);
+        for(int i = 0; i < KEYS; i ++) {
+            long key = (long) i * 2; // 奇数键留给 insert
+            tree.insert(key, key);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        tree.close();
+        dm.close();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public List<Long> lookup() throws Exception {
+        return tree.search(ThreadLocalRandom.current().nextInt(KEYS) * 2L);
+    }
+
+    @Benchmark
+    public List<Long> rangeScan() throws Exception {
+        long key = ThreadLocalRandom.current().nextInt(KEYS) * 2L;
+        return tree.searchRange(key, key + 200);
+    }
+
+    @Benchmark
+    public long cursorScan() throws Exception {
+        long key = ThreadLocalRandom.current().nextInt(KEYS) * 2L;
+        RangeCursor cursor = tree.cursor(key, key + 200);
+        long sum = 0;
+        while(cursor.hasNext()) {
+            sum += cursor.next();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long cursorLimit() throws Exception {
+        long key = ThreadLocalRandom.current().nextInt(KEYS) * 2L;
+        RangeCursor cursor = tree.cursor(key, key + 200);
+        long sum = 0;
+        for(int i = 0; i < 10 && cursor.hasNext(); i ++) {
+            sum += cursor.next();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public void insert() throws Exception {
+        long key = ThreadLocalRandom.current().nextInt(KEYS) * 2L + 1;
+        tree.insert(key, key);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for(int threads : new int[]{1, 4, 16, 64}) {
+            Options opt = new OptionsBuilder()
+                    .include(BPlusTreeBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
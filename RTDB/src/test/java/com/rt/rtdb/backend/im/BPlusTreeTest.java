@@ -4,10 +4,15 @@ import com.rt.rtdb.backend.dm.DataManager;
 import com.rt.rtdb.backend.dm.pageCache.PageCache;
 import com.rt.rtdb.backend.tm.MockTransactionManager;
 import com.rt.rtdb.backend.tm.TransactionManager;
+import com.rt.rtdb.common.Error;
 import org.junit.Test;
 
 import java.io.File;
 import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BPlusTreeTest {
     @Test
@@ -32,4 +37,319 @@ public class BPlusTreeTest {
         assert new File("/tmp/TestTreeSingle.db").delete();
         assert new File("/tmp/TestTreeSingle.log").delete();
     }
+
+    @Test
+    public void testTreeRange() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeRange", PageCache.PAGE_SIZE*40, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 负数键和跨越多个叶子的重复键，结果与有序映射对照
+        Random random = new Random(0);
+        TreeMap<Long, Integer> counts = new TreeMap<>();
+        for(int i = 0; i < 5000; i ++) {
+            long key = random.nextInt(600) - 300;
+            tree.insert(key, i);
+            counts.merge(key, 1, Integer::sum);
+        }
+        for(int i = 0; i < 200; i ++) {
+            long left = random.nextInt(700) - 350;
+            long right = left + random.nextInt(50);
+            int expected = 0;
+            for(int c : counts.subMap(left, true, right, true).values()) {
+                expected += c;
+            }
+            assert tree.searchRange(left, right).size() == expected;
+        }
+
+        assert new File("/tmp/TestTreeRange.db").delete();
+        assert new File("/tmp/TestTreeRange.log").delete();
+    }
+
+    @Test
+    public void testTreeCursor() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeCursor", PageCache.PAGE_SIZE*40, tm);
+
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, BPlusTree.MIN_FANOUT), dm);
+        Random random = new Random(1);
+        for(int i = 0; i < 3000; i ++) {
+            tree.insert(random.nextInt(1000), i);
+        }
+        // 游标逐个叶子取出的结果与 searchRange 一致
+        for(int i = 0; i < 100; i ++) {
+            long left = random.nextInt(1100) - 50;
+            long right = left + random.nextInt(200);
+            List<Long> expected = tree.searchRange(left, right);
+            RangeCursor cursor = tree.cursor(left, right);
+            for(long uid : expected) {
+                assert cursor.hasNext();
+                assert cursor.next() == uid;
+            }
+            assert !cursor.hasNext();
+        }
+        // 范围为空、提前停止时不需要读完整个范围
+        assert !tree.cursor(2000, 3000).hasNext();
+        RangeCursor cursor = tree.cursor(0, Long.MAX_VALUE);
+        assert cursor.hasNext();
+        cursor.next();
+
+        assert new File("/tmp/TestTreeCursor.db").delete();
+        assert new File("/tmp/TestTreeCursor.log").delete();
+    }
+
+    @Test
+    public void testTreeFanout() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeFanout", PageCache.PAGE_SIZE*40, tm);
+
+        BPlusTree small = BPlusTree.load(BPlusTree.create(dm, BPlusTree.MIN_FANOUT), dm);
+        long root = BPlusTree.create(dm, BPlusTree.PAGE_FANOUT);
+        BPlusTree page = BPlusTree.load(root, dm);
+        int lim = 20000;
+        for(int i = 0; i < lim; i ++) {
+            small.insert(i, i);
+            page.insert(i, i);
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert small.search(i).get(0) == i;
+            assert page.search(i).get(0) == i;
+        }
+
+        TreeStats s = small.stats(), p = page.stats();
+        assert s.entries() == lim && p.entries() == lim;
+        assert p.height() == 2 && s.height() > p.height();
+        assert p.leafFill() >= 0.5 && p.leafFill() <= 1;
+        assert BPlusTree.load(root, dm).getFanout() == BPlusTree.PAGE_FANOUT; // 扇出由节点大小推出
+
+        for(int fanout : new int[]{0, 3, BPlusTree.PAGE_FANOUT + 2}) {
+            try {
+                BPlusTree.create(dm, fanout);
+                assert false;
+            } catch(Exception e) {
+                assert e == Error.InvalidFanoutException;
+            }
+        }
+
+        assert new File("/tmp/TestTreeFanout.db").delete();
+        assert new File("/tmp/TestTreeFanout.log").delete();
+    }
+
+    @Test
+    public void testTreeDelete() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeDelete", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 每个键对应两个uid，删除其中一个后另一个仍可查到
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+            tree.insert(i, i + lim);
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert tree.delete(i, i % 2 == 0 ? i : i + lim);
+        }
+        assert !tree.delete(0, 0);
+        assert !tree.delete(lim, lim);
+
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            assert uids.size() == 1;
+            assert uids.get(0) == (i % 2 == 0 ? i + lim : i);
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim;
+
+        assert new File("/tmp/TestTreeDelete.db").delete();
+        assert new File("/tmp/TestTreeDelete.log").delete();
+    }
+
+    @Test
+    public void testTreeMerge() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeMerge", PageCache.PAGE_SIZE*40, tm);
+
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 16), dm);
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+        TreeStats full = tree.stats();
+
+        // 删除九成的键，过空的节点被合并，合并掉的节点都交给调用方释放
+        for(int i = 0; i < lim; i ++) {
+            if(i % 10 != 0) {
+                assert tree.delete(i, i);
+            }
+        }
+        TreeStats sparse = tree.stats();
+        assert sparse.entries() == lim / 10;
+        assert sparse.nodes() < full.nodes() / 2;
+        assert sparse.height() == full.height();
+        List<Long> retired = tree.drainRetired();
+        assert retired.size() == full.nodes() - sparse.nodes();
+        assert tree.drainRetired().isEmpty();
+
+        // 整理后叶子接近 BulkLoader 的填充率
+        int merged = tree.compact();
+        TreeStats compact = tree.stats();
+        assert merged > 0 && merged == tree.drainRetired().size();
+        assert compact.nodes() == sparse.nodes() - merged;
+        assert compact.leafFill() > 0.6 && compact.leafFill() > sparse.leafFill();
+        assert tree.compact() == 0;
+
+        List<Long> all = tree.searchRange(0, Long.MAX_VALUE);
+        assert all.size() == lim / 10;
+        for(int i = 0; i < all.size(); i ++) {
+            assert all.get(i) == i * 10L;
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert tree.search(i).size() == (i % 10 == 0 ? 1 : 0);
+        }
+
+        // 释放合并掉的节点后，空间被之后插入的节点复用，树仍然正确
+        for(long uid : retired) {
+            dm.free(uid);
+        }
+        for(int i = 0; i < lim; i ++) {
+            if(i % 10 != 0) {
+                tree.insert(i, i);
+            }
+        }
+        all = tree.searchRange(0, Long.MAX_VALUE);
+        assert all.size() == lim;
+        for(int i = 0; i < lim; i ++) {
+            assert all.get(i) == i;
+        }
+
+        assert new File("/tmp/TestTreeMerge.db").delete();
+        assert new File("/tmp/TestTreeMerge.log").delete();
+    }
+
+    @Test
+    public void testTreeMergeConcurrent() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeMergeConcurrent", PageCache.PAGE_SIZE*100, tm);
+
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm, 8), dm);
+        int n = 4000;
+        for(int i = 0; i < n; i ++) {
+            tree.insert(i, i);
+        }
+
+        // 删除偶数键并不断整理的同时，其他线程插入新键、查找和扫描奇数键；奇数键任何时刻都恰好出现一次
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(3);
+        new Thread(() -> {
+            try {
+                for(int i = 0; i < n; i += 2) {
+                    if(!tree.delete(i, i)) {
+                        errors.incrementAndGet();
+                    }
+                    if(i % 500 == 0) {
+                        tree.compact();
+                    }
+                }
+            } catch (Exception e) {
+                errors.incrementAndGet();
+            }
+            latch.countDown();
+        }).start();
+        new Thread(() -> {
+            try {
+                for(int i = n; i < n * 2; i ++) {
+                    tree.insert(i, i);
+                }
+            } catch (Exception e) {
+                errors.incrementAndGet();
+            }
+            latch.countDown();
+        }).start();
+        new Thread(() -> {
+            try {
+                Random random = new Random(2);
+                for(int i = 0; i < 2000; i ++) {
+                    long key = random.nextInt(n / 2) * 2L + 1;
+                    List<Long> uids = tree.search(key);
+                    if(uids.size() != 1 || uids.get(0) != key) {
+                        errors.incrementAndGet();
+                    }
+                    if(i % 100 == 0) {
+                        long odd = 0;
+                        for(long uid : tree.searchRange(0, n - 1)) {
+                            if(uid % 2 == 1) {
+                                odd ++;
+                            }
+                        }
+                        if(odd != n / 2) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                errors.incrementAndGet();
+            }
+            latch.countDown();
+        }).start();
+        latch.await();
+        assert errors.get() == 0;
+
+        tree.compact();
+        List<Long> all = tree.searchRange(0, Long.MAX_VALUE);
+        assert all.size() == n / 2 + n;
+        for(int i = 0; i < all.size(); i ++) {
+            assert all.get(i) == (i < n / 2 ? i * 2L + 1 : i + n / 2);
+        }
+        assert tree.stats().entries() == all.size();
+
+        assert new File("/tmp/TestTreeMergeConcurrent.db").delete();
+        assert new File("/tmp/TestTreeMergeConcurrent.log").delete();
+    }
+
+    @Test
+    public void testTreeConcurrent() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeConcurrent", PageCache.PAGE_SIZE*100, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 各线程交错插入键，并发分裂频繁；刚插入的键应立即可以查到
+        int workers = 8, n = 1000;
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(workers);
+        for(int w = 0; w < workers; w ++) {
+            final int t = w;
+            new Thread(() -> {
+                try {
+                    for(int i = 0; i < n; i ++) {
+                        long key = (long) i * workers + t;
+                        tree.insert(key, key);
+                        List<Long> uids = tree.search(key);
+                        if(uids.size() != 1 || uids.get(0) != key) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        assert errors.get() == 0;
+
+        List<Long> all = tree.searchRange(0, Long.MAX_VALUE);
+        assert all.size() == workers * n;
+        for(int i = 0; i < all.size(); i ++) {
+            assert all.get(i) == i;
+        }
+
+        assert new File("/tmp/TestTreeConcurrent.db").delete();
+        assert new File("/tmp/TestTreeConcurrent.log").delete();
+    }
 }
@@ -0,0 +1,104 @@
+package com.rt.rtdb.backend.im;
+
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.dm.pageCache.PageCache;
+import com.rt.rtdb.backend.tm.MockTransactionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在已有数据上建索引：批量构建与逐个插入的对比
+ *
+ * 每次迭代在新的数据文件中为 KEYS 个随机键建一棵树
+ * method：bulk 为 BulkLoader 自底向上构建，insert 为逐个调用 BPlusTree.insert
+ * 以 test classpath 运行 main 方法
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BulkLoaderBenchmark {
+
+    private static final int KEYS = 100000;
+
+    @Param({"bulk", "insert"})
+    public String method;
+
+    @Param({"default", "page"})
+    public String fanout;
+
+    private long[] keys;
+    private File dir;
+    private DataManager dm;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        Random random = new Random(0);
+        keys = new long[KEYS];
+        for(int i = 0; i < KEYS; i ++) {
+            keys[i] = random.nextLong();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("bulkload_bench").toFile();
+        dm = DataManager.create(new File(dir, "db").getPath(), PageCache.PAGE_SIZE * 10000, new MockTransactionManager());
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        dm.close();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public long build() throws Exception {
+        int f = "page".equals(fanout) ? BPlusTree.PAGE_FANOUT : BPlusTree.DEFAULT_FANOUT;
+        if("bulk".equals(method)) {
+            BulkLoader loader = new BulkLoader(dm, f);
+            for(int i = 0; i < KEYS; i ++) {
+                loader.add(keys[i], i);
+            }
+            return loader.build();
+        }
+        long boot = BPlusTree.create(dm, f);
+        BPlusTree tree = BPlusTree.load(boot, dm);
+        for(int i = 0; i < KEYS; i ++) {
+            tree.insert(keys[i], i);
+        }
+        tree.close();
+        return boot;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(BulkLoaderBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,69 @@
+package com.rt.rtdb.backend.im;
+
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.dm.pageCache.PageCache;
+import com.rt.rtdb.backend.tm.MockTransactionManager;
+import com.rt.rtdb.backend.tm.TransactionManager;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class BulkLoaderTest {
+    @Test
+    public void testBulkLoad() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestBulkLoad", PageCache.PAGE_SIZE*40, tm);
+
+        // 缓冲区只有 4096 项，需要写出多个有序段再归并
+        BulkLoader loader = new BulkLoader(dm, 16, 4096, BulkLoader.DEFAULT_FILL_FACTOR);
+        Random random = new Random(0);
+        TreeMap<Long, Integer> counts = new TreeMap<>();
+        int lim = 30000;
+        for(int i = 0; i < lim; i ++) {
+            long key = random.nextInt(20000) - 10000;
+            loader.add(key, i);
+            counts.merge(key, 1, Integer::sum);
+        }
+        BPlusTree tree = BPlusTree.load(loader.build(), dm);
+        assert tree.getFanout() == 16;
+
+        TreeStats stats = tree.stats();
+        assert stats.entries() == lim;
+        assert stats.leafFill() > 0.8; // 每个叶子装入 14 个键
+
+        // 之后照常插入，结果与有序映射对照
+        for(int i = lim; i < lim + 5000; i ++) {
+            long key = random.nextInt(20000) - 10000;
+            tree.insert(key, i);
+            counts.merge(key, 1, Integer::sum);
+        }
+        for(int i = 0; i < 300; i ++) {
+            long left = random.nextInt(21000) - 10500;
+            long right = left + random.nextInt(100);
+            int expected = 0;
+            for(int c : counts.subMap(left, true, right, true).values()) {
+                expected += c;
+            }
+            assert tree.searchRange(left, right).size() == expected;
+        }
+
+        assert new File("/tmp/TestBulkLoad.db").delete();
+        assert new File("/tmp/TestBulkLoad.log").delete();
+    }
+
+    @Test
+    public void testBulkLoadEmpty() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestBulkLoadEmpty", PageCache.PAGE_SIZE*10, tm);
+
+        BPlusTree tree = BPlusTree.load(new BulkLoader(dm, BPlusTree.DEFAULT_FANOUT).build(), dm);
+        assert tree.search(1).isEmpty();
+        tree.insert(1, 1);
+        assert tree.search(1).get(0) == 1;
+
+        assert new File("/tmp/TestBulkLoadEmpty.db").delete();
+        assert new File("/tmp/TestBulkLoadEmpty.log").delete();
+    }
+}
@@ -0,0 +1,154 @@
+package com.rt.rtdb.backend.im;
+
+import com.rt.rtdb.backend.common.SubArray;
+import com.rt.rtdb.backend.dm.dataItem.MockDataItem;
+import com.rt.rtdb.backend.utils.Parser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 节点内查找的开销：二分查找、直接读取页面数组与原来的线性扫描、逐个拷贝解析的对比
+ *
+ * searchNext：在满的内部节点中选择子节点，即一次点查在每一层的开销
+ * pointLookup：在满的叶子节点中查找一个键
+ * rangeScan：在叶子节点中取出连续 16 个键
+ * pointLookup 与 rangeScan 的 binary 实现写入复用的 long[]，legacy 实现每次新建 List<Long>
+ * impl：binary 为 Node 的实现，legacy 为原来的实现，每个键用 Arrays.copyOfRange 拷贝后解析
+ * 以 test classpath 运行 main 方法
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeBenchmark {
+
+    private static final int KEYS = Node.DEFAULT_BALANCE_NUMBER * 2 - 1; // 不需要分裂的最大键数
+    private static final int SCAN = 16;
+
+    @Param({"binary", "legacy"})
+    public String impl;
+
+    private Node internal;
+    private Node leaf;
+    private final long[] uids = new long[Node.DEFAULT_BALANCE_NUMBER * 2]; // leafScan 写入的缓冲区
+
+    @Setup(Level.Trial)
+    public void setup() {
+        internal = newNode(false);
+        leaf = newNode(true);
+    }
+
+    /**
+     * 键为 0, 2, 4, ...，子节点的 UID 与键相同；内部节点的最后一个键为 Long.MAX_VALUE
+     */
+    private static Node newNode(boolean isLeaf) {
+        int size = Node.nodeSize(Node.DEFAULT_BALANCE_NUMBER);
+        SubArray raw = new SubArray(new byte[size], 0, size);
+        Node.setRawIsLeaf(raw, isLeaf);
+        Node.setRawNoKeys(raw, KEYS);
+        Node.setRawSibling(raw, 0);
+        for(int i = 0; i < KEYS; i ++) {
+            Node.setRawKthSon(raw, i * 2L, i);
+            Node.setRawKthKey(raw, isLeaf || i < KEYS - 1 ? i * 2L : Long.MAX_VALUE, i);
+        }
+        Node n = new Node();
+        n.dataItem = MockDataItem.newMockDataItem(1, raw);
+        n.raw = raw;
+        n.balance = Node.DEFAULT_BALANCE_NUMBER;
+        return n;
+    }
+
+    private static long randomKey() {
+        return ThreadLocalRandom.current().nextInt(KEYS * 2);
+    }
+
+    @Benchmark
+    public long searchNext() {
+        long key = randomKey();
+        return "legacy".equals(impl) ? legacySearchNext(internal.raw, key) : internal.searchNext(key).uid;
+    }
+
+    @Benchmark
+    public int pointLookup() {
+        long key = randomKey();
+        return "legacy".equals(impl) ? legacySearchRange(leaf.raw, key, key).size() : leaf.leafScan(key, key, uids).count;
+    }
+
+    @Benchmark
+    public int rangeScan() {
+        long key = randomKey();
+        long right = key + SCAN * 2;
+        return "legacy".equals(impl) ? legacySearchRange(leaf.raw, key, right).size() : leaf.leafScan(key, right, uids).count;
+    }
+
+    // 原来的实现：线性扫描，每读一个字段都拷贝出 8 字节再解析
+
+    private static long legacyLong(SubArray raw, int offset) {
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+    }
+
+    private static int legacyNoKeys(SubArray raw) {
+        int offset = raw.start + Node.NO_KEYS_OFFSET;
+        return Parser.parseShort(Arrays.copyOfRange(raw.raw, offset, offset + 2));
+    }
+
+    private static long legacyKthKey(SubArray raw, int kth) {
+        return legacyLong(raw, raw.start + Node.NODE_HEADER_SIZE + kth * 16 + 8);
+    }
+
+    private static long legacyKthSon(SubArray raw, int kth) {
+        return legacyLong(raw, raw.start + Node.NODE_HEADER_SIZE + kth * 16);
+    }
+
+    private static long legacySearchNext(SubArray raw, long key) {
+        int noKeys = legacyNoKeys(raw);
+        for(int i = 0; i < noKeys; i ++) {
+            if(key < legacyKthKey(raw, i)) {
+                return legacyKthSon(raw, i);
+            }
+        }
+        return 0;
+    }
+
+    private static List<Long> legacySearchRange(SubArray raw, long leftKey, long rightKey) {
+        int noKeys = legacyNoKeys(raw);
+        int kth = 0;
+        while(kth < noKeys && legacyKthKey(raw, kth) < leftKey) {
+            kth ++;
+        }
+        List<Long> uids = new ArrayList<>();
+        while(kth < noKeys && legacyKthKey(raw, kth) <= rightKey) {
+            uids.add(legacyKthSon(raw, kth));
+            kth ++;
+        }
+        return uids;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(NodeBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -84,6 +84,66 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testCreateFanout() throws Exception {
+        Create create = (Create)Parser.Parse("create table t id int64, (index id) fanout 128".getBytes());
+        assert create.fanout == 128;
+        create = (Create)Parser.Parse("create table t id int64, (index id) fanout page".getBytes());
+        assert create.fanout == Create.PAGE_FANOUT;
+        create = (Create)Parser.Parse("create table t id int64, (index id)".getBytes());
+        assert create.fanout == 0;
+        try {
+            Parser.Parse("create table t id int64, (index id) fanout big".getBytes());
+            assert false;
+        } catch(Exception e) {
+        }
+    }
+
+    @Test
+    public void testCreateIndex() throws Exception {
+        CreateIndex ci = (CreateIndex)Parser.Parse("create index on student (name uid) fanout page".getBytes());
+        assert "student".equals(ci.tableName);
+        assert Arrays.equals(ci.index, new String[]{"name", "uid"});
+        assert ci.fanout == Create.PAGE_FANOUT;
+        assert ((CreateIndex)Parser.Parse("create index on student (name)".getBytes())).fanout == 0;
+        try {
+            Parser.Parse("create index on student ()".getBytes());
+            assert false;
+        } catch(Exception e) {
+        }
+    }
+
+    @Test
+    public void testSelectLimit() throws Exception {
+        Select select = (Select)Parser.Parse("select * from student where id > 5 and id < 100 limit 10".getBytes());
+        assert select.limit == 10;
+        assert "and".equals(select.where.logicOp);
+        select = (Select)Parser.Parse("select * from student where id > 5 limit 0".getBytes());
+        assert select.limit == 0;
+        assert "".equals(select.where.logicOp);
+        select = (Select)Parser.Parse("select * from student limit 3".getBytes());
+        assert select.limit == 3;
+        assert select.where == null;
+        assert ((Select)Parser.Parse("select * from student".getBytes())).limit == -1;
+        try {
+            Parser.Parse("select * from student limit many".getBytes());
+            assert false;
+        } catch(Exception e) {
+        }
+    }
+
+    @Test
+    public void testShowIndex() throws Exception {
+        assert ((Show)Parser.Parse("show index".getBytes())).indexes;
+    }
+
+    @Test
+    public void testShowLocks() throws Exception {
+        Show show = (Show)Parser.Parse("show locks".getBytes());
+        assert show.locks;
+        assert !((Show)Parser.Parse("show".getBytes())).locks;
+    }
+
     @Test
     public void testUpdate() throws Exception {
         String stat = "update student set name = \"GZY\" where id = 5";
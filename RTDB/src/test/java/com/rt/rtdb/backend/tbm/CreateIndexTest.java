@@ -0,0 +1,71 @@
+package com.rt.rtdb.backend.tbm;
+
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.server.Executor;
+import com.rt.rtdb.backend.tm.TransactionManager;
+import com.rt.rtdb.backend.vm.VersionManager;
+import com.rt.rtdb.common.Error;
+import org.junit.Test;
+
+import java.io.File;
+
+public class CreateIndexTest {
+    String path = "/tmp/TestCreateIndex";
+    long mem = (1 << 20) * 64;
+
+    @Test
+    public void testCreateIndex() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table test_table id int32, v int32 (index id)".getBytes());
+        for(int i = 0; i < 1000; i ++) {
+            exe.execute(("insert into test_table values " + i + " " + i % 10).getBytes());
+        }
+        try {
+            exe.execute("select * from test_table where v = 3".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.FieldNotIndexedException;
+        }
+
+        // 被删除的版本也要进入新的索引，不可见的版本在读取时被过滤
+        exe.execute("delete from test_table where id < 10".getBytes());
+        exe.execute("create index on test_table (v) fanout page".getBytes());
+        assert count(exe, "select * from test_table where v = 3") == 99;
+        try {
+            exe.execute("create index on test_table (v)".getBytes());
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.FieldAlreadyIndexedException;
+        }
+
+        exe.execute("insert into test_table values 1000 3".getBytes());
+        exe.execute("update test_table set v = 3 where id = 20".getBytes());
+        assert count(exe, "select * from test_table where v = 3") == 101;
+        assert count(exe, "select * from test_table where v = 0") == 98;
+
+        // 字段记录中的索引UID已更新，重新打开后仍可用
+        dm.close();
+        tm.close();
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        exe = new Executor(TableManager.open(path, vm, dm));
+        assert count(exe, "select * from test_table where v = 3") == 101;
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    private static int count(Executor exe, String sql) throws Exception {
+        String rows = new String(exe.execute(sql.getBytes()));
+        return rows.isEmpty() ? 0 : rows.split("\n").length;
+    }
+}
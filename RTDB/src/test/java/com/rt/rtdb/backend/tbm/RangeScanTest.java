@@ -0,0 +1,53 @@
+package com.rt.rtdb.backend.tbm;
+
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.server.Executor;
+import com.rt.rtdb.backend.tm.TransactionManager;
+import com.rt.rtdb.backend.vm.VersionManager;
+import org.junit.Test;
+
+import java.io.File;
+
+public class RangeScanTest {
+    String path = "/tmp/TestRangeScan";
+    long mem = (1 << 20) * 64;
+
+    @Test
+    public void testRangeScan() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table test_table id int32, v int32 (index id) fanout 4".getBytes());
+        for(int i = 0; i < 500; i ++) {
+            exe.execute(("insert into test_table values " + i + " 0").getBytes());
+        }
+
+        // limit 按键的顺序取前几行，跳过不可见的版本
+        assert count(exe, "select * from test_table limit 10") == 10;
+        assert count(exe, "select * from test_table where id > 100 limit 0") == 0;
+        assert count(exe, "select * from test_table where id > 495 limit 10") == 4;
+        exe.execute("delete from test_table where id < 20".getBytes());
+        String rows = new String(exe.execute("select * from test_table limit 3".getBytes()));
+        assert rows.startsWith("[20, 0]\n[21, 0]\n[22, 0]");
+        assert count(exe, "select * from test_table where id < 30 or id > 490 limit 15") == 15;
+
+        // 更新写入的新版本落在正在扫描的范围内，不会被再次更新
+        assert "update 30".equals(new String(exe.execute("update test_table set id = 45 where id < 50".getBytes())));
+        assert count(exe, "select * from test_table where id = 45") == 30;
+        assert count(exe, "select * from test_table") == 480;
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    private static int count(Executor exe, String sql) throws Exception {
+        String rows = new String(exe.execute(sql.getBytes()));
+        return rows.isEmpty() ? 0 : rows.split("\n").length;
+    }
+}
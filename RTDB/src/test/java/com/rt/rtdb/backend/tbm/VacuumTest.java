@@ -0,0 +1,110 @@
+package com.rt.rtdb.backend.tbm;
+
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.im.RangeCursor;
+import com.rt.rtdb.backend.server.Executor;
+import com.rt.rtdb.backend.tm.TransactionManager;
+import com.rt.rtdb.backend.vm.VersionManager;
+import org.junit.Test;
+
+import java.io.File;
+
+public class VacuumTest {
+    String path = "/tmp/TestVacuum";
+    long mem = (1 << 20) * 64;
+
+    @Test
+    public void testVacuum() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManagerImpl tbm = (TableManagerImpl) TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table test_table id int32, v int32 (index id)".getBytes());
+        for(int i = 0; i < 100; i ++) {
+            exe.execute(("insert into test_table values " + i + " 0").getBytes());
+        }
+
+        // 更新之前开始的可重复读事务仍能看到旧版本，旧版本不能被回收
+        long reader = vm.begin(1);
+        exe.execute("update test_table set v = 1 where id < 1000".getBytes());
+        Table table = tbm.tables().get(0);
+        assert versions(table) == 200;
+        tbm.vacuum.runOnce();
+        assert tbm.getVacuumStats().removed() == 0;
+        assert versions(table) == 200;
+
+        vm.commit(reader);
+        tbm.vacuum.runOnce();
+        VacuumStats stats = tbm.getVacuumStats();
+        assert stats.removed() == 100;
+        assert stats.freed() == 100;
+        assert stats.pending() == 0;
+        assert versions(table) == 100;
+        String rows = new String(exe.execute("select * from test_table where id < 1000".getBytes()));
+        assert rows.split("\n").length == 100;
+        assert !rows.contains(", 0]");
+
+        // 回收的空间被之后插入的数据复用，文件不再增长
+        long length = new File(path + ".db").length();
+        for(int i = 100; i < 180; i ++) {
+            exe.execute(("insert into test_table values " + i + " 0").getBytes());
+        }
+        assert new File(path + ".db").length() == length;
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testVacuumMergesIndex() throws Exception {
+        String path = "/tmp/TestVacuumMerge";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManagerImpl tbm = (TableManagerImpl) TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute("create table test_table id int32, v int32 (index id v) fanout 8".getBytes());
+        for(int i = 0; i < 1000; i ++) {
+            exe.execute(("insert into test_table values " + i + " " + i).getBytes());
+        }
+        Table table = tbm.tables().get(0);
+        long before = table.fields.get(0).indexStats().nodes();
+
+        // 删除九成的行，回收后两个索引的节点数都随存活的行减少，合并掉的节点被释放
+        exe.execute("delete from test_table where id > 99".getBytes());
+        tbm.vacuum.runOnce();
+        VacuumStats stats = tbm.getVacuumStats();
+        assert stats.removed() == 900;
+        assert stats.merged() > 0;
+        assert stats.freedNodes() > 0;
+        for(Field field : table.fields) {
+            assert field.indexStats().entries() == 100;
+            assert field.indexStats().nodes() < before / 4;
+        }
+        assert versions(table) == 100;
+        String rows = new String(exe.execute("select * from test_table where v > 49".getBytes()));
+        assert rows.split("\n").length == 50;
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+    }
+
+    private static int versions(Table table) throws Exception {
+        RangeCursor cursor = table.versions();
+        int n = 0;
+        while(cursor.hasNext()) {
+            cursor.next();
+            n ++;
+        }
+        return n;
+    }
+}
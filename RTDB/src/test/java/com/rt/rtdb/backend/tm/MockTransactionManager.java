@@ -28,6 +28,9 @@ public class MockTransactionManager implements TransactionManager {
         return false;
     }
 
+    @Override
+    public void force() {}
+
     @Override
     public void close() {}
     
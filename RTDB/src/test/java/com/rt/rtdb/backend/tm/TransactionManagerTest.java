@@ -4,6 +4,7 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.Map;
 import java.util.Random;
@@ -92,4 +93,78 @@ public class TransactionManagerTest {
         }
         cdl.countDown();
     }
+
+    @Test
+    public void testReopen() throws IOException {
+        String path = "/tmp/tranmger_reopen_test";
+        TransactionManager tm = TransactionManager.create(path);
+        byte[] status = new byte[1000];
+        for(int i = 0; i < status.length; i ++) {
+            long xid = tm.begin();
+            status[i] = (byte) (xid % 3);
+            if(status[i] == 1) {
+                tm.commit(xid);
+            } else if(status[i] == 2) {
+                tm.abort(xid);
+            }
+        }
+        tm.close();
+
+        // 重新打开后从文件载入状态
+        tm = TransactionManager.open(path);
+        for(int i = 0; i < status.length; i ++) {
+            long xid = i + 1;
+            assert tm.isActive(xid) == (status[i] == 0);
+            assert tm.isCommitted(xid) == (status[i] == 1);
+            assert tm.isAborted(xid) == (status[i] == 2);
+        }
+        // 从预留的末尾继续分配，预留了但未用到的事务保持活跃
+        long xid = tm.begin();
+        assert xid > status.length && tm.isActive(xid);
+        assert tm.isActive(status.length + 1);
+        tm.commit(xid);
+        assert tm.isCommitted(xid);
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testConcurrentBegin() throws Exception {
+        String path = "/tmp/tranmger_begin_test";
+        TransactionManager tm = TransactionManager.create(path);
+        Map<Long, Boolean> xids = new ConcurrentHashMap<>();
+        int workers = 8, n = 3000;
+        CountDownLatch latch = new CountDownLatch(workers);
+        for(int i = 0; i < workers; i ++) {
+            new Thread(() -> {
+                for(int j = 0; j < n; j ++) {
+                    long xid = tm.begin();
+                    assert xids.put(xid, true) == null;
+                    assert tm.isActive(xid);
+                    tm.commit(xid);
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        // 不重复、不跳号
+        assert xids.size() == workers * n;
+        for(long xid = 1; xid <= workers * n; xid ++) {
+            assert xids.containsKey(xid);
+        }
+        tm.close();
+
+        // 文件扩展了、文件头还未更新时崩溃，重新打开时截掉多出的部分
+        RandomAccessFile raf = new RandomAccessFile(path + ".xid", "rw");
+        long length = raf.length();
+        raf.setLength(length + 100);
+        raf.close();
+        TransactionManager reopened = TransactionManager.open(path);
+        assert new File(path + ".xid").length() == length;
+        for(long xid = 1; xid <= workers * n; xid ++) {
+            assert reopened.isCommitted(xid);
+        }
+        reopened.close();
+        assert new File(path + ".xid").delete();
+    }
 }
@@ -0,0 +1,114 @@
+package com.rt.rtdb.backend.vm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 行锁表的压力测试
+ *
+ * 每个事务随机锁住 ROWS_PER_TX 行后释放：hot 为 16 时冲突和等待频繁，4096 时大多不冲突
+ * ordered：按 UID 升序加锁，不会死锁；random：随机顺序，死锁的事务放弃后重来
+ * detect：immediate 在等待时检测，background 由后台线程检测等待超过 50ms 的事务
+ * 以 test classpath 运行 main 方法，线程数依次为 1、4、16、64
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LockTableBenchmark {
+
+    private static final int ROWS_PER_TX = 4;
+
+    @Param({"16", "4096"})
+    public int hot;
+
+    @Param({"immediate", "background"})
+    public String detect;
+
+    private LockTable lt;
+    private final AtomicLong xids = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        lt = "background".equals(detect) ? new LockTable(LockTable.DEFAULT_STRIPES, 50) : new LockTable();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        lt.close();
+    }
+
+    @Benchmark
+    public boolean ordered() throws Exception {
+        long xid = xids.incrementAndGet();
+        long[] uids = randomUids();
+        Arrays.sort(uids);
+        try {
+            return lockAll(xid, uids);
+        } finally {
+            lt.remove(xid);
+        }
+    }
+
+    @Benchmark
+    public boolean random() throws Exception {
+        long xid = xids.incrementAndGet();
+        try {
+            return lockAll(xid, randomUids());
+        } catch (Exception e) {
+            return false; // 死锁
+        } finally {
+            lt.remove(xid);
+        }
+    }
+
+    private boolean lockAll(long xid, long[] uids) throws Exception {
+        for(long uid : uids) {
+            LockTable.Waiter w = lt.add(xid, uid);
+            if(w != null) {
+                w.await();
+            }
+        }
+        return true;
+    }
+
+    private long[] randomUids() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long[] uids = new long[ROWS_PER_TX];
+        for(int i = 0; i < uids.length; i ++) {
+            uids[i] = 1 + random.nextInt(hot);
+        }
+        return uids;
+    }
+
+    public static void main(String[] args) throws Exception {
+        for(int threads : new int[]{1, 4, 16, 64}) {
+            Options opt = new OptionsBuilder()
+                    .include(LockTableBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.rt.rtdb.backend.vm;
 
 import com.rt.rtdb.backend.utils.Panic;
+import com.rt.rtdb.common.Error;
 import org.junit.Test;
 
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertThrows;
 
@@ -38,14 +40,8 @@ public class LockTableTest {
         LockTable lt = new LockTable();
         for(long i = 1; i <= 100; i ++) {
             try {
-                Lock o = lt.add(i, i);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                LockTable.Waiter o = lt.add(i, i);
+                assert o == null;
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -53,14 +49,9 @@ public class LockTableTest {
 
         for(long i = 1; i <= 99; i ++) {
             try {
-                Lock o = lt.add(i, i+1);
-                if(o != null) {
-                    Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
-                    };
-                    new Thread(r).run();
-                }
+                // 持有者都未结束，只登记等待
+                LockTable.Waiter o = lt.add(i, i+1);
+                assert o != null;
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -75,4 +66,85 @@ public class LockTableTest {
             Panic.panic(e);
         }
     }
+
+    @Test
+    public void testWaitAndGrant() throws Exception {
+        LockTable lt = new LockTable();
+        assert lt.add(1, 10) == null;
+        assert lt.add(1, 10) == null; // 已持有
+        LockTable.Waiter w2 = lt.add(2, 10);
+        LockTable.Waiter w3 = lt.add(3, 10);
+        assert w2 != null && w3 != null;
+
+        CountDownLatch granted = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                w2.await();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+            granted.countDown();
+        }).start();
+        assert !w2.isGranted();
+        lt.remove(1);
+        granted.await();
+        // 按到达顺序授予
+        assert w2.isGranted() && !w3.isGranted();
+        lt.remove(2);
+        w3.await();
+        assert w3.isGranted();
+        lt.remove(3);
+        assert lt.add(4, 10) == null;
+    }
+
+    @Test
+    public void testWaitTimeout() throws Exception {
+        LockTable lt = new LockTable();
+        assert lt.add(1, 10) == null;
+        LockTable.Waiter w2 = lt.add(2, 10);
+        LockTable.Waiter w3 = lt.add(3, 10);
+        try {
+            lt.await(w2, 20);
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.LockWaitTimeoutException;
+        }
+        // 超时的等待已撤回，锁授予之后的等待者
+        lt.remove(1);
+        lt.await(w3, 20);
+        assert !w2.isGranted() && w3.isGranted();
+    }
+
+    @Test
+    public void testBackgroundDetection() throws Exception {
+        LockTable lt = new LockTable(LockTable.DEFAULT_STRIPES, 20);
+        assert lt.add(1, 1) == null;
+        assert lt.add(2, 2) == null;
+        LockTable.Waiter w1 = lt.add(1, 2);
+        // 后台模式下加锁时不检测，形成环后由后台线程让其中一个等待者失败
+        LockTable.Waiter w2 = lt.add(2, 1);
+        assert w1 != null && w2 != null;
+
+        AtomicReference<Exception> err = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                w1.await();
+            } catch (Exception e) {
+                err.set(e);
+                lt.remove(1); // 牺牲者中止，释放它持有的锁
+            }
+            done.countDown();
+        }).start();
+        try {
+            w2.await();
+        } catch (Exception e) {
+            err.set(e);
+            lt.remove(2);
+        }
+        done.await();
+        assert err.get() != null;
+        assert w1.isGranted() != w2.isGranted();
+        lt.close();
+    }
 }
@@ -0,0 +1,117 @@
+package com.rt.rtdb.backend.vm;
+
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.dm.pageCache.PageCache;
+import com.rt.rtdb.backend.tm.TransactionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多线程短事务的吞吐量
+ *
+ * shortTransaction：开始事务、读一条记录、提交，提交日志由组提交落盘
+ * read：每个线程在一个长事务中反复读取，只测查找事务和可见性判断
+ * 以 test classpath 运行 main 方法，线程数依次为 1、4、16、64
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+
+    private static final int ROWS = 1024;
+
+    @Param({"0", "1"})
+    public int level;
+
+    private File dir;
+    private TransactionManager tm;
+    private DataManager dm;
+    private VersionManager vm;
+    private long[] uids;
+
+    @State(Scope.Thread)
+    public static class LongTransaction {
+        long xid;
+
+        @Setup(Level.Trial)
+        public void setup(TransactionBenchmark b) {
+            xid = b.vm.begin(b.level);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown(TransactionBenchmark b) throws Exception {
+            b.vm.commit(xid);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("transaction_bench").toFile();
+        String path = new File(dir, "db").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, PageCache.PAGE_SIZE * 1000, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        long xid = vm.begin(0);
+        uids = new long[ROWS];
+        for(int i = 0; i < ROWS; i ++) {
+            uids[i] = vm.insert(xid, new byte[32]);
+        }
+        vm.commit(xid);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dm.close();
+        tm.close();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public byte[] shortTransaction() throws Exception {
+        long xid = vm.begin(level);
+        byte[] data = vm.read(xid, uids[ThreadLocalRandom.current().nextInt(ROWS)]);
+        vm.commit(xid);
+        return data;
+    }
+
+    @Benchmark
+    public byte[] read(LongTransaction tx) throws Exception {
+        return vm.read(tx.xid, uids[ThreadLocalRandom.current().nextInt(ROWS)]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for(int threads : new int[]{1, 4, 16, 64}) {
+            Options opt = new OptionsBuilder()
+                    .include(TransactionBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}
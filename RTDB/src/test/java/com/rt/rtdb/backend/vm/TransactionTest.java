@@ -0,0 +1,39 @@
+package com.rt.rtdb.backend.vm;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+public class TransactionTest {
+
+    @Test
+    public void testSnapshot() {
+        TreeSet<Long> active = new TreeSet<>(Arrays.asList(3L, 5L, 9L, 12L));
+        Transaction t = Transaction.newTransaction(10, 1, active);
+        assert t.snapshotXmin == 3;
+        assert t.snapshotXmax == 11;
+        // 比自己新的活跃事务不放入数组，由 xmax 判断
+        assert Arrays.equals(new long[]{3, 5, 9}, t.snapshotXids);
+
+        assert !t.isInSnapshot(0);
+        assert !t.isInSnapshot(2);
+        assert t.isInSnapshot(3);
+        assert !t.isInSnapshot(4);
+        assert t.isInSnapshot(5);
+        assert t.isInSnapshot(9);
+        assert !t.isInSnapshot(10);
+        assert t.isInSnapshot(11);
+        assert t.isInSnapshot(12);
+
+        // 没有其他活跃事务
+        t = Transaction.newTransaction(10, 1, new TreeSet<>());
+        assert t.snapshotXmin == t.snapshotXmax;
+        assert !t.isInSnapshot(9);
+        assert !t.isInSnapshot(10);
+
+        // 读提交不生成快照
+        t = Transaction.newTransaction(10, 0, active);
+        assert t.snapshotXids == null;
+    }
+}
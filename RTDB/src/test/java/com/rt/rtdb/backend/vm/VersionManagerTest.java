@@ -0,0 +1,183 @@
+package com.rt.rtdb.backend.vm;
+
+import com.rt.rtdb.backend.dm.DataManager;
+import com.rt.rtdb.backend.dm.MockDataManager;
+import com.rt.rtdb.backend.tm.TransactionManager;
+import com.rt.rtdb.common.Error;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VersionManagerTest {
+
+    @Test
+    public void testConcurrentTransactions() throws Exception {
+        String path = "/tmp/TestVersionManager";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = MockDataManager.newMockDataManager();
+        VersionManagerImpl vm = (VersionManagerImpl) VersionManager.newVersionManager(tm, dm);
+
+        // 可重复读事务看不到它开始之后提交的数据
+        long reader = vm.begin(1);
+        long writer = vm.begin(0);
+        long uid = vm.insert(writer, "v".getBytes());
+        vm.commit(writer);
+        assert vm.read(reader, uid) == null;
+        assert vm.minActiveXid() == reader;
+        long reader1 = vm.begin(1);
+        assert vm.read(reader1, uid) != null;
+        vm.commit(reader);
+        vm.commit(reader1);
+        assert vm.minActiveXid() == Long.MAX_VALUE;
+
+        int workers = 8, n = 200;
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(workers);
+        for(int i = 0; i < workers; i ++) {
+            final int w = i;
+            new Thread(() -> {
+                try {
+                    for(int j = 0; j < n; j ++) {
+                        long xid = vm.begin(j % 2);
+                        if(vm.read(xid, uid) == null || vm.minActiveXid() > xid) {
+                            errors.incrementAndGet();
+                        }
+                        if(w % 2 == 0) {
+                            vm.commit(xid);
+                        } else {
+                            vm.abort(xid);
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        assert errors.get() == 0;
+        assert vm.minActiveXid() == Long.MAX_VALUE;
+        assert vm.vacuumHorizon() == Long.MAX_VALUE;
+        assert vm.newestActiveXid() == 0;
+
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testSnapshotConsistency() throws Exception {
+        String path = "/tmp/TestSnapshotConsistency";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = MockDataManager.newMockDataManager();
+        VersionManagerImpl vm = (VersionManagerImpl) VersionManager.newVersionManager(tm, dm);
+        // 生成快照遍历活跃集合时每步让出CPU，放大与提交交错的窗口
+        vm.activeXids = new ConcurrentSkipListSet<Long>() {
+            @Override
+            public Iterator<Long> iterator() {
+                Iterator<Long> it = super.iterator();
+                return new Iterator<Long>() {
+                    public boolean hasNext() {
+                        Thread.yield();
+                        return it.hasNext();
+                    }
+
+                    public Long next() {
+                        return it.next();
+                    }
+                };
+            }
+        };
+
+        // 提交者先后开始 x1 < x2，并先提交 x1 再提交 x2：
+        // 快照看到 x2 已提交时必须也看到 x1 已提交，且回收水位不能越过任何已发布快照的 xmin
+        int committers = 4, readers = 2, n = 300;
+        Map<Long, Long> pairs = new ConcurrentHashMap<>();
+        AtomicInteger errors = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(committers + readers);
+        for(int i = 0; i < committers; i ++) {
+            new Thread(() -> {
+                try {
+                    for(int j = 0; j < n; j ++) {
+                        long x1 = vm.begin(0);
+                        long x2 = vm.begin(0);
+                        pairs.put(x2, x1);
+                        vm.commit(x1);
+                        vm.commit(x2);
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+                latch.countDown();
+            }).start();
+        }
+        for(int i = 0; i < readers; i ++) {
+            new Thread(() -> {
+                try {
+                    for(int j = 0; j < n; j ++) {
+                        long xid = vm.begin(1);
+                        Transaction t = vm.activeTransaction.get(xid);
+                        if(vm.vacuumHorizon() > t.snapshotXmin) {
+                            errors.incrementAndGet();
+                        }
+                        for(Map.Entry<Long, Long> p : pairs.entrySet()) {
+                            if(p.getKey() < t.snapshotXmax && !t.isInSnapshot(p.getKey()) && t.isInSnapshot(p.getValue())) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                        vm.commit(xid);
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+                latch.countDown();
+            }).start();
+        }
+        latch.await();
+        assert errors.get() == 0;
+        assert vm.vacuumHorizon() == Long.MAX_VALUE;
+
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testLockWaitTimeout() throws Exception {
+        String path = "/tmp/TestLockWaitTimeout";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = MockDataManager.newMockDataManager();
+        VersionManager vm = new VersionManagerImpl(tm, dm, 20);
+
+        long xid = vm.begin(0);
+        long uid = vm.insert(xid, "v".getBytes());
+        vm.commit(xid);
+
+        long holder = vm.begin(0);
+        long waiter = vm.begin(0);
+        assert vm.delete(holder, uid, "t");
+        try {
+            vm.delete(waiter, uid, "t");
+            assert false;
+        } catch (Exception e) {
+            assert e == Error.LockWaitTimeoutException;
+        }
+        // 超时的事务已被中止，持有者不受影响
+        assert tm.isAborted(waiter);
+        vm.abort(waiter);
+        vm.commit(holder);
+
+        LockStats stats = vm.getLockStats();
+        assert stats.total().waits() == 1 && stats.total().timeouts() == 1;
+        assert stats.tables().get("t").timeouts() == 1;
+        assert stats.uid(uid).waits() == 1;
+        assert stats.hottestUids(10).get(0).getKey() == uid;
+
+        tm.close();
+        assert new File(path + ".xid").delete();
+    }
+}
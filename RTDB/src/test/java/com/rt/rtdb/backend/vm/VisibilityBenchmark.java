@@ -0,0 +1,206 @@
+package com.rt.rtdb.backend.vm;
+
+import com.rt.rtdb.backend.common.SubArray;
+import com.rt.rtdb.backend.dm.dataItem.DataItem;
+import com.rt.rtdb.backend.dm.dataItem.DataItemImpl;
+import com.rt.rtdb.backend.tm.TransactionManager;
+import com.rt.rtdb.backend.utils.Parser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可见性判断的吞吐量：状态位图与每次查询读 XID 文件的对比
+ *
+ * bitmap：TransactionManagerImpl 查询内存中的状态位图；
+ * file：查询时按原来的方式对 XID 文件做一次 position 和 read
+ * 版本的 XMIN、XMAX 随机取自 2 万个事务，其中 90% 已提交、5% 已回滚、5% 仍活跃
+ * 以 test classpath 运行 main 方法，线程数依次为 1、4、16
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VisibilityBenchmark {
+
+    private static final int XIDS = 20000;
+    private static final int ENTRIES = 1 << 14;
+
+    @Param({"bitmap", "file"})
+    public String status;
+
+    @Param({"0", "1"})
+    public int level;
+
+    private File dir;
+    private TransactionManager tm;
+    private Transaction t;
+    private Entry[] entries;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("visibility_bench").toFile();
+        String path = new File(dir, "tm").getAbsolutePath();
+        TransactionManager real = TransactionManager.create(path);
+        Random random = new Random(0);
+        TreeSet<Long> active = new TreeSet<>();
+        for(int i = 0; i < XIDS; i ++) {
+            long xid = real.begin();
+            int r = random.nextInt(100);
+            if(r < 90) {
+                real.commit(xid);
+            } else if(r < 95) {
+                real.abort(xid);
+            } else {
+                active.add(xid);
+            }
+        }
+        tm = "file".equals(status) ? new FileStatusManager(real, path) : real;
+        t = Transaction.newTransaction(real.begin(), level, active);
+
+        entries = new Entry[ENTRIES];
+        for(int i = 0; i < ENTRIES; i ++) {
+            long xmin = 1 + random.nextInt(XIDS);
+            long xmax = random.nextInt(4) == 0 ? 1 + random.nextInt(XIDS) : 0;
+            entries[i] = newEntry(i, xmin, xmax);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tm.close();
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public boolean isVisible() {
+        Entry e = entries[ThreadLocalRandom.current().nextInt(ENTRIES)];
+        return Visibility.isVisible(tm, t, e);
+    }
+
+    /**
+     * 不经过数据管理器，直接在内存中构造版本
+     */
+    private static Entry newEntry(long uid, long xmin, long xmax) {
+        byte[] raw = DataItem.wrapDataItemRaw(Entry.wrapEntryRaw(xmin, new byte[16]));
+        DataItemImpl di = new DataItemImpl(new SubArray(raw, 0, raw.length), new byte[raw.length], null, uid, null);
+        SubArray sa = di.data();
+        System.arraycopy(Parser.long2Byte(xmax), 0, sa.raw, sa.start + 8, 8);
+        return Entry.newEntry(null, di, uid);
+    }
+
+    /**
+     * 查询状态时读 XID 文件，其他操作交给实际的事务管理器
+     */
+    static class FileStatusManager implements TransactionManager {
+        private static final int LEN_XID_HEADER_LENGTH = 8;
+
+        private final TransactionManager tm;
+        private final RandomAccessFile file;
+        private final FileChannel fc;
+
+        FileStatusManager(TransactionManager tm, String path) throws IOException {
+            this.tm = tm;
+            this.file = new RandomAccessFile(path + ".xid", "r");
+            this.fc = file.getChannel();
+        }
+
+        private boolean checkXID(long xid, byte status) {
+            ByteBuffer buf = ByteBuffer.wrap(new byte[1]);
+            try {
+                synchronized(fc) {
+                    fc.position(LEN_XID_HEADER_LENGTH + xid - 1);
+                    fc.read(buf);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return buf.get(0) == status;
+        }
+
+        @Override
+        public long begin() {
+            return tm.begin();
+        }
+
+        @Override
+        public void commit(long xid) {
+            tm.commit(xid);
+        }
+
+        @Override
+        public void abort(long xid) {
+            tm.abort(xid);
+        }
+
+        @Override
+        public boolean isActive(long xid) {
+            return xid != 0 && checkXID(xid, (byte) 0);
+        }
+
+        @Override
+        public boolean isCommitted(long xid) {
+            return xid != 0 && checkXID(xid, (byte) 1);
+        }
+
+        @Override
+        public boolean isAborted(long xid) {
+            return xid != 0 && checkXID(xid, (byte) 2);
+        }
+
+        @Override
+        public void force() {
+            tm.force();
+        }
+
+        @Override
+        public void close() {
+            try {
+                fc.close();
+                file.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            tm.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for(int threads : new int[]{1, 4, 16}) {
+            Options opt = new OptionsBuilder()
+                    .include(VisibilityBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(opt).run();
+        }
+    }
+}